@@ -0,0 +1,555 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Length-prefixed binary framing, negotiated by appending ":BIN1" to the handshake
+//   int32 length | u8 opcode | u8 flags | 16 byte topic id | varint field count | fields | payload
+public final class BinaryProtocol {
+    public static final String VERSION = "BIN1";
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+    public static final int HEADER_LENGTH = 4 + 1 + 1 + 16;
+    // Largest CHUNK payload, raw or inflated, leaving the rest of a frame for the header and fields
+    public static final int MAX_CHUNK_LENGTH = MAX_FRAME_LENGTH / 2;
+
+    // Per-connection compression, offered and accepted after the version in the handshake
+    public static final String DEFLATE = "deflate";
+    // CHUNK payload encodings and stream states
+    public static final String RAW = "raw";
+    public static final String CHUNK_MORE = "more";
+    public static final String CHUNK_LAST = "last";
+    public static final String CHUNK_ABORT = "abort";
+
+    public static final byte FLAG_BROADCAST = 1;
+
+    // Opcodes, in the order of the OPCODES table below
+    public static final byte TEXT = 0;
+    public static final byte PUBLISHER = 1;
+    public static final byte SUBSCRIBER = 2;
+    public static final byte BROKER = 3;
+    public static final byte CREATETOPIC = 4;
+    public static final byte NEWTOPIC = 5;
+    public static final byte PUBLISH = 6;
+    public static final byte SUBSCRIBE = 7;
+    public static final byte UNSUBSCRIBE = 8;
+    public static final byte GETSUBSCRIBERCOUNT = 9;
+    public static final byte DELETETOPIC = 10;
+    public static final byte LISTTOPICS = 11;
+    public static final byte AMOUNT = 12;
+    public static final byte EXIT = 13;
+    public static final byte REMOVE = 14;
+    public static final byte SUCCESS = 15;
+    public static final byte ERROR = 16;
+    public static final byte MESSAGE = 17;
+    public static final byte TOPICDELETED = 18;
+    public static final byte TOPICLIST = 19;
+    public static final byte SUBSCRIBERCOUNT = 20;
+    public static final byte REPLAY = 21;
+    public static final byte HISTORY = 22;
+    public static final byte PUBLISHASYNC = 23;
+    public static final byte ACK = 24;
+    public static final byte NACK = 25;
+    public static final byte PUBLISHBATCH = 26;
+    public static final byte INTEREST = 27;
+    public static final byte STATS = 28;
+    public static final byte PSUBSCRIBE = 29;
+    public static final byte PUNSUBSCRIBE = 30;
+    public static final byte CHUNK = 31;
+    public static final byte CREDIT = 32;
+    public static final byte CAUGHTUP = 33;
+
+    // Wire layout of each opcode, mapping it onto its text command
+    static final class Layout {
+        final String command;
+        final byte[] commandBytes;
+        final boolean hasTopic;
+        final int payloadIndex;
+        final int textTrailingFields;
+        final boolean textRestOfLine;
+
+        Layout(String command, boolean hasTopic, int payloadIndex, int textTrailingFields, boolean textRestOfLine) {
+            this.command = command;
+            this.commandBytes = command.getBytes(StandardCharsets.US_ASCII);
+            this.hasTopic = hasTopic;
+            this.payloadIndex = payloadIndex;
+            this.textTrailingFields = textTrailingFields;
+            this.textRestOfLine = textRestOfLine;
+        }
+
+        Layout(String command, boolean hasTopic) {
+            this(command, hasTopic, -1, 0, false);
+        }
+    }
+
+    private static final Layout[] OPCODES = {
+        new Layout("TEXT", false, -1, 0, true),
+        new Layout("PUBLISHER", false),
+        new Layout("SUBSCRIBER", false),
+        new Layout("BROKER", false),
+        new Layout("CREATETOPIC", true),
+        new Layout("NEWTOPIC", true),
+        new Layout("PUBLISH", true, 2, 1, false),
+        // SUBSCRIBE:<topicId>:<subscriberName>:<port>[:<from>[:<filter>]], the filter as payload
+        new Layout("SUBSCRIBE", true, 5, 0, false),
+        new Layout("UNSUBSCRIBE", true),
+        new Layout("GETSUBSCRIBERCOUNT", true),
+        new Layout("DELETETOPIC", true),
+        new Layout("LISTTOPICS", false),
+        new Layout("AMOUNT", false),
+        new Layout("EXIT", false),
+        new Layout("REMOVE", false),
+        new Layout("SUCCESS", false, -1, 0, true),
+        new Layout("ERROR", false, -1, 0, true),
+        new Layout("MESSAGE", true, 3, 0, false),
+        new Layout("TOPICDELETED", true),
+        new Layout("TOPICLIST", false, -1, 0, true),
+        new Layout("SUBSCRIBERCOUNT", false),
+        new Layout("REPLAY", true),
+        new Layout("HISTORY", true),
+        // PUBLISHASYNC:<topicId>:<publisherName>:<correlationId>:<content>, answered by ACK or NACK
+        new Layout("PUBLISHASYNC", true, 4, 0, false),
+        new Layout("ACK", false, 2, 0, false),
+        new Layout("NACK", false, 2, 0, false),
+        // PUBLISHBATCH:<publisherName>:<correlationId>:<entries>, binary only (see encodeBatch)
+        new Layout("PUBLISHBATCH", false, 3, 0, false),
+        // INTEREST:<topicId>:<1|0>[:<next>], between brokers; <next> asks for a catch-up
+        new Layout("INTEREST", true),
+        // STATS, answered with SUCCESS:STATS:<name>=<value> ... (see Broker.statsSnapshot)
+        new Layout("STATS", false),
+        // PSUBSCRIBE:<pattern> and PUNSUBSCRIBE:<pattern>
+        new Layout("PSUBSCRIBE", false),
+        new Layout("PUNSUBSCRIBE", false),
+        // CHUNK:<topicId>:<publisherName>:<streamId>:<index>:<more|last|abort>:<raw|deflate>:<bytes>, binary only
+        new Layout("CHUNK", true, 7, 0, false),
+        // CREDIT:<frames>:<bytes>, from a flow-controlled client
+        new Layout("CREDIT", false),
+        // CAUGHTUP:<topicId>:<next>, between brokers: a requested catch-up is done
+        new Layout("CAUGHTUP", true),
+    };
+
+    static final int OPCODE_COUNT = OPCODES.length;
+
+    static Layout layout(int opcode) {
+        return OPCODES[opcode];
+    }
+
+    private static final Map<String, Byte> OPCODE_BY_COMMAND = new HashMap<>();
+    static {
+        for (int i = 0; i < OPCODES.length; i++) {
+            OPCODE_BY_COMMAND.put(OPCODES[i].command, (byte) i);
+        }
+    }
+
+    private static final String[] NO_FIELDS = new String[0];
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private BinaryProtocol() {
+    }
+
+    public static final class Frame {
+        public final byte opcode;
+        public final byte flags;
+        public final long topicMsb;
+        public final long topicLsb;
+        public final String[] fields;
+        public final byte[] payload;
+
+        public Frame(byte opcode, byte flags, long topicMsb, long topicLsb, String[] fields, byte[] payload) {
+            this.opcode = opcode;
+            this.flags = flags;
+            this.topicMsb = topicMsb;
+            this.topicLsb = topicLsb;
+            this.fields = fields;
+            this.payload = payload;
+        }
+
+        // Frame from the parts of a text command; a leading "Broadcast" sets FLAG_BROADCAST
+        public static Frame fromParts(List<String> parts) {
+            int first = 0;
+            byte flags = 0;
+            if (parts.get(0).equals("Broadcast")) {
+                flags = FLAG_BROADCAST;
+                first = 1;
+            }
+            Byte opcode = OPCODE_BY_COMMAND.get(parts.get(first));
+            if (opcode == null || opcode == TEXT) {
+                throw new IllegalArgumentException("No binary opcode for command " + parts.get(first));
+            }
+            Layout layout = OPCODES[opcode];
+            long msb = 0L;
+            long lsb = 0L;
+            int next = first + 1;
+            if (layout.hasTopic && next < parts.size()) {
+                UUID topicId = UUID.fromString(parts.get(next));
+                msb = topicId.getMostSignificantBits();
+                lsb = topicId.getLeastSignificantBits();
+                next++;
+            }
+            byte[] payload = NO_PAYLOAD;
+            List<String> fields = new ArrayList<>(parts.size() - next);
+            for (int i = next; i < parts.size(); i++) {
+                if (i - first == layout.payloadIndex) {
+                    payload = parts.get(i).getBytes(StandardCharsets.UTF_8);
+                } else {
+                    fields.add(parts.get(i));
+                }
+            }
+            return new Frame(opcode, flags, msb, lsb, fields.toArray(NO_FIELDS), payload);
+        }
+
+        public static Frame fromParts(String... parts) {
+            return fromParts(Arrays.asList(parts));
+        }
+
+        public boolean isBroadcast() {
+            return (flags & FLAG_BROADCAST) != 0;
+        }
+
+        public UUID topicId() {
+            return new UUID(topicMsb, topicLsb);
+        }
+
+        public String field(int index) {
+            return index < fields.length ? fields[index] : null;
+        }
+
+        public String payloadText() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+
+        // Parts of the equivalent text command, including a leading "Broadcast" when flagged
+        public ArrayList<String> toParts() {
+            ArrayList<String> parts = new ArrayList<>(fields.length + 4);
+            if (opcode == TEXT) {
+                parts.add(fields[0]);
+                return parts;
+            }
+            Layout layout = OPCODES[opcode];
+            if (isBroadcast()) {
+                parts.add("Broadcast");
+            }
+            int base = parts.size();
+            parts.add(layout.command);
+            if (layout.hasTopic) {
+                parts.add(topicId().toString());
+            }
+            for (String field : fields) {
+                if (parts.size() - base == layout.payloadIndex) {
+                    parts.add(payloadText());
+                }
+                parts.add(field);
+            }
+            if (parts.size() - base == layout.payloadIndex) {
+                parts.add(payloadText());
+            }
+            return parts;
+        }
+
+        public String toTextLine() {
+            return String.join(":", toParts());
+        }
+
+        // Encodes the frame including its length prefix
+        public byte[] encode() {
+            byte[][] encodedFields = new byte[fields.length][];
+            int length = HEADER_LENGTH - 4 + varintSize(fields.length) + payload.length;
+            for (int i = 0; i < fields.length; i++) {
+                encodedFields[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+                length += varintSize(encodedFields[i].length) + encodedFields[i].length;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+            buffer.putInt(length);
+            buffer.put(opcode);
+            buffer.put(flags);
+            buffer.putLong(topicMsb);
+            buffer.putLong(topicLsb);
+            putVarint(buffer, fields.length);
+            for (byte[] field : encodedFields) {
+                putVarint(buffer, field.length);
+                buffer.put(field);
+            }
+            buffer.put(payload);
+            return buffer.array();
+        }
+    }
+
+    // Decodes one frame body (everything after the length prefix) of the given length
+    public static Frame decode(ByteBuffer buffer, int length) throws IOException {
+        int end = buffer.position() + length;
+        if (length < HEADER_LENGTH - 4 + 1) {
+            throw new IOException("Frame too short: " + length);
+        }
+        byte opcode = buffer.get();
+        if (opcode < 0 || opcode >= OPCODES.length) {
+            throw new IOException("Unknown opcode: " + opcode);
+        }
+        byte flags = buffer.get();
+        long msb = buffer.getLong();
+        long lsb = buffer.getLong();
+        int fieldCount = getVarint(buffer);
+        if (fieldCount > length) {
+            throw new IOException("Invalid field count: " + fieldCount);
+        }
+        String[] fields = fieldCount == 0 ? NO_FIELDS : new String[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            int fieldLength = getVarint(buffer);
+            if (fieldLength < 0 || buffer.position() + fieldLength > end) {
+                throw new IOException("Field exceeds frame");
+            }
+            if (buffer.hasArray()) {
+                fields[i] = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), fieldLength, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + fieldLength);
+            } else {
+                // Direct and read-only buffers, e.g. commit log segments
+                byte[] field = new byte[fieldLength];
+                buffer.get(field);
+                fields[i] = new String(field, StandardCharsets.UTF_8);
+            }
+        }
+        byte[] payload = NO_PAYLOAD;
+        if (buffer.position() < end) {
+            payload = new byte[end - buffer.position()];
+            buffer.get(payload);
+        }
+        return new Frame(opcode, flags, msb, lsb, fields, payload);
+    }
+
+    // Reads one length-prefixed frame, or returns null at end of stream
+    public static Frame readFrame(InputStream in) throws IOException {
+        byte[] body = readFrameBody(in);
+        return body == null ? null : decode(ByteBuffer.wrap(body), body.length);
+    }
+
+    // Reads the body of one length-prefixed frame, or returns null at end of stream
+    public static byte[] readFrameBody(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int length;
+        try {
+            length = data.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] body = new byte[length];
+        data.readFully(body);
+        return body;
+    }
+
+    // Read one line without consuming bytes past it
+    public static String readLine(InputStream in) throws IOException {
+        byte[] line = readLineBytes(in);
+        return line == null ? null : new String(line, StandardCharsets.UTF_8);
+    }
+
+    // Same as readLine but returns the raw line bytes without the terminator
+    public static byte[] readLineBytes(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        byte[] bytes = line.toByteArray();
+        if (bytes.length > 0 && bytes[bytes.length - 1] == '\r') {
+            return Arrays.copyOf(bytes, bytes.length - 1);
+        }
+        return bytes;
+    }
+
+    // Payload of a PUBLISHBATCH frame: per message, 16 byte topic id | varint length | UTF-8 content
+    public static byte[] encodeBatch(List<UUID> topicIds, List<byte[]> contents) {
+        int length = 0;
+        for (byte[] content : contents) {
+            length += 16 + varintSize(content.length) + content.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (int i = 0; i < contents.size(); i++) {
+            buffer.putLong(topicIds.get(i).getMostSignificantBits());
+            buffer.putLong(topicIds.get(i).getLeastSignificantBits());
+            putVarint(buffer, contents.get(i).length);
+            buffer.put(contents.get(i));
+        }
+        return buffer.array();
+    }
+
+    // Encode a MESSAGE frame straight into one exact-size array
+    public static byte[] encodeMessage(long topicMsb, long topicLsb, String topicName, String timestamp, long sequence, String content) {
+        int nameLength = utf8Length(topicName);
+        int timestampLength = utf8Length(timestamp);
+        int sequenceLength = decimalLength(sequence);
+        int length = HEADER_LENGTH - 4 + varintSize(3)
+                + varintSize(nameLength) + nameLength
+                + varintSize(timestampLength) + timestampLength
+                + varintSize(sequenceLength) + sequenceLength
+                + utf8Length(content);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length);
+        buffer.put(MESSAGE);
+        buffer.put((byte) 0);
+        buffer.putLong(topicMsb);
+        buffer.putLong(topicLsb);
+        putVarint(buffer, 3);
+        putVarint(buffer, nameLength);
+        putUtf8(buffer, topicName);
+        putVarint(buffer, timestampLength);
+        putUtf8(buffer, timestamp);
+        putVarint(buffer, sequenceLength);
+        putDecimal(buffer, sequence, sequenceLength);
+        putUtf8(buffer, content);
+        return buffer.array();
+    }
+
+    // Bytes the UTF-8 encoding of s takes, without encoding it
+    public static int utf8Length(String s) {
+        int length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isSurrogate(c)) {
+                // A pair takes 4 bytes for its 2 chars, a lone surrogate becomes '?'
+                if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    length += 2;
+                    i++;
+                }
+            } else if (c >= 0x800) {
+                length += 2;
+            } else if (c >= 0x80) {
+                length += 1;
+            }
+        }
+        return length;
+    }
+
+    // Write s as UTF-8 into the buffer's backing array
+    public static void putUtf8(ByteBuffer buffer, String s) {
+        byte[] out = buffer.array();
+        int pos = buffer.arrayOffset() + buffer.position();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xC0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    out[pos++] = (byte) (0xF0 | (cp >> 18));
+                    out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    out[pos++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    out[pos++] = '?';
+                }
+            } else {
+                out[pos++] = (byte) (0xE0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        buffer.position(pos - buffer.arrayOffset());
+    }
+
+    static int decimalLength(long value) {
+        int length = value < 0 ? 2 : 1;
+        for (long rest = Math.abs(value / 10); rest > 0; rest /= 10) length++;
+        return length;
+    }
+
+    static void putDecimal(ByteBuffer buffer, long value, int length) {
+        int end = buffer.position() + length;
+        int pos = end;
+        long rest = value;
+        do {
+            buffer.put(--pos, (byte) ('0' + Math.abs(rest % 10)));
+            rest /= 10;
+        } while (rest != 0);
+        if (value < 0) buffer.put(--pos, (byte) '-');
+        buffer.position(end);
+    }
+
+    // Whether a handshake reply accepted the binary protocol
+    public static boolean acceptsBinary(String response) {
+        return response != null && response.startsWith("SUCCESS:") && response.endsWith(":" + VERSION);
+    }
+
+    // Whether a handshake reply also accepted deflate-compressed chunks
+    public static boolean acceptsDeflate(String response) {
+        return response != null && response.startsWith("SUCCESS:") && response.endsWith(":" + DEFLATE + ":" + VERSION);
+    }
+
+    // Compresses one chunk on its own, so any chunk can be inflated without the ones before it
+    public static byte[] deflate(Deflater deflater, byte[] data, int offset, int length) {
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(length / 2 + 64);
+        byte[] scratch = new byte[Math.min(Math.max(length, 64), 64 * 1024)];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(scratch);
+            deflated.write(scratch, 0, n);
+        }
+        return deflated.toByteArray();
+    }
+
+    // Inflate one chunk into sink, up to MAX_CHUNK_LENGTH
+    public static int inflate(Inflater inflater, byte[] data, int offset, int length, OutputStream sink, byte[] scratch) throws IOException {
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+        int total = 0;
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(scratch);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated deflate data");
+                }
+                total += n;
+                if (total > MAX_CHUNK_LENGTH) {
+                    throw new IOException("Chunk inflates past " + MAX_CHUNK_LENGTH + " bytes");
+                }
+                sink.write(scratch, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid deflate data: " + e.getMessage());
+        }
+        return total;
+    }
+
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static int getVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
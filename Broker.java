@@ -1,682 +1,3544 @@
 import java.io.*;
 import java.net.*;
-import java.text.SimpleDateFormat;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 public class Broker {
     // Constrants for broker conf
+    // Default client ports of brokers 0-2; later ids default to 5001 + id
     private static final int[] BROKER_PORTS = {5003, 5001, 5002};
     private static final int MAX_PUBLISHERS = 5;
     private static final int MAX_SUBSCRIBERS = 10;
     private static final int CONNECTION_TIMEOUT_MS = 5000;
-    private static final int MAX_MESSAGE_LENGTH = 100;
+    // Longest content one publish may carry; larger payloads are streamed
+    private static final int MAX_MESSAGE_LENGTH = Integer.getInteger("broker.maxMessageLength", 100);
+    // Most payload bytes, as received, one streamed message may carry
+    private static final long MAX_STREAM_BYTES = Long.getLong("broker.maxStreamBytes", 64L * 1024 * 1024);
+    // "deflate" accepts deflate-compressed chunks on the connections that offer it, "none" refuses it
+    private static final boolean COMPRESSION = BinaryProtocol.DEFLATE.equals(System.getProperty("broker.compression", BinaryProtocol.DEFLATE));
     private static final String DIRECTORY_SERVICE_HOST = "localhost";
     private static final int DIRECTORY_SERVICE_PORT = 6000;
+    // Host the other brokers reach this one at, as announced to the directory service
+    private static final String ADVERTISED_HOST = System.getProperty("broker.host", "localhost");
+    // Period of the heartbeats keeping this broker a member (see DirectoryService, directory.heartbeatTimeoutMs)
+    private static final long HEARTBEAT_MS = Long.getLong("broker.heartbeatMs", 1000);
+
+    // Client transport: blocking, virtual or nio
+    private static final String TRANSPORT_MODE = System.getProperty("broker.transport", "blocking");
+    private static final int EVENT_LOOP_THREADS = Integer.getInteger("broker.eventLoops", Runtime.getRuntime().availableProcessors());
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Outbound queue per client connection and what to do when a slow client lets it fill up
+    private static final int OUTBOUND_QUEUE_CAPACITY = Integer.getInteger("broker.outboundQueueCapacity", 1024);
+    private static final OverflowPolicy OVERFLOW_POLICY =
+            OverflowPolicy.valueOf(System.getProperty("broker.overflowPolicy", "BLOCK").toUpperCase());
+    private static final long OUTBOUND_BLOCK_TIMEOUT_MS = Long.getLong("broker.outboundBlockTimeoutMs", 5000);
+    // SPILL policy: spill file directory and per-client limit
+    private static final String SPILL_DIR = System.getProperty("broker.spillDir", System.getProperty("java.io.tmpdir"));
+    private static final long SPILL_MAX_BYTES = Long.getLong("broker.spillMaxBytes", 1L << 30);
+    // Offer the binary protocol on outgoing broker links ("binary" or "text")
+    private static final String PEER_PROTOCOL = System.getProperty("broker.peerProtocol", "binary");
+    // Per-topic commit log under <broker.logDir>/broker-<id>/<topicId>; an empty broker.logDir disables it
+    private static final String LOG_DIR = System.getProperty("broker.logDir", "data");
+    private static final CommitLog.Config LOG_CONFIG = new CommitLog.Config(
+            Long.getLong("broker.logSegmentBytes", 64L << 20),
+            CommitLog.FsyncPolicy.valueOf(System.getProperty("broker.logFsync", "OS").toUpperCase()),
+            Long.getLong("broker.logRetentionBytes", 1L << 30),
+            Long.getLong("broker.logRetentionMs", TimeUnit.DAYS.toMillis(7)));
+    private static final long LOG_FSYNC_INTERVAL_MS = Long.getLong("broker.logFsyncIntervalMs", 1000);
+    // Every publish waits for a disk flush, so event loops hand publishes to a worker
+    private static final boolean SYNC_APPENDS = !LOG_DIR.isEmpty() && LOG_CONFIG.fsync == CommitLog.FsyncPolicy.ALWAYS;
+    // Messages each topic keeps in memory for subscribers resuming from a recent sequence
+    private static final int TOPIC_HISTORY = Integer.getInteger("broker.topicHistory", 1024);
+    // Filtered resumes join once this many messages are left to test
+    private static final int RESUME_FILTERED_TAIL = 16;
+    // Replay streams the log to a subscriber in chunks of whole records of about this size
+    private static final int REPLAY_CHUNK_BYTES = 64 * 1024;
+    // Replication link batching and lag reporting
+    private static final long REPLICATION_LINGER_MS = Long.getLong("broker.replicationLingerMs", 1);
+    private static final int REPLICATION_MAX_BATCH = Integer.getInteger("broker.replicationMaxBatch", 256);
+    private static final int REPLICATION_QUEUE_CAPACITY = Integer.getInteger("broker.replicationQueueCapacity", 65536);
+    private static final long REPLICATION_REPORT_SECONDS = Long.getLong("broker.replicationReportSeconds", 30);
+    // Topic placement: replicated or owner
+    private static final boolean OWNER_PARTITIONING = "owner".equals(System.getProperty("broker.partitioning", "replicated"));
+    private static final int RING_VIRTUAL_NODES = Integer.getInteger("broker.ringVirtualNodes", 128);
+    // "broker" logs clients, topics and lifecycle, "broker.link" the links to other brokers (see Log)
+    private static final Log.Logger LOG = Log.get("broker");
+    private static final Log.Logger LINK_LOG = Log.get("broker.link");
+    private static final Log.Logger STATS_LOG = Log.get("broker.stats");
+    // STATS period and latency sampling interval
+    private static final long STATS_REPORT_SECONDS = Long.getLong("broker.statsReportSeconds", 60);
+    // How often the publisher and subscriber counters are gossiped to the peers, when they changed
+    private static final long COUNTER_GOSSIP_MS = Long.getLong("broker.counterGossipMs", 100);
+    private static final int LATENCY_SAMPLE_INTERVAL = Math.max(1, Integer.getInteger("broker.latencySampleInterval", 16));
+    private static final long RATE_WINDOW_SECONDS = 5;
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("dd/MM HH:mm:ss").withZone(ZoneId.systemDefault());
+    // Refusals of publishes that belong to another broker under owner partitioning
+    private static final String OWNER_UNAVAILABLE = "Topic owner unavailable";
+    private static final String OWNER_LINK_LOST = "Link to topic owner lost, publish may not have been delivered";
+    private static final String OWNER_CATCHING_UP = "Topic owner catching up, retry";
+    // Replies sent for every successful PUBLISH, encoded once
+    private static final ByteBuffer PUBLISHED_TEXT = ByteBuffer.wrap("SUCCESS:Message published\n".getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    private static final ByteBuffer PUBLISHED_FRAME = ByteBuffer.wrap(BinaryProtocol.Frame.fromParts("SUCCESS", "Message published").encode()).asReadOnlyBuffer();
     
     // Broker attributes
     private final int brokerId;
     private final int port;
+    // Other brokers in the cluster, as host:port
     private final Map<Integer, String> brokerAddresses = new ConcurrentHashMap<>();
+    private volatile Socket directorySocket;
+    private volatile PrintWriter directorySession;
+    // Peers being dialed, so a JOINED event and the reconnect timer never open two links to one peer
+    private final Set<Integer> dialing = ConcurrentHashMap.newKeySet();
     private final Map<UUID, Topic> topics = new ConcurrentHashMap<>();
     private final Map<Integer, BrokerHandler> brokerHandlers = new ConcurrentHashMap<>();
+    // Peers following each topic, as advertised with INTEREST
+    private final Map<UUID, Set<Integer>> peerInterest = new ConcurrentHashMap<>();
+    // Members of the owner ring; only used under owner partitioning
+    private final HashRing ring = new HashRing(RING_VIRTUAL_NODES);
+    // Publishes forwarded to their owner, by forward id, until answered
+    private final Map<String, ForwardedPublish> forwardedPublishes = new ConcurrentHashMap<>();
+    private final AtomicLong nextForwardId = new AtomicLong();
     private final Set<String> connectedPublishers = ConcurrentHashMap.newKeySet();
+    // Topic ids by publisher name
+    private final Map<String, Set<UUID>> topicsByPublisher = new ConcurrentHashMap<>();
+    // Topic names and wildcard patterns, guarded by topicNames
+    private final TopicTrie<UUID> topicNames = new TopicTrie<>();
+    private final TopicTrie<ClientHandler> wildcardSubscriptions = new TopicTrie<>();
     private final Set<String> connectedSubscribers = ConcurrentHashMap.newKeySet();
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-    private final ExecutorService clientHandlerExecutor = Executors.newCachedThreadPool();
+    // ReentrantLocks so blocked virtual threads do not pin their carrier
+    private final ReentrantLock publisherAdmissionLock = new ReentrantLock();
+    private final ReentrantLock subscriberAdmissionLock = new ReentrantLock();
+    // Broker reconnects and the commit log flush timer; dials themselves run on clientHandlerExecutor
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    // Heartbeats get their own thread so nothing delays them
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService clientHandlerExecutor = newConnectionExecutor();
+    private EventLoop[] eventLoops;
 
-    // Amount of publishers and subscribers
-    public int publisherAmount = 0;
-    public int subscriberAmount = 0;
+    // Frames dropped across all client outbound queues
+    private final LongAdder outboundDrops = new LongAdder();
+    // Latency histograms and connected clients, reported by STATS
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private final Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
+    // BLOCK policy: clients the current command filled up (see awaitBlockedClients)
+    private final ThreadLocal<List<ClientHandler>> blockedOn = new ThreadLocal<>();
+    private final long startNanos = System.nanoTime();
 
-    // Topic attributes
-    private class Topic {
-        String name;
-        String publisherName;
-        Set<ClientHandler> subscribers = ConcurrentHashMap.newKeySet();
-        Set<String> onlineSubscribers = ConcurrentHashMap.newKeySet();
+    // Overflow policies for a full client outbound queue
+    private enum OverflowPolicy {
+        BLOCK,        // hold the frame and hold the sender back until the queue drains, up to broker.outboundBlockTimeoutMs
+        DROP_OLDEST,  // evict the oldest queued message; replies are never evicted
+        DROP_NEWEST,  // drop the new frame
+        DISCONNECT,   // drop the new frame and disconnect the slow client
+        SPILL         // hold the frame in the client's backlog, which a background task spills to disk and reads back in order
+    }
 
-        Topic(String name, String publisherName) {
-            this.name = name;
-            this.publisherName = publisherName;
+    // Publishers and subscribers connected across the cluster (see PNCounter), checked on admission
+    private final PNCounter publisherCount;
+    private final PNCounter subscriberCount;
+    // The counter state last gossiped, only touched by the gossip timer
+    private String gossipedCounts = "";
+
+    // Subscribers of one topic sharing a filter expression, guarded by the topic's monitor
+    private static final class FilterGroup {
+        final MessageFilter filter;
+        final Set<ClientHandler> members = new LinkedHashSet<>();
+        // This group's share of the batch being published
+        Delivery[] batch;
+        // Where the group sits in the topic's groupSlots
+        int slot;
+
+        FilterGroup(MessageFilter filter) {
+            this.filter = filter;
         }
     }
 
-    // Broker constructor
-    public Broker(int brokerId) {
-        this.brokerId = brokerId;
-        this.port = BROKER_PORTS[brokerId];
-        for (int i = 0; i < BROKER_PORTS.length; i++) {
-            if (i != brokerId) {
-                brokerAddresses.put(i, "localhost:" + BROKER_PORTS[i]);
-            }
+    // Filter groups each message passed, tested before taking the topic's monitor
+    private static final class FilterResults {
+        final FilterGroup[] groups;
+        // [group slot][message]
+        final boolean[][] passed;
+
+        FilterResults(FilterGroup[] groups, boolean[][] passed) {
+            this.groups = groups;
+            this.passed = passed;
+        }
+
+        boolean tested(FilterGroup group) {
+            return group.slot < groups.length && groups[group.slot] == group;
         }
-        registerWithDirectoryService();
-        
     }
 
-    // Register broker with directory service
-    private void registerWithDirectoryService() {
-        try (Socket socket = new Socket(DIRECTORY_SERVICE_HOST, DIRECTORY_SERVICE_PORT);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            // Register broker with directory service
-            String registrationMessage = "REGISTER:" + brokerId + ":localhost:" + port;
-            System.out.println("Registering with directory service: " + registrationMessage);
-            out.println(registrationMessage);
+    // A stream a publisher is sending, checked chunk by chunk
+    private static final class OpenStream {
+        final UUID topicId;
+        int nextIndex;
+        long bytes;
+        // Set once the publisher was told the stream failed; its remaining chunks are dropped
+        boolean failed;
 
-            String response = in.readLine();
-            if ("SUCCESS".equals(response)) {
-                System.out.println("Successfully registered with directory service.");
-            } else {
-                // System.out.println("Failed to register with directory service: " + response);
-            }
-        } catch (IOException e) {
-            System.out.println("Error connecting to directory service: " + e.getMessage());
+        OpenStream(UUID topicId) {
+            this.topicId = topicId;
         }
     }
 
-    // Start broker
-    public void start() {
-        new Thread(this::startServer).start();
-        // Connect to other brokers (5sec)
-        scheduler.scheduleWithFixedDelay(this::connectToOtherBrokers, 0, 5, TimeUnit.SECONDS);
-    }
+    // Client reply waiting on topic owners
+    private static final class PendingReply {
+        final ClientHandler client;
+        final String correlationId;
+        final long ingressNanos;
+        // Null for a single publish
+        final String[] statuses;
+        // Forwards not answered yet, plus one until the entries published here are done
+        private int pending = 1;
 
-    // Start server
-    private void startServer() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Broker " + brokerId + " is running on port " + port);
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    clientHandlerExecutor.submit(new ClientHandler(clientSocket));
-                } catch (IOException e) {
-                    System.out.println("Error accepting client connection: " + e.getMessage());
+        PendingReply(ClientHandler client, String correlationId, long ingressNanos, String[] statuses) {
+            this.client = client;
+            this.correlationId = correlationId;
+            this.ingressNanos = ingressNanos;
+            this.statuses = statuses;
+        }
+
+        synchronized void forwarded() {
+            pending++;
+        }
+
+        synchronized void refuse(int position, String message) {
+            statuses[position] = message;
+        }
+
+        // An owner's answer for the entries at 'positions'
+        void answered(int[] positions, boolean listed, boolean ok, String message) {
+            if (statuses == null) {
+                client.sendForwardedReply(correlationId, ok, message, ingressNanos);
+                return;
+            }
+            String[] parts = ok && listed ? message.split("\\|", -1) : null;
+            synchronized (this) {
+                for (int i = 0; i < positions.length; i++) {
+                    statuses[positions[i]] = parts != null && parts.length == positions.length ? parts[i] : ok ? "OK" : message;
                 }
             }
-        } catch (IOException e) {
-            System.out.println("Could not start server: " + e.getMessage());
-        } finally {
-            shutdown();
+            done();
         }
-    }
 
-    // Connect to other brokers
-    private void connectToOtherBrokers() {
-        for (Map.Entry<Integer, String> entry : brokerAddresses.entrySet()) {
-            int otherBrokerId = entry.getKey();
-            if (!brokerHandlers.containsKey(otherBrokerId)) {
-                String[] hostPort = entry.getValue().split(":");
-                String host = hostPort[0];
-                int port = Integer.parseInt(hostPort[1]);
-                tryConnectToBroker(otherBrokerId, host, port);
+        // Called once for the local entries and once per answered forward; the last one replies
+        void done() {
+            synchronized (this) {
+                if (--pending > 0) return;
             }
+            client.sendForwardedReply(correlationId, true, String.join("|", statuses), ingressNanos);
         }
     }
 
-    // Try to connect to other brokers
-    private void tryConnectToBroker(int otherBrokerId, String host, int port) {
-        try {
-            Socket socket = new Socket();
-            socket.connect(new InetSocketAddress(host, port), CONNECTION_TIMEOUT_MS);
-            BrokerHandler handler = new BrokerHandler(socket, otherBrokerId);
-            brokerHandlers.put(otherBrokerId, handler);
-            handler.start();
-            System.out.println("Connected to Broker " + otherBrokerId);
-            // Broadcast amount of publishers and subscribers to other brokers
-            broadcastToOtherBrokers("AMOUNT:"+publisherAmount +":"+ subscriberAmount);
-        } catch (IOException e) {
-            System.out.println("Failed to connect to Broker " + otherBrokerId + ". Will retry later.");
+    // One forward to an owner, with its batch positions
+    private static final class ForwardedPublish {
+        final PendingReply reply;
+        final int owner;
+        final int[] positions;
+        final boolean listed;
+
+        ForwardedPublish(PendingReply reply, int owner, int[] positions, boolean listed) {
+            this.reply = reply;
+            this.owner = owner;
+            this.positions = positions;
+            this.listed = listed;
         }
     }
 
-    private class ClientHandler implements Runnable {
-        private final Socket socket;
-        private PrintWriter out;
-        private BufferedReader in;
-        private String clientName;
-        private boolean isPublisher;
+    // Topic attributes
+    private class Topic {
+        String name;
+        String publisherName;
+        Set<ClientHandler> subscribers = ConcurrentHashMap.newKeySet();
+        // Subscribers split by filter, grouped by expression; changed under the monitor
+        final Set<ClientHandler> unfiltered = ConcurrentHashMap.newKeySet();
+        private final Map<String, FilterGroup> filterGroups = new HashMap<>();
+        private final Map<ClientHandler, FilterGroup> groupOf = new HashMap<>();
+        // Filter groups by slot, readable without the monitor
+        private volatile FilterGroup[] groupSlots = new FilterGroup[0];
+        // The groups whose filter passed the message being fanned out
+        private final List<FilterGroup> matchedGroups = new ArrayList<>();
+        // Filter tests, those that passed, and the time spent testing
+        final LongAdder filterTests = new LongAdder();
+        final LongAdder filterPasses = new LongAdder();
+        final LongAdder filterNanos = new LongAdder();
+        // Streamed messages completed and their payload bytes, as received
+        final LongAdder streams = new LongAdder();
+        final LongAdder streamBytes = new LongAdder();
+        Set<String> onlineSubscribers = ConcurrentHashMap.newKeySet();
+        // Null when persistence is off or the log could not be opened
+        final CommitLog log;
+        // Set under the monitor once the topic is deleted along with its log
+        private boolean deleted;
+        // Ring of recent messages; sequence s is at s % history.length
+        final Delivery[] history = new Delivery[Math.max(1, TOPIC_HISTORY)];
+        long nextSequence;
+        // First sequence held in history
+        long historyStart;
+        final LongAdder replayHits = new LongAdder();
+        final LongAdder replayMisses = new LongAdder();
+        // Peer catch-ups in progress, and subscribers resumed meanwhile
+        int catchUps;
+        final Map<ClientHandler, Long> behind = new HashMap<>();
+        // Set while a new owner catches up on the topic; it numbers no publishes until then
+        boolean takingOver;
+        // Messages published and copies queued, with a recent rate
+        final LongAdder published = new LongAdder();
+        final LongAdder fanout = new LongAdder();
+        volatile double publishRate;
+        private long ratePublished;
 
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
+        Topic(UUID topicId, String name, String publisherName) {
+            this.name = name;
+            this.publisherName = publisherName;
+            this.log = openLog(topicId);
+            this.nextSequence = log != null ? log.endOffset() : 0;
+            this.historyStart = nextSequence;
         }
 
-        @Override
-        public void run() {
-            try {
-                out = new PrintWriter(socket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                String inputLine;
-                while ((inputLine = in.readLine()) != null) {
-                    handleClientMessage(inputLine);
+        // Number, log and fan out a message; callers hold the monitor
+        Delivery publish(UUID topicId, String content, String timestamp, long ingressNanos, FilterResults tested) {
+            Delivery delivery = record(topicId, content, timestamp);
+            relay(delivery, ingressNanos, tested);
+            return delivery;
+        }
+
+        // Fan out to local subscribers
+        void relay(Delivery delivery, long ingressNanos, FilterResults tested) {
+            int recipients = unfiltered.size() + (filterGroups.isEmpty() ? 0 : matchFilters(delivery.content, tested));
+            fanout.add(recipients);
+            boolean tracked = delivery.sequence % LATENCY_SAMPLE_INTERVAL == 0 && recipients > 0;
+            if (tracked) delivery.expectWrites(ingressNanos, recipients);
+            for (ClientHandler subscriber : unfiltered) {
+                relayTo(subscriber, delivery, tracked);
+            }
+            for (FilterGroup group : matchedGroups) {
+                for (ClientHandler subscriber : group.members) {
+                    relayTo(subscriber, delivery, tracked);
                 }
-            } catch (IOException e) {
-                System.out.println("Error handling client: " + e.getMessage());
-            } finally {
-                cleanupConnection();
             }
+            matchedGroups.clear();
+            if (tracked) writeCompleted(delivery);
         }
 
-        private void printConnectedPublishers(){
-            System.out.println("Publishers members:");
-            for (String publisher : connectedPublishers){
-                System.out.println(publisher);
+        // Pass a caught-up message to subscribers that resumed before it
+        void relayCaughtUp(Delivery delivery) {
+            for (Map.Entry<ClientHandler, Long> entry : behind.entrySet()) {
+                MessageFilter filter = filterOf(entry.getKey());
+                if (delivery.sequence >= entry.getValue() && (filter == null || filter.test(delivery.content))) {
+                    entry.getKey().deliver(delivery);
+                }
             }
         }
 
-        private void handlePublisherConnection(boolean isBroadcast) {
-            synchronized (connectedPublishers) {
-                System.out.println("before_Connect_AMOUNTTTTT: " + publisherAmount);
-                System.out.println("before_CONNECT_MAP_AMOUNT: " + connectedPublishers.size());
-                System.out.println("before_CONNECT_MAP_members: ");
-                printConnectedPublishers();
-                if (isBroadcast){
-                    publisherAmount +=1;
-                    connectedPublishers.add(clientName);
-                    System.out.println("isBroadcast_Connect_AMOUNTTTTT: " + publisherAmount);
-                    System.out.println("isBroadcast_CONNECT_MAP_AMOUNT: " + connectedPublishers.size());
-                    System.out.println("isBroadcast_CONNECT_MAP_members: ");
-                    printConnectedPublishers();
-                    return;
-                }
-                if (connectedPublishers.size() >= MAX_PUBLISHERS) {
-                    sendError("Max publishers reached");
-                    System.out.println("Amount of publishers: " + publisherAmount);
-                    return;
-                }
-                if (connectedPublishers.contains(clientName)) {;
-                    sendError("Publisher name already in use");
-                    return;
-                }
-                isPublisher = true;
-                connectedPublishers.add(clientName);
-                System.out.println("Publisher connected: " + clientName);
-                publisherAmount +=1;
-                System.out.println("after_Connect_AMOUNTTTTT: " + publisherAmount);
-                System.out.println("after_CONNECT_MAP_AMOUNT: " + connectedPublishers.size());
-                System.out.println("after_CONNECT_MAP_members: ");
-                printConnectedPublishers();
-                broadcastToOtherBrokers("PUBLISHER:" +clientName);
-                
-                
-                sendSuccess("Connected as publisher");
-                // broadcastToOtherBrokers("PUBLISHER:" + clientName);
+        // One link finished catching us up; callers hold the topic's monitor
+        void caughtUp() {
+            if (--catchUps > 0) return;
+            behind.clear();
+            takingOver = false;
+        }
+
+        private void relayTo(ClientHandler subscriber, Delivery delivery, boolean tracked) {
+            if (tracked) {
+                subscriber.sendTracked(delivery.encoded(subscriber.binary), delivery);
+            } else {
+                subscriber.deliver(delivery);
             }
-            
         }
 
-        private void handleSubscriberConnection(boolean isBroadcast) {
-            
-            synchronized(connectedSubscribers){
-                System.out.println("berofre_Connect_AMOUNTTTTT: " + subscriberAmount);
-                System.out.println("before_CONNECT_MAP_AMOUNT: " + connectedSubscribers.size());
-                if (isBroadcast){
-                    subscriberAmount +=1;
-                    connectedSubscribers.add(clientName);
-                    return;
+        // Test filters outside the monitor; null without filtered subscribers
+        FilterResults testFilters(List<String> contents) {
+            FilterGroup[] groups = groupSlots;
+            if (groups.length == 0) return null;
+            long start = System.nanoTime();
+            boolean[][] passed = new boolean[groups.length][contents.size()];
+            int passes = 0;
+            for (int g = 0; g < groups.length; g++) {
+                for (int i = 0; i < passed[g].length; i++) {
+                    passed[g][i] = groups[g].filter.test(contents.get(i));
+                    if (passed[g][i]) passes++;
                 }
-                if ( connectedSubscribers.size() >= MAX_SUBSCRIBERS) {
-                    sendError("Max subscribers reached");
-                    System.out.println("Amount of subscribers: " + subscriberAmount);
-                    return;
-                }
-                if (connectedSubscribers.contains(clientName)) {
-                    sendError("Subscriber name already in use");
-                    return;
-                }
-                isPublisher = false;
-                connectedSubscribers.add(clientName);
-                System.out.println("Subscriber connected: " + clientName);
-                subscriberAmount +=1;
-                System.out.println("after_Connect_AMOUNTTTTT: " + subscriberAmount);
-                System.out.println("after_CONNECT_MAP_AMOUNT: " + connectedSubscribers.size());
-                broadcastToOtherBrokers("SUBSCRIBER:" + clientName);
-                sendSuccess("Connected as subscriber");
-            
-            // broadcastToOtherBrokers("SUBSCRIBER:" + clientName);
+            }
+            filterNanos.add(System.nanoTime() - start);
+            filterTests.add((long) groups.length * contents.size());
+            filterPasses.add(passes);
+            return new FilterResults(groups, passed);
         }
-    }
 
-        private void handleClientMessage(String message) {
-            String orginalMessage = message;
-            System.out.println("Received message: " + message);
-            // String[] parts = message.split(":", 3);
-            ArrayList<String> parts = new ArrayList<>();
-            for (int i =0;;i++){
-                
-                if (message.indexOf(":") == -1){
-                    parts.add(message);
-                    // System.out.println("Message: " + parts.get(i));
-                    break;
-                }
+        FilterResults testFilters(String content) {
+            return testFilters(Collections.singletonList(content));
+        }
 
-                parts.add(message.substring(0, message.indexOf(":")));
-                // System.out.println("Message: " + parts.get(i));
-                message = message.substring(message.indexOf(":") + 1, message.length());
-            }
-            boolean isBroadcast = false;
-            if (parts.get(0).equals("Broadcast")) {
-                parts.remove(0);
-                isBroadcast = true;
-            }
-            // System.out.println("Parts sizee: " + parts.size());
-            switch (parts.get(0)) {
-                case "NEWTOPIC":
-                    createTopic(UUID.fromString(parts.get(1)), parts.get(2), isBroadcast, parts);
-                    break;
-                case "PUBLISHER":
-                    clientName = parts.get(1);
-                    handlePublisherConnection(isBroadcast);
-                    break;
-                case "SUBSCRIBER":
-                    clientName = parts.get(1);
-                    handleSubscriberConnection(isBroadcast);
-                    break;
-                case "CREATETOPIC":
-                    createTopic(UUID.fromString(parts.get(1)), parts.get(2), isBroadcast, parts);
-                    break;
-                case "PUBLISH":
-                    publish(UUID.fromString(parts.get(1)), parts.get(2), isBroadcast, parts);
-                    break;
-                case "SUBSCRIBE":
-                    subscribe(UUID.fromString(parts.get(1)), isBroadcast, parts);
-                    break;
-                case "UNSUBSCRIBE":
-                    unsubscribe(UUID.fromString(parts.get(1)), isBroadcast, parts);
-                    break;
-                case "GETSUBSCRIBERCOUNT":
-                    getSubscriberCount(UUID.fromString(parts.get(1)), isBroadcast);
-                    break;
-                case "DELETETOPIC":
-                    deleteTopic(UUID.fromString(parts.get(1)), isBroadcast,parts);
-                    break;
-                case "LISTTOPICS":
-                    listTopics();
-                    break;
-                case "AMOUNT":
-                    publisherAmount = Integer.parseInt(parts.get(1));
-                    subscriberAmount = Integer.parseInt(parts.get(2));
-                    break;
-                case "EXIT":
-                    System.out.println("Client disconnected: " + clientName);
-                    System.out.println("isBroadcast: " + isBroadcast);
-                    System.out.println("parts: " + parts.get(1));
-                    cleanupConnection();
-                    if (parts.get(1).equals("PUBLISHER")){
-                        System.out.println("Amount of publishers: " + publisherAmount);
-                        publisherAmount -=1;
-                        System.out.println("Amount of publishers-1: " + publisherAmount);
-                        if (!isBroadcast){
-                            broadcastToOtherBrokers("EXIT:PUBLISHER:"+ publisherAmount);
-                        }
-                        
-                    }
-                    else if (parts.get(1).equals("SUBSCRIBER")){
-                        
-                        System.out.println("Amount of subscribers: " + subscriberAmount);
-                        subscriberAmount -=1;
-                        System.out.println("Amount of subscribers-1: " + subscriberAmount);
-                        if (!isBroadcast){
-                            broadcastToOtherBrokers("EXIT:SUBSCRIBER:"+ subscriberAmount);
-                        }
-                    }
-                    break;
-                case "REMOVE":
-                    if (parts.get(1).equals("PUBLISHER")){
-                        connectedPublishers.remove(parts.get(2));
-                    }else if (parts.get(1).equals("SUBSCRIBER")){
-                        connectedSubscribers.remove(parts.get(2));
-                    }
-                    break;
-                default:
-                    sendError("Invalid command");
-            }
+        // Whether the group's filter passes message i, testing it if needed
+        private boolean passes(FilterGroup group, FilterResults tested, int i, String content) {
+            if (tested != null && tested.tested(group)) return tested.passed[group.slot][i];
+            long start = System.nanoTime();
+            boolean passed = group.filter.test(content);
+            filterNanos.add(System.nanoTime() - start);
+            filterTests.increment();
+            if (passed) filterPasses.increment();
+            return passed;
         }
 
-        private void createTopic(UUID topicId, String topicName, boolean isBroadcast, ArrayList<String> parts) {
-            if(isBroadcast){
-                if (topics.containsKey(topicId)) {
-                    sendError("Topic ID already exists");
-                    return;
+        // Collects the groups whose filter passes into matchedGroups; returns their size
+        private int matchFilters(String content, FilterResults tested) {
+            int recipients = 0;
+            for (FilterGroup group : filterGroups.values()) {
+                if (passes(group, tested, 0, content)) {
+                    matchedGroups.add(group);
+                    recipients += group.members.size();
                 }
-                topics.put(topicId, new Topic(topicName, parts.get(3)));
             }
-                
-            
-            if(!isBroadcast){
-                if (topics.containsKey(topicId)) {
-                    sendError("Topic ID already exists");
-                    return;
-                }
-                topics.put(topicId, new Topic(topicName, clientName));
-                broadcastToOtherBrokers("NEWTOPIC:" + topicId + ":" + topicName + ":" + clientName);
+            return recipients;
+        }
+
+        // The deliveries the group's filter passes, for its share of a batch
+        private Delivery[] passing(FilterGroup group, Delivery[] deliveries, FilterResults tested) {
+            Delivery[] passed = new Delivery[deliveries.length];
+            int count = 0;
+            for (int i = 0; i < deliveries.length; i++) {
+                if (passes(group, tested, i, deliveries[i].content)) passed[count++] = deliveries[i];
             }
-                
-            System.out.println("New topic created: " + topicName + " (ID: " + topicId + ")");
-            sendSuccess("Topic created");
+            return count == passed.length ? passed : Arrays.copyOf(passed, count);
         }
 
-        private void publish(UUID topicId, String content, boolean isBroadcast, ArrayList<String> parts) {
-            Topic topic = topics.get(topicId);
-            if (topic == null) {
-                sendError("Topic not found");
-                return;
+        // Like publish, for several messages sharing one buffer
+        Delivery[] publishBatch(UUID topicId, List<String> contents, String timestamp, long ingressNanos, FilterResults tested) {
+            Delivery[] deliveries = new Delivery[contents.size()];
+            for (int i = 0; i < deliveries.length; i++) {
+                deliveries[i] = record(topicId, contents.get(i), timestamp);
             }
-            if (!topic.publisherName.equals(parts.get(3))) {
-                System.out.println(topic.publisherName+" "+parts.get(3));
-                sendError("Not authorized to publish to this topic");
-                return;
+            int recipients = unfiltered.size();
+            long copies = (long) deliveries.length * unfiltered.size();
+            for (FilterGroup group : filterGroups.values()) {
+                group.batch = passing(group, deliveries, tested);
+                if (group.batch.length == 0) continue;
+                matchedGroups.add(group);
+                recipients += group.members.size();
+                copies += (long) group.batch.length * group.members.size();
             }
-            if (content.length() > MAX_MESSAGE_LENGTH) {
-                sendError("Message too long (max " + MAX_MESSAGE_LENGTH + " characters)");
-                return;
+            fanout.add(copies);
+            if (recipients == 0) {
+                matchedGroups.clear();
+                return deliveries;
             }
-            String timestamp = new SimpleDateFormat("dd/MM HH:mm:ss").format(new Date());
-            String formattedMessage = String.format("%s %s:%s: %s", timestamp, topicId, topic.name, content);
-            for (ClientHandler subscriber : topic.subscribers) {
-                subscriber.sendMessage(formattedMessage);
+            Delivery sampled = deliveries[0];
+            sampled.expectWrites(ingressNanos, recipients);
+            sendBatch(unfiltered, deliveries, sampled);
+            for (FilterGroup group : matchedGroups) {
+                sendBatch(group.members, group.batch, sampled);
+                group.batch = null;
             }
-            if(!isBroadcast)
-                broadcastToOtherBrokers("PUBLISH:" + topicId + ":" + content+ ":" + clientName);
-            System.out.println("Message published to topic: " + topic.name + " (ID: " + topicId + ")");
-            sendSuccess("Message published");
+            matchedGroups.clear();
+            writeCompleted(sampled);
+            return deliveries;
         }
 
-        private void subscribe(UUID topicId, boolean isBroadcast, ArrayList<String> parts) {
-            Topic topic = topics.get(topicId);
-            if (topic == null) {
-                sendError("Topic not found");
-                return;
-            }
-            System.out.println(this.clientName+" "+port);
-            System.out.println("Client " + clientName +" subscribed to topic: " + topic.name + " (ID: " + topicId + ")");
-            if(!isBroadcast) {
-                topic.onlineSubscribers.add(this.clientName+" "+port);
-                topic.subscribers.add(this);
-                broadcastToOtherBrokers("SUBSCRIBE:" + topicId + ":" + this.clientName + ":" + port);
-            }else {
-                topic.onlineSubscribers.add(parts.get(2)+" "+parts.get(3));
+        // Queues the messages to each of the clients as one buffer, encoded at most once per protocol
+        private void sendBatch(Set<ClientHandler> recipients, Delivery[] deliveries, Delivery sampled) {
+            ByteBuffer binaryBatch = null;
+            ByteBuffer textBatch = null;
+            for (ClientHandler subscriber : recipients) {
+                if (subscriber.binary) {
+                    if (binaryBatch == null) binaryBatch = Delivery.concat(deliveries, true);
+                    subscriber.sendTracked(binaryBatch.duplicate(), sampled);
+                } else {
+                    if (textBatch == null) textBatch = Delivery.concat(deliveries, false);
+                    subscriber.sendTracked(textBatch.duplicate(), sampled);
+                }
             }
-            sendSuccess("SUBSCRIBED:" + topicId + ":" + topic.name+ ":" + topic.publisherName);
-
         }
 
-        private void unsubscribe(UUID topicId, boolean isBroadcast, ArrayList<String> parts) {
-            Topic topic = topics.get(topicId);
-            if (topic == null) {
-                sendError("Topic not found");
-                return;
+        // Forward a stream chunk to unfiltered binary subscribers
+        void relayChunk(StreamChunk chunk) throws IOException {
+            streamBytes.add(chunk.payload.length);
+            if (chunk.last()) streams.increment();
+            for (ClientHandler subscriber : unfiltered) {
+                if (subscriber.binary) subscriber.sendBytes(chunk.encoded(subscriber.deflate, false));
             }
-            topic.subscribers.remove(this);
-            System.out.println("Client " + clientName + " unsubscribed from topic: " + topic.name + " (ID: " + topicId + ")");
-            if(!isBroadcast) {
-                topic.onlineSubscribers.remove(this.clientName+" "+port);
-                topic.subscribers.remove(this);
-                broadcastToOtherBrokers("UNSUBSCRIBE:" + topicId + ":" + this.clientName + ":" + port);
-            }else {
-                topic.onlineSubscribers.remove(parts.get(2)+" "+parts.get(3));
+            if (chunk.index == 0 && !BinaryProtocol.CHUNK_ABORT.equals(chunk.state)) {
+                String notice = "Stream " + chunk.streamId + " on topic " + name
+                        + " not delivered: streams reach only binary subscribers without a filter";
+                for (ClientHandler subscriber : streamless()) {
+                    subscriber.sendCommand("ERROR", notice);
+                }
             }
-            sendSuccess("UNSUBSCRIBED:"+topicId + ":" + topic.name+ ":" + topic.publisherName);
         }
 
-        private void getSubscriberCount(UUID topicId, boolean isBroadcast) {
-            Topic topic = topics.get(topicId);
-            if (topic == null) {
-                sendError("Topic not found");
-                return;
+        // The subscribers a stream does not reach
+        private List<ClientHandler> streamless() {
+            List<ClientHandler> missed = new ArrayList<>();
+            synchronized (this) {
+                for (ClientHandler subscriber : unfiltered) {
+                    if (!subscriber.binary) missed.add(subscriber);
+                }
+                for (FilterGroup group : filterGroups.values()) {
+                    missed.addAll(group.members);
+                }
             }
-            sendMessage("SUBSCRIBERCOUNT:" + topic.onlineSubscribers.size());
-
+            return missed;
         }
 
-        private void deleteTopic(UUID topicId, boolean isBroadcast, ArrayList<String> parts) {
-            Topic topic = topics.get(topicId);
-            if (topic == null) {
-                sendError("Topic not found");
-                return;
-            }
-            if (!topic.publisherName.equals(parts.get(2))) {
-                sendError("Not authorized to delete this topic");
-                return;
-            }
-            for (ClientHandler subscriber : topic.subscribers) {
-                subscriber.sendMessage("TOPICDELETED:" + topicId + ":" + topic.name);
-            }
-            topics.remove(topicId);
-            if(!isBroadcast)
-                broadcastToOtherBrokers("DELETETOPIC:" + topicId + ":" + clientName);
-            System.out.println("Topic deleted: " + topic.name + " (ID: " + topicId + ")");
-            sendSuccess("Topic deleted");
+        // Numbers a message and appends it to the log and the history
+        private Delivery record(UUID topicId, String content, String timestamp) {
+            Delivery delivery = new Delivery(topicId, name, content, timestamp, nextSequence);
+            store(delivery);
+            return delivery;
         }
 
-        private void listTopics() {
-            if (topics.isEmpty()) {
-                sendMessage("TOPICLIST:EMPTY");
-            } else {
-                StringBuilder topicList = new StringBuilder("TOPICLIST:");
-                for (Map.Entry<UUID, Topic> entry : topics.entrySet()) {
-                    topicList.append(entry.getKey()).append("|")
-                             .append(entry.getValue().name).append("|")
-                             .append(entry.getValue().publisherName).append(",");
+        // Record a message a peer numbered; false for duplicates
+        boolean recordRelayed(Delivery delivery) {
+            if (delivery.sequence < nextSequence) return false;
+            if (delivery.sequence > nextSequence) {
+                LOG.warn("Topic %s missed sequences %d to %d", name, nextSequence, delivery.sequence - 1);
+                if (log != null && !deleted) {
+                    try {
+                        log.skipTo(delivery.sequence);
+                    } catch (IOException e) {
+                        LOG.error("Error skipping commit log of topic %s: %s", name, e.getMessage());
+                    }
                 }
-                topicList.setLength(topicList.length() - 1);
-                sendMessage(topicList.toString());
+                nextSequence = delivery.sequence;
+                historyStart = nextSequence;
             }
+            store(delivery);
+            return true;
         }
 
-        private void sendMessage(String message) {
-            out.println(message);
-            out.flush();
+        private void store(Delivery delivery) {
+            if (log != null && !deleted) {
+                try {
+                    log.append(delivery.encoded(true));
+                } catch (IOException e) {
+                    LOG.error("Error appending to commit log of topic %s: %s", name, e.getMessage());
+                }
+            }
+            history[(int) (nextSequence % history.length)] = delivery;
+            nextSequence++;
+            published.increment();
         }
 
-        private void sendSuccess(String message) {
-            String successMessage = "SUCCESS:" + message;
-            System.out.println("Sending success response: " + successMessage);
-            sendMessage(successMessage);
-        }
-        
-        private void sendError(String message) {
-            String errorMessage = "ERROR:" + message;
-            System.out.println("Sending error response: " + errorMessage);
-            sendMessage(errorMessage);
+        // Both return whether interest changed; callers hold the monitor
+        boolean addSubscriber(ClientHandler subscriber) {
+            return addSubscriber(subscriber, null);
         }
 
-        private void cleanupConnection() {
-            try {
-                if (socket != null) socket.close();
-                if (isPublisher) {
-                    connectedPublishers.remove(clientName);
-                    System.out.println("DISCONNECT_MAP_AMOUNT: " + connectedPublishers.size());
-                    System.out.println("Publisher disconnected: " + clientName);
-                    broadcastToOtherBrokers("REMOVE:PUBLISHER:" + clientName);
-        
-                    Iterator<Map.Entry<UUID, Topic>> iterator = topics.entrySet().iterator();
-                    while (iterator.hasNext()) {
-                        Map.Entry<UUID, Topic> entry = iterator.next();
-                        Topic topic = entry.getValue();
-                        if (topic.publisherName.equals(clientName)) {
-                            deleteTopic(entry.getKey(), false, new ArrayList<>(Arrays.asList("DELETETOPIC", entry.getKey().toString(), clientName)));
-                        }
-                    }
-                } else {
-                    connectedSubscribers.remove(clientName);
-                    System.out.println("DISCONNECT_MAP_AMOUNT: " + connectedSubscribers.size());
-                    System.out.println("Subscriber disconnected: " + clientName);
-                    broadcastToOtherBrokers("REMOVE:SUBSCRIBER:" + clientName);
-                }
-        
-                for (Topic topic : topics.values()) {
-                    topic.subscribers.remove(this);
+        // Subscribing again replaces the subscriber's filter
+        boolean addSubscriber(ClientHandler subscriber, MessageFilter filter) {
+            detachFilter(subscriber);
+            if (filter == null) {
+                unfiltered.add(subscriber);
+            } else {
+                unfiltered.remove(subscriber);
+                FilterGroup group = filterGroups.get(filter.expression);
+                if (group == null) {
+                    group = new FilterGroup(filter);
+                    filterGroups.put(filter.expression, group);
+                    resetSlots();
                 }
-            } catch (IOException e) {
-                System.out.println("Error closing client connection: " + e.getMessage());
+                group.members.add(subscriber);
+                groupOf.put(subscriber, group);
             }
+            return subscribers.add(subscriber) && subscribers.size() == 1;
         }
-    }
-
-    private class BrokerHandler extends Thread {
-        private final Socket socket;
-        private final int otherBrokerId;
-        private PrintWriter out;
-        private BufferedReader in;
 
-        public BrokerHandler(Socket socket, int otherBrokerId) {
-            this.socket = socket;
-            this.otherBrokerId = otherBrokerId;
+        boolean removeSubscriber(ClientHandler subscriber) {
+            detachFilter(subscriber);
+            behind.remove(subscriber);
+            unfiltered.remove(subscriber);
+            return subscribers.remove(subscriber) && subscribers.isEmpty();
         }
 
-        @Override
-        public void run() {
-            try {
-                out = new PrintWriter(socket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        MessageFilter filterOf(ClientHandler subscriber) {
+            FilterGroup group = groupOf.get(subscriber);
+            return group == null ? null : group.filter;
+        }
 
-                String inputLine;
-                while ((inputLine = in.readLine()) != null) {
-                    handleBrokerMessage(inputLine);
-                }
-            } catch (IOException e) {
-                System.out.println("Connection lost with Broker " + otherBrokerId);
-            } finally {
-                cleanupBrokerConnection();
+        private void detachFilter(ClientHandler subscriber) {
+            FilterGroup group = groupOf.remove(subscriber);
+            if (group != null && group.members.remove(subscriber) && group.members.isEmpty()) {
+                filterGroups.remove(group.filter.expression);
+                resetSlots();
             }
         }
 
-        private void handleBrokerMessage(String message) {
-            String[] parts = message.split(":", 4);
-            if (parts.length < 2) {
-                System.out.println("Invalid message format from broker: " + message);
-                return;
+        private void resetSlots() {
+            FilterGroup[] groups = filterGroups.values().toArray(new FilterGroup[0]);
+            for (int i = 0; i < groups.length; i++) {
+                groups[i].slot = i;
             }
+            groupSlots = groups;
+        }
 
-            String command = parts[0];
-            switch (command) {
-                case "NEWTOPIC":
-                    handleNewTopic(parts);
-                    break;
-                case "DELETETOPIC":
-                    handleDeleteTopic(parts);
-                    break;
-                case "PUBLISH":
-                    handlePublish(parts);
-                    break;
-                default:
-                    System.out.println("Unknown command received from broker: " + command);
+        int filterGroupCount() {
+            synchronized (this) {
+                return filterGroups.size();
             }
         }
 
-        private void handleNewTopic(String[] parts) {
-            if (parts.length < 4) {
-                System.out.println("Invalid NEWTOPIC message format");
-                return;
-            }
+        long oldestRetained() {
+            return Math.max(historyStart, nextSequence - history.length);
+        }
+
+        void closeLog() {
+            if (log != null) log.close();
+        }
+
+        // Force the log under broker.logFsync=ALWAYS
+        void syncLog() {
+            if (log == null || !SYNC_APPENDS) return;
             try {
-                UUID topicId = UUID.fromString(parts[1]);
-                String topicName = parts[2];
-                String publisherName = parts[3];
-                if (!topics.containsKey(topicId)) {
-                    topics.put(topicId, new Topic(topicName, publisherName));
-                    System.out.println("New topic added from another broker: " + topicName + " (ID: " + topicId + ", Publisher: " + publisherName + ")");
-                } else {
-                    System.out.println("Topic already exists: " + topicName + " (ID: " + topicId + ")");
-                }
-            } catch (IllegalArgumentException e) {
-                System.out.println("Invalid topic ID in NEWTOPIC message: " + parts[1]);
+                log.force();
+            } catch (UncheckedIOException e) {
+                LOG.error("Error forcing commit log of topic %s: %s", name, e.getMessage());
             }
         }
 
-        private void handleDeleteTopic(String[] parts) {
-            if (parts.length < 2) {
-                System.out.println("Invalid DELETETOPIC message format");
-                return;
-            }
+        // Callers hold the topic's monitor, so no append is under way; later ones skip the log
+        void deleteLog() {
+            deleted = true;
+            if (log == null) return;
             try {
-                UUID topicId = UUID.fromString(parts[1]);
-                Topic removedTopic = topics.remove(topicId);
-                if (removedTopic != null) {
-                    System.out.println("Topic removed: " + removedTopic.name + " (ID: " + topicId + ")");
-                    // Notify subscribers about topic deletion
-                    for (ClientHandler subscriber : removedTopic.subscribers) {
-                        subscriber.sendMessage("TOPICDELETED:" + topicId + ":" + removedTopic.name);
-                    }
-                }
-            } catch (IllegalArgumentException e) {
-                System.out.println("Invalid topic ID in DELETETOPIC message: " + parts[1]);
+                log.delete();
+            } catch (IOException e) {
+                LOG.warn("Error deleting commit log of topic %s: %s", name, e.getMessage());
+            }
+        }
+    }
+
+    // Both update the publisher's set inside compute
+    private void indexTopic(String publisherName, UUID topicId) {
+        topicsByPublisher.compute(publisherName, (name, owned) -> {
+            if (owned == null) owned = ConcurrentHashMap.newKeySet();
+            owned.add(topicId);
+            return owned;
+        });
+    }
+
+    private void unindexTopic(String publisherName, UUID topicId) {
+        topicsByPublisher.computeIfPresent(publisherName, (name, owned) -> owned.remove(topicId) && owned.isEmpty() ? null : owned);
+    }
+
+    // Files a new topic under its name and subscribes the wildcard subscriptions it matches
+    private void nameTopic(UUID topicId, Topic topic) {
+        synchronized (topicNames) {
+            topicNames.add(topic.name, topicId);
+            for (ClientHandler subscriber : wildcardSubscriptions.matchPatterns(topic.name)) {
+                subscriber.subscribeMatched(topicId, topic);
+            }
+        }
+    }
+
+    // TOPICLIST body: id|name|publisher of every topic, comma separated, or EMPTY
+    private String topicList() {
+        if (topics.isEmpty()) return "EMPTY";
+        StringBuilder topicList = new StringBuilder();
+        for (Map.Entry<UUID, Topic> entry : topics.entrySet()) {
+            topicList.append(entry.getKey()).append("|")
+                     .append(entry.getValue().name).append("|")
+                     .append(entry.getValue().publisherName).append(",");
+        }
+        topicList.setLength(topicList.length() - 1);
+        return topicList.toString();
+    }
+
+    // Opens (or reopens, recovering earlier segments) the commit log of a topic
+    private CommitLog openLog(UUID topicId) {
+        if (LOG_DIR.isEmpty()) return null;
+        try {
+            return new CommitLog(Paths.get(LOG_DIR, "broker-" + brokerId, topicId.toString()), LOG_CONFIG);
+        } catch (IOException e) {
+            LOG.error("Error opening commit log for topic %s: %s", topicId, e.getMessage());
+            return null;
+        }
+    }
+
+    private void flushLogs() {
+        for (Topic topic : topics.values()) {
+            if (topic.log != null) topic.log.flush();
+        }
+    }
+
+    // Publish timestamps only change once a second, so each second is formatted once and shared
+    private static final class CachedTimestamp {
+        final long second;
+        final String text;
+
+        CachedTimestamp(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    private static volatile CachedTimestamp cachedTimestamp = new CachedTimestamp(-1, "");
+
+    private static String timestamp() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedTimestamp cached = cachedTimestamp;
+        if (cached.second != second) {
+            cached = new CachedTimestamp(second, TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(second)));
+            cachedTimestamp = cached;
+        }
+        return cached.text;
+    }
+
+    // Broker constructor
+    public Broker(int brokerId) {
+        this.brokerId = brokerId;
+        long incarnation = System.currentTimeMillis();
+        this.publisherCount = new PNCounter(brokerId, incarnation);
+        this.subscriberCount = new PNCounter(brokerId, incarnation);
+        this.port = Integer.getInteger("broker.port", brokerId < BROKER_PORTS.length ? BROKER_PORTS[brokerId] : 5001 + brokerId);
+        ring.add(brokerId);
+    }
+
+    // Stay joined to the directory service, rejoining if the session is lost
+    private void joinDirectoryService() {
+        while (!scheduler.isShutdown()) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(DIRECTORY_SERVICE_HOST, DIRECTORY_SERVICE_PORT), CONNECTION_TIMEOUT_MS);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                String joinMessage = "JOIN:" + brokerId + ":" + ADVERTISED_HOST + ":" + port;
+                LOG.info("Joining through the directory service: %s", joinMessage);
+                out.println(joinMessage);
+                String response = in.readLine();
+                if (response == null || !response.startsWith("SUCCESS")) {
+                    throw new IOException("Join refused: " + response);
+                }
+                directorySocket = socket;
+                directorySession = out;
+                String event;
+                while ((event = in.readLine()) != null) {
+                    membershipEvent(event);
+                }
+                if (!scheduler.isShutdown()) LOG.warn("Directory service session closed");
+            } catch (IOException e) {
+                if (!scheduler.isShutdown()) LOG.warn("Error connecting to directory service: %s", e.getMessage());
+            } finally {
+                directorySession = null;
+                directorySocket = null;
+            }
+            try {
+                Thread.sleep(HEARTBEAT_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void sendHeartbeat() {
+        PrintWriter session = directorySession;
+        if (session != null) session.println("HEARTBEAT");
+    }
+
+    // Apply a MEMBERS, JOINED or LEFT event
+    private void membershipEvent(String event) {
+        LOG.debug("Membership event: %s", event);
+        String[] parts = event.split(":", 2);
+        try {
+            switch (parts[0]) {
+                case "MEMBERS":
+                    Map<Integer, String> members = new HashMap<>();
+                    for (String member : parts[1].split(",")) {
+                        if (member.isEmpty()) continue;
+                        String[] idAddress = member.split("=", 2);
+                        members.put(Integer.parseInt(idAddress[0]), idAddress[1]);
+                    }
+                    brokerAddresses.keySet().retainAll(members.keySet());
+                    for (int member : ring.members()) {
+                        if (member != brokerId && !members.containsKey(member)) updateRing(member, false);
+                    }
+                    members.forEach(this::brokerJoined);
+                    break;
+                case "JOINED":
+                    String[] idAddress = parts[1].split(":", 2);
+                    brokerJoined(Integer.parseInt(idAddress[0]), idAddress[1]);
+                    break;
+                case "LEFT":
+                    brokerLeft(Integer.parseInt(parts[1]));
+                    break;
+                default:
+                    LOG.warn("Unknown membership event: %s", event);
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Malformed membership event %s: %s", event, e.getMessage());
+        }
+    }
+
+    private void brokerJoined(int otherBrokerId, String address) {
+        if (otherBrokerId == brokerId) return;
+        String previous = brokerAddresses.put(otherBrokerId, address);
+        if (!address.equals(previous)) LINK_LOG.info("Broker %d joined at %s", otherBrokerId, address);
+        updateRing(otherBrokerId, true);
+        if (otherBrokerId > brokerId) clientHandlerExecutor.execute(() -> connectToBroker(otherBrokerId));
+    }
+
+    // Close the link now; the peer's entries go with it
+    private void brokerLeft(int otherBrokerId) {
+        brokerAddresses.remove(otherBrokerId);
+        LINK_LOG.info("Broker %d left", otherBrokerId);
+        updateRing(otherBrokerId, false);
+        BrokerHandler handler = brokerHandlers.get(otherBrokerId);
+        if (handler != null) handler.close();
+    }
+
+    // Start broker
+    public void start() {
+        new Thread(this::startServer).start();
+        new Thread(this::joinDirectoryService).start();
+        heartbeats.scheduleAtFixedRate(this::sendHeartbeat, HEARTBEAT_MS, HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+        // Redial members whose link dropped (5sec)
+        scheduler.scheduleWithFixedDelay(this::connectToOtherBrokers, 5, 5, TimeUnit.SECONDS);
+        if (!LOG_DIR.isEmpty() && LOG_CONFIG.fsync == CommitLog.FsyncPolicy.INTERVAL) {
+            scheduler.scheduleWithFixedDelay(this::flushLogs, LOG_FSYNC_INTERVAL_MS, LOG_FSYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        if (REPLICATION_REPORT_SECONDS > 0) {
+            scheduler.scheduleAtFixedRate(this::reportReplication, REPLICATION_REPORT_SECONDS, REPLICATION_REPORT_SECONDS, TimeUnit.SECONDS);
+        }
+        scheduler.scheduleAtFixedRate(this::sampleRates, RATE_WINDOW_SECONDS, RATE_WINDOW_SECONDS, TimeUnit.SECONDS);
+        if (STATS_REPORT_SECONDS > 0) {
+            scheduler.scheduleAtFixedRate(() -> STATS_LOG.info("%s", statsSnapshot()), STATS_REPORT_SECONDS, STATS_REPORT_SECONDS, TimeUnit.SECONDS);
+        }
+        scheduler.scheduleWithFixedDelay(this::gossipCounts, COUNTER_GOSSIP_MS, COUNTER_GOSSIP_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Executor running ClientHandlers and BrokerHandlers, one task per connection
+    private static ExecutorService newConnectionExecutor() {
+        if ("virtual".equals(TRANSPORT_MODE)) {
+            try {
+                // Looked up reflectively so the broker still builds and runs on pre-21 runtimes
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                LOG.warn("Virtual threads not supported by this runtime, falling back to platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    // Start server
+    private void startServer() {
+        if ("nio".equals(TRANSPORT_MODE)) {
+            startEventLoopServer();
+            return;
+        }
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            LOG.info("Broker %d is running on port %d", brokerId, port);
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Socket clientSocket = serverSocket.accept();
+                    // Replies are small and flushed per batch; don't let Nagle hold them back
+                    clientSocket.setTcpNoDelay(true);
+                    clientHandlerExecutor.submit(new ClientHandler(clientSocket));
+                } catch (IOException e) {
+                    LOG.warn("Error accepting client connection: %s", e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Could not start server: %s", e.getMessage());
+        } finally {
+            shutdown();
+        }
+    }
+
+    // Start server in non-blocking mode
+    private void startEventLoopServer() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            eventLoops = new EventLoop[Math.max(1, EVENT_LOOP_THREADS)];
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop(i);
+                Thread loopThread = new Thread(eventLoops[i], "broker-" + brokerId + "-eventloop-" + i);
+                loopThread.setDaemon(true);
+                loopThread.start();
+            }
+            LOG.info("Broker %d is running on port %d (%d event loops)", brokerId, port, eventLoops.length);
+            int next = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    SocketChannel clientChannel = serverChannel.accept();
+                    clientChannel.configureBlocking(false);
+                    clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    eventLoops[next].register(clientChannel);
+                    next = (next + 1) % eventLoops.length;
+                } catch (IOException e) {
+                    LOG.warn("Error accepting client connection: %s", e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Could not start server: %s", e.getMessage());
+        } finally {
+            shutdown();
+        }
+    }
+
+    // Connect to other brokers; the lower id dials
+    private void connectToOtherBrokers() {
+        for (int otherBrokerId : brokerAddresses.keySet()) {
+            if (otherBrokerId > brokerId && !brokerHandlers.containsKey(otherBrokerId)) {
+                clientHandlerExecutor.execute(() -> connectToBroker(otherBrokerId));
+            }
+        }
+    }
+
+    // Dial one member unless a link to it is already up or being dialed
+    private void connectToBroker(int otherBrokerId) {
+        if (!dialing.add(otherBrokerId)) return;
+        try {
+            String address = brokerAddresses.get(otherBrokerId);
+            if (address == null || brokerHandlers.containsKey(otherBrokerId)) return;
+            String[] hostPort = address.split(":");
+            String host = hostPort[0];
+            int port = Integer.parseInt(hostPort[1]);
+            tryConnectToBroker(otherBrokerId, host, port);
+        } finally {
+            dialing.remove(otherBrokerId);
+        }
+    }
+
+    // Try to connect to other brokers
+    private void tryConnectToBroker(int otherBrokerId, String host, int port) {
+        try {
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), CONNECTION_TIMEOUT_MS);
+            BrokerHandler handler;
+            try {
+                handler = new BrokerHandler(socket, otherBrokerId, new BufferedInputStream(socket.getInputStream()));
+                handler.negotiate();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            handler.start();
+        } catch (IOException e) {
+            LINK_LOG.debug("Failed to connect to Broker %d. Will retry later.", otherBrokerId);
+        }
+    }
+
+    private class ClientHandler implements Runnable {
+        private final Socket socket;
+        private OutputStream out;
+        private InputStream in;
+        private String clientName;
+        private boolean isPublisher;
+        private boolean isBroker;
+        // The link a replicated command came over, null for client connections
+        private BrokerHandler link;
+        private int peerBrokerId;
+        // Set once a BROKER handshake hands this connection to a BrokerHandler
+        private volatile boolean handedOff;
+        // Set once the handshake negotiated binary framing; only touched by the connection's reader
+        private boolean binary;
+        private boolean offeredBinary;
+        // Set when the handshake also negotiated deflate-compressed chunks
+        boolean deflate;
+        private boolean offeredDeflate;
+        // Streams this publisher has under way, by stream id; only touched by the connection's reader
+        private final Map<String, OpenStream> openStreams = new HashMap<>();
+        // Correlation id of the command being handled, if it asked for a tagged reply
+        private String correlationId;
+        // Log records sent by the last streamLog, for the REPLAYED count
+        private long streamedRecords;
+        // Reused for every command read from this connection
+        private final Command command = new Command();
+
+        // Event loop transport state (null in blocking mode)
+        private final SocketChannel channel;
+        private final EventLoop eventLoop;
+        private SelectionKey key;
+        private ByteBuffer readBuffer;
+        // Frame partially written to the channel, kept out of the queue so it is never evicted mid-write
+        private ByteBuffer pendingWrite;
+        // Set while queued in pendingWrites, so a burst costs one wakeup
+        private final AtomicBoolean flushRequested = new AtomicBoolean();
+        // Set while this publisher or subscriber is counted in publisherCount or subscriberCount
+        private final AtomicBoolean counted = new AtomicBoolean();
+        // Bytes at the front of pendingWrite already paid for with credit
+        private int creditedBytes;
+
+        // Flow control credit, guarded by creditLock
+        private final ReentrantLock creditLock = new ReentrantLock();
+        private final Condition creditGranted = creditLock.newCondition();
+        private volatile boolean flowControlled;
+        private long frameCredit;
+        private long byteCredit;
+        private boolean stalled;
+        private final AtomicLong creditStalls = new AtomicLong();
+        // Backlog behind a full outbound queue, guarded by backlogLock
+        private final ReentrantLock backlogLock = new ReentrantLock();
+        private final ArrayDeque<ByteBuffer> backlog = new ArrayDeque<>();
+        private long backlogBytes;
+        private volatile int backlogFrames;
+        private int spilledFrames;
+        // The spill file, created on first use; only the spill task reads and writes it, under spillLock
+        private final ReentrantLock spillLock = new ReentrantLock();
+        private final AtomicBoolean spillScheduled = new AtomicBoolean();
+        private SpillFile spill;
+        private boolean spillClosed;
+        private volatile long spilledBytes;
+        // BLOCK policy: signalled once the backlog has drained
+        private final Condition backlogDrained = backlogLock.newCondition();
+        private final List<ClientHandler> blockedSenders = new ArrayList<>();
+        // Event loop: reasons reading is paused
+        private int readPauses;
+
+        // Frames waiting for this client's writer
+        private final ArrayBlockingQueue<ByteBuffer> outbound = new ArrayBlockingQueue<>(OUTBOUND_QUEUE_CAPACITY);
+        private final AtomicLong framesDropped = new AtomicLong();
+        private volatile int peakQueueDepth;
+        // Frames queued and dequeued, and tracked deliveries
+        private final AtomicLong framesQueued = new AtomicLong();
+        private final AtomicLong framesDequeued = new AtomicLong();
+        private final Queue<TrackedWrite> trackedWrites = new ConcurrentLinkedQueue<>();
+        // Topics this client subscribes to; updated under the topic's monitor
+        private final Set<UUID> subscribedTopics = ConcurrentHashMap.newKeySet();
+        // This client's wildcard subscriptions, changed under topicNames' monitor
+        private final Set<String> patterns = ConcurrentHashMap.newKeySet();
+        // When the command being handled was read, for the ack latency histogram
+        private long ingressNanos;
+        private Future<?> writerTask;
+
+        public ClientHandler(Socket socket) {
+            this.socket = socket;
+            this.channel = null;
+            this.eventLoop = null;
+        }
+
+        // Applies commands replicated over a broker link
+        public ClientHandler(BrokerHandler link) {
+            this.socket = null;
+            this.channel = null;
+            this.eventLoop = null;
+            this.isBroker = true;
+            this.binary = link.binary;
+            this.peerBrokerId = link.otherBrokerId;
+            this.link = link;
+        }
+
+        public ClientHandler(SocketChannel channel, EventLoop eventLoop) {
+            this.socket = null;
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+            this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+
+        @Override
+        public void run() {
+            try {
+                out = new BufferedOutputStream(socket.getOutputStream());
+                in = new BufferedInputStream(socket.getInputStream());
+                writerTask = clientHandlerExecutor.submit(this::drainOutbound);
+                blockedOn.set(new ArrayList<>());
+                while (!handedOff && (binary ? command.readFrame(in) : command.readLine(in))) {
+                    handleCommand(command);
+                    awaitBlockedClients();
+                }
+            } catch (IOException e) {
+                LOG.debug("Error handling client: %s", e.getMessage());
+            } finally {
+                blockedOn.remove();
+                if (!handedOff) cleanupConnection();
+            }
+            if (handedOff) {
+                writerTask.cancel(true);
+                startBrokerLink(socket, in);
+            }
+        }
+
+        // Admission reserves the name under the lock; replies follow outside it
+        private void handlePublisherConnection(boolean isBroadcast) {
+            // Other brokers' publishers are counted by gossip
+            if (isBroadcast) {
+                connectedPublishers.add(clientName);
+                LOG.debug("Publisher %s connected to another broker", clientName);
+                return;
+            }
+            String refusal = null;
+            publisherAdmissionLock.lock();
+            try {
+                if (publisherCount.value() >= MAX_PUBLISHERS) {
+                    refusal = "Max publishers reached";
+                } else if (!connectedPublishers.add(clientName)) {
+                    refusal = "Publisher name already in use";
+                } else {
+                    publisherCount.increment();
+                    isPublisher = true;
+                    counted.set(true);
+                }
+            } finally {
+                publisherAdmissionLock.unlock();
+            }
+            if (refusal != null) {
+                LOG.warn("Publisher %s refused: %s", clientName, refusal);
+                sendError(refusal);
+                return;
+            }
+            clients.add(this);
+            LOG.info("Publisher connected: %s", clientName);
+            LOG.debug("%d publishers: %s", publisherCount.value(), String.valueOf(connectedPublishers));
+            broadcastToOtherBrokers("PUBLISHER", clientName);
+            sendHandshakeSuccess("Connected as publisher");
+        }
+
+        private void handleSubscriberConnection(boolean isBroadcast) {
+            if (isBroadcast) {
+                connectedSubscribers.add(clientName);
+                LOG.debug("Subscriber %s connected to another broker", clientName);
+                return;
+            }
+            String refusal = null;
+            subscriberAdmissionLock.lock();
+            try {
+                if (subscriberCount.value() >= MAX_SUBSCRIBERS) {
+                    refusal = "Max subscribers reached";
+                } else if (!connectedSubscribers.add(clientName)) {
+                    refusal = "Subscriber name already in use";
+                } else {
+                    subscriberCount.increment();
+                    isPublisher = false;
+                    counted.set(true);
+                }
+            } finally {
+                subscriberAdmissionLock.unlock();
+            }
+            if (refusal != null) {
+                LOG.warn("Subscriber %s refused: %s", clientName, refusal);
+                sendError(refusal);
+                return;
+            }
+            clients.add(this);
+            LOG.info("Subscriber connected: %s", clientName);
+            LOG.debug("%d subscribers: %s", subscriberCount.value(), String.valueOf(connectedSubscribers));
+            broadcastToOtherBrokers("SUBSCRIBER", clientName);
+            sendHandshakeSuccess("Connected as subscriber");
+        }
+
+        private void handleCommand(Command command) {
+            ingressNanos = System.nanoTime();
+            if (LOG.isDebugEnabled()) LOG.debug("Received message: %s", command.toString());
+            // Pipelined publishes are acknowledged with their correlation id
+            correlationId = command.opcode() == BinaryProtocol.PUBLISHASYNC || command.opcode() == BinaryProtocol.PUBLISHBATCH
+                    || command.opcode() == BinaryProtocol.CHUNK ? command.field(1) : null;
+            boolean isBroadcast = command.isBroadcast();
+            // Over a link, only answer publishes forwarded to us as owner
+            if (isBroker && isBroadcast) correlationId = null;
+            UUID topicId = null;
+            if (command.hasTopic()) {
+                if (!command.topicValid()) {
+                    sendError("Invalid topic ID");
+                    return;
+                }
+                topicId = command.topicId();
+            }
+            switch (command.opcode()) {
+                case BinaryProtocol.NEWTOPIC:
+                case BinaryProtocol.CREATETOPIC:
+                    createTopic(topicId, command.field(0), isBroadcast, command.field(1));
+                    break;
+                case BinaryProtocol.PUBLISHER:
+                    clientName = command.field(0);
+                    offeredBinary = command.fieldEquals(1, BinaryProtocol.VERSION);
+                    offeredDeflate = command.fieldEquals(2, BinaryProtocol.DEFLATE);
+                    handlePublisherConnection(isBroadcast);
+                    break;
+                case BinaryProtocol.SUBSCRIBER:
+                    clientName = command.field(0);
+                    offeredBinary = command.fieldEquals(1, BinaryProtocol.VERSION);
+                    offeredDeflate = command.fieldEquals(2, BinaryProtocol.DEFLATE);
+                    handleSubscriberConnection(isBroadcast);
+                    break;
+                case BinaryProtocol.BROKER:
+                    // Link dialed by another broker: from here on the connection belongs to a BrokerHandler
+                    peerBrokerId = command.fieldInt(0);
+                    offeredBinary = command.fieldEquals(1, BinaryProtocol.VERSION);
+                    offeredDeflate = command.fieldEquals(2, BinaryProtocol.DEFLATE);
+                    adoptBrokerLink();
+                    break;
+                case BinaryProtocol.PUBLISH:
+                case BinaryProtocol.PUBLISHASYNC:
+                    publish(topicId, command, isBroadcast);
+                    break;
+                case BinaryProtocol.PUBLISHBATCH:
+                    publishBatch(command, isBroadcast);
+                    break;
+                case BinaryProtocol.CHUNK:
+                    streamChunk(topicId, command, isBroadcast);
+                    break;
+                case BinaryProtocol.SUBSCRIBE:
+                    subscribe(topicId, isBroadcast, command);
+                    break;
+                case BinaryProtocol.UNSUBSCRIBE:
+                    unsubscribe(topicId, isBroadcast, command);
+                    break;
+                case BinaryProtocol.PSUBSCRIBE:
+                    subscribePattern(command.field(0));
+                    break;
+                case BinaryProtocol.PUNSUBSCRIBE:
+                    unsubscribePattern(command.field(0));
+                    break;
+                case BinaryProtocol.GETSUBSCRIBERCOUNT:
+                    getSubscriberCount(topicId, isBroadcast);
+                    break;
+                case BinaryProtocol.DELETETOPIC:
+                    deleteTopic(topicId, isBroadcast, command.field(0));
+                    break;
+                case BinaryProtocol.LISTTOPICS:
+                    listTopics();
+                    break;
+                case BinaryProtocol.REPLAY:
+                    replay(topicId, command);
+                    break;
+                case BinaryProtocol.HISTORY:
+                    history(topicId);
+                    break;
+                case BinaryProtocol.STATS:
+                    sendSuccess("STATS:" + statsSnapshot());
+                    break;
+                case BinaryProtocol.CREDIT:
+                    grantCredit(command);
+                    break;
+                case BinaryProtocol.MESSAGE:
+                    // A message numbered by the broker that accepted it (or the topic's owner)
+                    if (isBroker) {
+                        relayFromPeer(link, topicId, command);
+                    }
+                    break;
+                case BinaryProtocol.ACK:
+                case BinaryProtocol.NACK:
+                    // The owner's answer to a publish we forwarded for one of our clients
+                    if (isBroker) {
+                        forwardAnswered(command.field(0), command.opcode() == BinaryProtocol.ACK, command.payloadText());
+                    } else {
+                        sendError("Invalid command");
+                    }
+                    break;
+                case BinaryProtocol.INTEREST:
+                    if (isBroker && command.fieldEquals(0, "1") && command.fieldCount() > 1) {
+                        catchUpPeer(topicId, command.field(1));
+                    } else if (isBroker) {
+                        updatePeerInterest(topicId, peerBrokerId, command.fieldEquals(0, "1"));
+                    }
+                    break;
+                case BinaryProtocol.CAUGHTUP:
+                    if (isBroker) {
+                        link.caughtUp(topicId);
+                    }
+                    break;
+                case BinaryProtocol.AMOUNT:
+                    // AMOUNT:<publisher counter>:<subscriber counter>, a peer's gossiped counter states
+                    if (isBroker) {
+                        Set<Integer> peers = brokerHandlers.keySet();
+                        publisherCount.merge(command.field(0), peers);
+                        subscriberCount.merge(command.field(1), peers);
+                    }
+                    break;
+                case BinaryProtocol.EXIT:
+                    LOG.debug("EXIT from %s (%s, relayed: %b)", clientName, command.field(0), isBroadcast);
+                    // Cleanup decrements the counters; relayed EXITs are ignored
+                    if (!isBroadcast) {
+                        cleanupConnection();
+                    }
+                    break;
+                case BinaryProtocol.REMOVE:
+                    if (command.fieldEquals(0, "PUBLISHER")){
+                        connectedPublishers.remove(command.field(1));
+                    }else if (command.fieldEquals(0, "SUBSCRIBER")){
+                        connectedSubscribers.remove(command.field(1));
+                    }
+                    break;
+                default:
+                    sendError("Invalid command");
+            }
+        }
+
+        private void createTopic(UUID topicId, String topicName, boolean isBroadcast, String publisherName) {
+            if(isBroadcast){
+                if (topics.containsKey(topicId)) {
+                    sendError("Topic ID already exists");
+                    return;
+                }
+                Topic topic = new Topic(topicId, topicName, publisherName);
+                synchronized (topic) {
+                    topics.put(topicId, topic);
+                    // A topic this broker owns may already have messages elsewhere
+                    if (OWNER_PARTITIONING && ring.owner(topicId) == brokerId) takeOver(topicId, topic);
+                }
+                indexTopic(publisherName, topicId);
+                nameTopic(topicId, topic);
+            }
+                
+            
+            if(!isBroadcast){
+                if (topics.containsKey(topicId)) {
+                    sendError("Topic ID already exists");
+                    return;
+                }
+                Topic topic = new Topic(topicId, topicName, clientName);
+                topics.put(topicId, topic);
+                indexTopic(clientName, topicId);
+                broadcastToOtherBrokers("NEWTOPIC", topicId.toString(), topicName, clientName);
+                nameTopic(topicId, topic);
+            }
+                
+            LOG.info("New topic created: %s (ID: %s)", topicName, topicId);
+            sendSuccess("Topic created");
+        }
+
+        private void publish(UUID topicId, Command command, boolean isBroadcast) {
+            Topic topic = topics.get(topicId);
+            if (topic == null) {
+                sendError("Topic not found");
+                return;
+            }
+            if (!command.fieldEquals(0, topic.publisherName)) {
+                LOG.debug("Publish to %s by %s refused, owner is %s", topic.name, command.field(0), topic.publisherName);
+                sendError("Not authorized to publish to this topic");
+                return;
+            }
+            String content = command.payloadText();
+            if (content.length() > MAX_MESSAGE_LENGTH) {
+                sendError("Message too long (max " + MAX_MESSAGE_LENGTH + " characters)");
+                return;
+            }
+            // Publishes from a link stay here, so they never bounce
+            int owner = OWNER_PARTITIONING && !isBroadcast && !isBroker ? ring.owner(topicId) : brokerId;
+            if (owner != brokerId) {
+                BrokerHandler ownerLink = brokerHandlers.get(owner);
+                if (ownerLink == null) {
+                    sendError(OWNER_UNAVAILABLE);
+                    return;
+                }
+                String publisherName = topic.publisherName;
+                forward(ownerLink, new PendingReply(this, correlationId, ingressNanos, null), null, false,
+                        forwardId -> ownerLink.encode("PUBLISHASYNC", topicId.toString(), publisherName, forwardId, content));
+                if (LOG.isDebugEnabled()) LOG.debug("Message for topic %s forwarded to its owner", topic.name);
+                return;
+            }
+            String timestamp = timestamp();
+            FilterResults tested = topic.testFilters(content);
+            boolean published = false;
+            synchronized (topic) {
+                if (!topic.takingOver) {
+                    Delivery delivery = topic.publish(topicId, content, timestamp, ingressNanos, tested);
+                    if (!isBroadcast)
+                        relayToPeers(topicId, new Delivery[] {delivery});
+                    published = true;
+                }
+            }
+            if (!published) {
+                sendError(OWNER_CATCHING_UP);
+                return;
+            }
+            topic.syncLog();
+            if (LOG.isDebugEnabled()) LOG.debug("Message published to topic: %s (ID: %s)", topic.name, topicId);
+            sendPublished();
+        }
+
+        // Publish a batch: one fan-out per topic and one ACK
+        private void publishBatch(Command command, boolean isBroadcast) {
+            if (!binary) {
+                sendError("PUBLISHBATCH requires the binary protocol");
+                return;
+            }
+            String publisherName = command.field(0);
+            ByteBuffer entries = ByteBuffer.wrap(command.buffer(), command.payloadOffset(), command.payloadLength());
+            Map<UUID, List<String>> accepted = new LinkedHashMap<>();
+            // Where each accepted entry sits in the batch, for merging the statuses owners answer with
+            Map<UUID, List<Integer>> positions = new HashMap<>();
+            Map<UUID, String> refused = new HashMap<>();
+            List<String> statuses = new ArrayList<>();
+            try {
+                while (entries.hasRemaining()) {
+                    UUID topicId = new UUID(entries.getLong(), entries.getLong());
+                    int length = BinaryProtocol.getVarint(entries);
+                    if (length < 0 || length > entries.remaining()) {
+                        throw new IOException("Batch entry exceeds frame");
+                    }
+                    String content = new String(entries.array(), entries.position(), length, StandardCharsets.UTF_8);
+                    entries.position(entries.position() + length);
+
+                    List<String> contents = accepted.get(topicId);
+                    if (contents == null && !refused.containsKey(topicId)) {
+                        Topic topic = topics.get(topicId);
+                        if (topic == null) {
+                            refused.put(topicId, "Topic not found");
+                        } else if (!topic.publisherName.equals(publisherName)) {
+                            refused.put(topicId, "Not authorized to publish to this topic");
+                        } else {
+                            contents = new ArrayList<>();
+                            accepted.put(topicId, contents);
+                        }
+                    }
+                    if (contents == null) {
+                        statuses.add(refused.get(topicId));
+                    } else if (content.length() > MAX_MESSAGE_LENGTH) {
+                        statuses.add("Message too long (max " + MAX_MESSAGE_LENGTH + " characters)");
+                    } else {
+                        contents.add(content);
+                        positions.computeIfAbsent(topicId, id -> new ArrayList<>()).add(statuses.size());
+                        statuses.add("OK");
+                    }
+                }
+            } catch (IOException | BufferUnderflowException e) {
+                sendError("Malformed batch: " + e.getMessage());
+                return;
+            }
+            PendingReply reply = null;
+            if (OWNER_PARTITIONING && !isBroadcast && !isBroker) {
+                reply = new PendingReply(this, correlationId, ingressNanos, statuses.toArray(new String[0]));
+                forwardBatchToOwners(publisherName, accepted, positions, reply);
+            }
+            int published = 0;
+            String timestamp = timestamp();
+            for (Map.Entry<UUID, List<String>> entry : accepted.entrySet()) {
+                Topic topic = topics.get(entry.getKey());
+                if (topic == null || entry.getValue().isEmpty()) continue;
+                FilterResults tested = topic.testFilters(entry.getValue());
+                synchronized (topic) {
+                    if (topic.takingOver) {
+                        for (int position : positions.get(entry.getKey())) {
+                            if (reply != null) reply.refuse(position, OWNER_CATCHING_UP);
+                            else statuses.set(position, OWNER_CATCHING_UP);
+                        }
+                        continue;
+                    }
+                    Delivery[] deliveries = topic.publishBatch(entry.getKey(), entry.getValue(), timestamp, ingressNanos, tested);
+                    if (!isBroadcast) relayToPeers(entry.getKey(), deliveries);
+                }
+                topic.syncLog();
+                published += entry.getValue().size();
+            }
+            if (LOG.isDebugEnabled()) LOG.debug("Batch of %d messages published to %d topics", published, accepted.size());
+            if (reply != null) {
+                // Sent once the owners have answered for the entries forwarded to them
+                reply.done();
+                return;
+            }
+            if (!isBroker) ackLatency.record(System.nanoTime() - ingressNanos);
+            sendSuccess(String.join("|", statuses));
+        }
+
+        // One chunk of a streamed message, forwarded as it arrives
+        private void streamChunk(UUID topicId, Command command, boolean isBroadcast) {
+            if (!binary) {
+                sendError("CHUNK requires the binary protocol");
+                return;
+            }
+            Topic topic = topics.get(topicId);
+            String streamId = command.field(1);
+            String state = command.field(3);
+            int index;
+            try {
+                index = command.fieldInt(2);
+            } catch (NumberFormatException e) {
+                sendError("Invalid chunk index");
+                return;
+            }
+            byte[] payload = command.hasPayload()
+                    ? Arrays.copyOfRange(command.buffer(), command.payloadOffset(), command.payloadOffset() + command.payloadLength())
+                    : new byte[0];
+            StreamChunk chunk = new StreamChunk(topicId, command.field(0), streamId, index, state, command.field(4), payload);
+            if (isBroadcast) {
+                if (topic == null) return;
+                try {
+                    topic.relayChunk(chunk);
+                } catch (IOException e) {
+                    LINK_LOG.warn("Dropped chunk %d of stream %s: %s", index, streamId, e.getMessage());
+                }
+                return;
+            }
+
+            OpenStream stream = openStreams.get(streamId);
+            if (stream == null) {
+                if (index != 0) {
+                    sendError("Unknown stream " + streamId);
+                    return;
+                }
+                stream = new OpenStream(topicId);
+                openStreams.put(streamId, stream);
+            }
+            boolean ends = !BinaryProtocol.CHUNK_MORE.equals(state);
+            if (ends) openStreams.remove(streamId);
+            if (stream.failed) {
+                return;
+            }
+            if (BinaryProtocol.CHUNK_ABORT.equals(state)) {
+                // The publisher gave up on the stream itself and expects no reply
+                abortStream(streamId, stream);
+                return;
+            }
+            String problem = null;
+            if (topic == null || !topicId.equals(stream.topicId)) {
+                problem = "Topic not found";
+            } else if (!command.fieldEquals(0, topic.publisherName)) {
+                problem = "Not authorized to publish to this topic";
+            } else if (index != stream.nextIndex) {
+                problem = "Chunk " + index + " out of order, expected " + stream.nextIndex;
+            } else if (ends && !chunk.last()) {
+                problem = "Invalid chunk state " + state;
+            } else if (!BinaryProtocol.RAW.equals(chunk.encoding) && !(deflate && chunk.deflated())) {
+                problem = "Unsupported chunk encoding " + chunk.encoding;
+            } else if (stream.bytes + payload.length > MAX_STREAM_BYTES) {
+                problem = "Stream too large (max " + MAX_STREAM_BYTES + " bytes)";
+            } else {
+                try {
+                    topic.relayChunk(chunk);
+                } catch (IOException e) {
+                    problem = e.getMessage();
+                }
+            }
+            if (problem != null) {
+                LOG.debug("Stream %s of %s to %s failed at chunk %d: %s", streamId, clientName, topicId, index, problem);
+                stream.failed = true;
+                abortStream(streamId, stream);
+                sendError(problem);
+                return;
+            }
+            forwardChunkToInterestedBrokers(chunk);
+            stream.nextIndex++;
+            stream.bytes += payload.length;
+            if (chunk.last()) {
+                if (LOG.isDebugEnabled()) LOG.debug("Stream %s to topic %s complete: %d bytes in %d chunks", streamId, topic.name, stream.bytes, stream.nextIndex);
+                sendSuccess("Stream published (" + stream.bytes + " bytes in " + stream.nextIndex + " chunks)");
+            }
+        }
+
+        // Tells the subscribers of a stream that already sent chunks to drop what they reassembled of it
+        private void abortStream(String streamId, OpenStream stream) {
+            if (stream.nextIndex == 0) return;
+            StreamChunk abort = StreamChunk.abort(stream.topicId, clientName, streamId, stream.nextIndex);
+            Topic topic = topics.get(stream.topicId);
+            if (topic != null) {
+                try {
+                    topic.relayChunk(abort);
+                } catch (IOException e) {
+                    // Raw chunks always encode
+                }
+            }
+            forwardChunkToInterestedBrokers(abort);
+        }
+
+        private void subscribe(UUID topicId, boolean isBroadcast, Command command) {
+            Topic topic = topics.get(topicId);
+            if (topic == null) {
+                sendError("Topic not found");
+                return;
+            }
+            // Optional content filter after the start position, see MessageFilter
+            MessageFilter filter = null;
+            if (!isBroadcast && command.payloadLength() > 0) {
+                try {
+                    filter = MessageFilter.compile(command.payloadText());
+                } catch (IllegalArgumentException e) {
+                    sendError("Invalid filter: " + e.getMessage());
+                    return;
+                }
+            }
+            // Optional third field: where to start, "latest" (default), "earliest" or a sequence number
+            String from = isBroadcast ? null : command.field(2);
+            if (from != null && !from.equals("latest") && !from.equals("earliest") && !isSequence(from)) {
+                sendError("Invalid start sequence: " + from);
+                return;
+            }
+            LOG.info("Client %s subscribed to topic: %s (ID: %s)%s", clientName, topic.name, topicId, filter != null ? " with filter " + filter : "");
+            if(!isBroadcast) {
+                topic.onlineSubscribers.add(this.clientName+" "+port);
+                if (from != null && !from.equals("latest")) {
+                    resume(topicId, topic, from, filter);
+                } else {
+                    synchronized (topic) {
+                        if (topic.addSubscriber(this, filter)) advertiseInterest(topicId, topic, true);
+                        subscribedTopics.add(topicId);
+                        sendSuccess("SUBSCRIBED:" + topicId + ":" + topic.name+ ":" + topic.publisherName);
+                    }
+                }
+                broadcastToOtherBrokers("SUBSCRIBE", topicId.toString(), this.clientName, String.valueOf(port));
+            }else {
+                topic.onlineSubscribers.add(command.field(0)+" "+command.field(1));
+                sendSuccess("SUBSCRIBED:" + topicId + ":" + topic.name+ ":" + topic.publisherName);
+            }
+
+        }
+
+        // Subscribe from a past position, replaying what was missed
+        private void resume(UUID topicId, Topic topic, String from, MessageFilter filter) {
+            long start;
+            if (from.equals("earliest")) {
+                synchronized (topic) {
+                    start = topic.oldestRetained();
+                }
+            } else {
+                start = Long.parseLong(from);
+            }
+            sendSuccess("SUBSCRIBED:" + topicId + ":" + topic.name+ ":" + topic.publisherName);
+            boolean missed = false;
+            boolean counted = false;
+            while (true) {
+                long end;
+                Delivery[] caughtUp = null;
+                synchronized (topic) {
+                    if (topics.get(topicId) != topic) {
+                        sendCommand("TOPICDELETED", topicId.toString(), topic.name);
+                        return;
+                    }
+                    if (start >= topic.oldestRetained() || topic.log == null) {
+                        if (start < topic.oldestRetained()) {
+                            LOG.warn("History of topic %s no longer holds sequence %d, resuming %s at %d", topic.name, start, clientName, topic.oldestRetained());
+                            start = topic.oldestRetained();
+                        }
+                        if (!counted) {
+                            if (missed) {
+                                topic.replayMisses.increment();
+                            } else if (start < topic.nextSequence) {
+                                topic.replayHits.increment();
+                            }
+                            counted = true;
+                        }
+                        if (filter == null || topic.nextSequence - start <= RESUME_FILTERED_TAIL) {
+                            if (topic.addSubscriber(this, filter)) advertiseInterest(topicId, topic, true);
+                            // What peers still catch us up with is newer than anything delivered here
+                            if (topic.catchUps > 0) topic.behind.put(this, Math.max(start, topic.nextSequence));
+                            subscribedTopics.add(topicId);
+                            for (long sequence = start; sequence < topic.nextSequence; sequence++) {
+                                Delivery delivery = topic.history[(int) (sequence % topic.history.length)];
+                                if (filter == null || filter.test(delivery.content)) deliver(delivery);
+                            }
+                            return;
+                        }
+                        caughtUp = new Delivery[(int) (topic.nextSequence - start)];
+                        for (int i = 0; i < caughtUp.length; i++) {
+                            caughtUp[i] = topic.history[(int) ((start + i) % topic.history.length)];
+                        }
+                    }
+                    end = topic.nextSequence;
+                }
+                if (caughtUp != null) {
+                    for (Delivery delivery : caughtUp) {
+                        if (filter.test(delivery.content)) deliver(delivery);
+                    }
+                    start = end;
+                    continue;
+                }
+                missed = true;
+                long next = streamLog(topic, start, end, filter);
+                // Whatever the log no longer (or never) held is skipped
+                start = next > start ? next : end;
+            }
+        }
+
+        // Catch a following peer up, then relay to it
+        private void catchUpPeer(UUID topicId, String from) {
+            Topic topic = topics.get(topicId);
+            long start;
+            try {
+                start = Long.parseLong(from);
+            } catch (NumberFormatException e) {
+                LINK_LOG.warn("Invalid sequence in INTEREST from Broker %d: %s", peerBrokerId, from);
+                return;
+            }
+            if (topic == null) {
+                link.replicate("CAUGHTUP", topicId.toString(), from);
+                return;
+            }
+            long sent = 0;
+            while (true) {
+                long end;
+                synchronized (topic) {
+                    if (topics.get(topicId) != topic) {
+                        link.replicate("CAUGHTUP", topicId.toString(), from);
+                        return;
+                    }
+                    if (start >= topic.oldestRetained() || topic.log == null) {
+                        start = Math.max(start, topic.oldestRetained());
+                        if (start < topic.nextSequence) {
+                            Delivery[] rest = new Delivery[(int) (topic.nextSequence - start)];
+                            for (int i = 0; i < rest.length; i++) {
+                                rest[i] = topic.history[(int) ((start + i) % topic.history.length)];
+                            }
+                            link.sendBytes(bytesOf(Delivery.concat(rest, true)));
+                            sent += rest.length;
+                        }
+                        updatePeerInterest(topicId, peerBrokerId, true);
+                        link.replicate("CAUGHTUP", topicId.toString(), String.valueOf(topic.nextSequence));
+                        break;
+                    }
+                    end = topic.nextSequence;
+                }
+                long next = start;
+                CommitLog.Chunk chunk;
+                while ((chunk = topic.log.read(next, end, REPLAY_CHUNK_BYTES)) != null) {
+                    link.sendBytes(bytesOf(chunk.records));
+                    sent += chunk.nextOffset - chunk.firstOffset;
+                    next = chunk.nextOffset;
+                }
+                // Whatever the log no longer (or never) held is skipped
+                start = next > start ? next : end;
+            }
+            if (sent > 0) LINK_LOG.info("Caught Broker %d up on topic %s with %d messages", peerBrokerId, topic.name, sent);
+        }
+
+        // A start position given as a sequence number: decimal and not negative
+        private boolean isSequence(String text) {
+            try {
+                return Long.parseLong(text) >= 0;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        private void unsubscribe(UUID topicId, boolean isBroadcast, Command command) {
+            Topic topic = topics.get(topicId);
+            if (topic == null) {
+                sendError("Topic not found");
+                return;
+            }
+            synchronized (topic) {
+                if (topic.removeSubscriber(this)) advertiseInterest(topicId, topic, false);
+                subscribedTopics.remove(topicId);
+            }
+            LOG.info("Client %s unsubscribed from topic: %s (ID: %s)", clientName, topic.name, topicId);
+            if(!isBroadcast) {
+                topic.onlineSubscribers.remove(this.clientName+" "+port);
+                broadcastToOtherBrokers("UNSUBSCRIBE", topicId.toString(), this.clientName, String.valueOf(port));
+            }else {
+                topic.onlineSubscribers.remove(command.field(0)+" "+command.field(1));
+            }
+            sendSuccess("UNSUBSCRIBED:"+topicId + ":" + topic.name+ ":" + topic.publisherName);
+        }
+
+        // Subscribe to every topic matching the pattern
+        private void subscribePattern(String pattern) {
+            if (pattern == null || !TopicTrie.isValidPattern(pattern)) {
+                sendError("Invalid topic pattern");
+                return;
+            }
+            int matched = 0;
+            synchronized (topicNames) {
+                if (patterns.add(pattern)) {
+                    wildcardSubscriptions.add(pattern, this);
+                    for (UUID topicId : topicNames.matchNames(pattern)) {
+                        Topic topic = topics.get(topicId);
+                        if (topic != null && subscribeMatched(topicId, topic)) matched++;
+                    }
+                }
+            }
+            LOG.info("Client %s subscribed to pattern %s (%d topics)", clientName, pattern, matched);
+            sendSuccess("PSUBSCRIBED:" + pattern + ":" + matched);
+        }
+
+        // Unsubscribe from a pattern's topics
+        private void unsubscribePattern(String pattern) {
+            if (pattern == null || !TopicTrie.isValidPattern(pattern)) {
+                sendError("Invalid topic pattern");
+                return;
+            }
+            int unmatched = 0;
+            synchronized (topicNames) {
+                if (!patterns.remove(pattern)) {
+                    sendError("Not subscribed to pattern " + pattern);
+                    return;
+                }
+                wildcardSubscriptions.remove(pattern, this);
+                for (UUID topicId : topicNames.matchNames(pattern)) {
+                    Topic topic = topics.get(topicId);
+                    if (topic == null || matchesOtherPattern(topic.name)) continue;
+                    synchronized (topic) {
+                        if (!subscribedTopics.remove(topicId)) continue;
+                        if (topic.removeSubscriber(this)) advertiseInterest(topicId, topic, false);
+                    }
+                    topic.onlineSubscribers.remove(this.clientName+" "+port);
+                    broadcastToOtherBrokers("UNSUBSCRIBE", topicId.toString(), this.clientName, String.valueOf(port));
+                    sendCommand("SUCCESS", "UNSUBSCRIBED:" + topicId + ":" + topic.name + ":" + topic.publisherName);
+                    unmatched++;
+                }
+            }
+            LOG.info("Client %s unsubscribed from pattern %s (%d topics)", clientName, pattern, unmatched);
+            sendSuccess("PUNSUBSCRIBED:" + pattern + ":" + unmatched);
+        }
+
+        private boolean matchesOtherPattern(String topicName) {
+            for (String other : patterns) {
+                if (TopicTrie.matches(other, topicName)) return true;
+            }
+            return false;
+        }
+
+        // Subscribe to a pattern match; false if already subscribed
+        private boolean subscribeMatched(UUID topicId, Topic topic) {
+            synchronized (topic) {
+                if (!subscribedTopics.add(topicId)) return false;
+                if (topic.addSubscriber(this)) advertiseInterest(topicId, topic, true);
+            }
+            topic.onlineSubscribers.add(this.clientName+" "+port);
+            sendCommand("SUCCESS", "SUBSCRIBED:" + topicId + ":" + topic.name + ":" + topic.publisherName);
+            broadcastToOtherBrokers("SUBSCRIBE", topicId.toString(), this.clientName, String.valueOf(port));
+            return true;
+        }
+
+        private void getSubscriberCount(UUID topicId, boolean isBroadcast) {
+            Topic topic = topics.get(topicId);
+            if (topic == null) {
+                sendError("Topic not found");
+                return;
+            }
+            sendCommand("SUBSCRIBERCOUNT", String.valueOf(topic.onlineSubscribers.size()));
+
+        }
+
+        private void deleteTopic(UUID topicId, boolean isBroadcast, String requesterName) {
+            Topic topic = topics.get(topicId);
+            if (topic == null) {
+                sendError("Topic not found");
+                return;
+            }
+            if (!topic.publisherName.equals(requesterName)) {
+                sendError("Not authorized to delete this topic");
+                return;
+            }
+            for (ClientHandler subscriber : topic.subscribers) {
+                subscriber.subscribedTopics.remove(topicId);
+                subscriber.sendCommand("TOPICDELETED", topicId.toString(), topic.name);
+            }
+            // Under the monitor so a starting link sees a consistent topic
+            synchronized (topic) {
+                topics.remove(topicId);
+                topic.deleteLog();
+                if(!isBroadcast)
+                    broadcastToOtherBrokers("DELETETOPIC", topicId.toString(), clientName);
+            }
+            unindexTopic(topic.publisherName, topicId);
+            synchronized (topicNames) {
+                topicNames.remove(topic.name, topicId);
+            }
+            peerInterest.remove(topicId);
+            LOG.info("Topic deleted: %s (ID: %s)", topic.name, topicId);
+            sendSuccess("Topic deleted");
+        }
+
+        // Stream a topic's log from the requested offset
+        private void replay(UUID topicId, Command command) {
+            Topic topic = topics.get(topicId);
+            if (topic == null) {
+                sendError("Topic not found");
+                return;
+            }
+            if (topic.log == null) {
+                sendError("Replay not available for this topic");
+                return;
+            }
+            long offset;
+            try {
+                offset = command.fieldCount() > 0 ? Long.parseLong(command.field(0)) : 0;
+            } catch (NumberFormatException e) {
+                sendError("Invalid replay offset");
+                return;
+            }
+            long first;
+            long end;
+            synchronized (topic) {
+                first = Math.max(offset, topic.log.startOffset());
+                end = topic.log.endOffset();
+            }
+            long next = streamLog(topic, first, end, null);
+            LOG.info("Replayed %d messages of topic %s to %s", streamedRecords, topic.name, clientName);
+            sendSuccess("REPLAYED:" + topicId + ":" + streamedRecords + ":" + next);
+        }
+
+        // Queue logged messages in [from, end); returns the next offset
+        private long streamLog(Topic topic, long from, long end, MessageFilter filter) {
+            long next = from;
+            streamedRecords = 0;
+            CommitLog.Chunk chunk;
+            boolean throttle = OVERFLOW_POLICY == OverflowPolicy.BLOCK && currentEventLoop() == null;
+            while ((chunk = topic.log.read(next, end, REPLAY_CHUNK_BYTES)) != null) {
+                if (binary && filter == null) {
+                    sendBuffer(chunk.records);
+                } else {
+                    sendRecords(chunk.records, filter);
+                }
+                streamedRecords += chunk.nextOffset - chunk.firstOffset;
+                next = chunk.nextOffset;
+                // Under BLOCK, read no further ahead of the client than one chunk past its queue
+                if (throttle) awaitBacklogDrained(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(OUTBOUND_BLOCK_TIMEOUT_MS));
+            }
+            return next;
+        }
+
+        // Report a topic's in-memory history
+        private void history(UUID topicId) {
+            Topic topic = topics.get(topicId);
+            if (topic == null) {
+                sendError("Topic not found");
+                return;
+            }
+            long oldest;
+            long next;
+            synchronized (topic) {
+                oldest = topic.oldestRetained();
+                next = topic.nextSequence;
+            }
+            sendSuccess("HISTORY:" + topicId + ":" + topic.history.length + ":" + (next - oldest) + ":" + oldest + ":" + next
+                    + ":" + topic.replayHits.sum() + ":" + topic.replayMisses.sum());
+        }
+
+        // Log records one by one, re-encoded for text clients and skipping those the filter rejects
+        private void sendRecords(ByteBuffer records, MessageFilter filter) {
+            while (records.hasRemaining()) {
+                int length = records.getInt();
+                try {
+                    Delivery delivery = Delivery.fromFrame(BinaryProtocol.decode(records, length));
+                    if (filter == null || filter.test(delivery.content)) sendBuffer(delivery.encoded(binary));
+                } catch (IOException e) {
+                    LOG.warn("Skipping unreadable log record: %s", e.getMessage());
+                    return;
+                }
+            }
+        }
+
+        private void listTopics() {
+            sendCommand("TOPICLIST", topicList());
+        }
+
+        private void sendMessage(String message) {
+            sendBytes((message + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Send a command given as the parts of its text form
+        private void sendCommand(String... parts) {
+            if (binary) {
+                sendBytes(BinaryProtocol.Frame.fromParts(parts).encode());
+            } else {
+                sendMessage(String.join(":", parts));
+            }
+        }
+
+        // Queue a published message; the encoded bytes are shared with the topic's other subscribers
+        private void deliver(Delivery delivery) {
+            sendBuffer(delivery.encoded(binary));
+        }
+
+        // Like sendBuffer for a frame whose write completes a tracked delivery (see Topic.relay)
+        private void sendTracked(ByteBuffer frame, Delivery delivery) {
+            if (isBroker || !enqueue(frame)) {
+                writeCompleted(delivery);
+                return;
+            }
+            long position = framesQueued.get();
+            trackedWrites.add(new TrackedWrite(delivery, position));
+            // The writer may have got past the frame before the entry was added
+            if (framesDequeued.get() >= position) completeTrackedWrites();
+            if (channel != null) eventLoop.requestFlush(this);
+        }
+
+        // Called by the writer after writing 'count' frames taken off the outbound queue
+        private void framesWritten(int count) {
+            if (count == 0) return;
+            framesDequeued.addAndGet(count);
+            if (!trackedWrites.isEmpty()) completeTrackedWrites();
+        }
+
+        // Complete tracked deliveries the writer is done with
+        private void completeTrackedWrites() {
+            synchronized (trackedWrites) {
+                long dequeued = framesDequeued.get();
+                TrackedWrite tracked;
+                while ((tracked = trackedWrites.peek()) != null && tracked.position <= dequeued) {
+                    trackedWrites.poll();
+                    writeCompleted(tracked.delivery);
+                }
+            }
+        }
+
+        private void sendBytes(byte[] bytes) {
+            if (isBroker && correlationId != null) {
+                link.sendBytes(bytes);
+                return;
+            }
+            sendBuffer(ByteBuffer.wrap(bytes));
+        }
+
+        // CREDIT adds to the client's credit; the first one enables flow control
+        private void grantCredit(Command command) {
+            long frames;
+            long bytes;
+            try {
+                frames = Long.parseLong(command.field(0));
+                bytes = Long.parseLong(command.field(1));
+            } catch (NumberFormatException e) {
+                frames = -1;
+                bytes = -1;
+            }
+            if (frames < 0 || bytes < 0) {
+                sendError("Invalid credit");
+                return;
+            }
+            creditLock.lock();
+            try {
+                flowControlled = true;
+                frameCredit += frames;
+                byteCredit += bytes;
+                stalled = false;
+                creditGranted.signalAll();
+            } finally {
+                creditLock.unlock();
+            }
+            if (channel != null) eventLoop.requestFlush(this);
+        }
+
+        // Take credit for the frames at the front of the buffer
+        private int takeCredit(ByteBuffer buffer) {
+            if (!flowControlled) return buffer.remaining();
+            creditLock.lock();
+            try {
+                int start = buffer.position();
+                int end = start;
+                while (end < buffer.limit() && frameCredit > 0 && byteCredit > 0) {
+                    int next = frameEnd(buffer, end);
+                    frameCredit--;
+                    byteCredit -= next - end;
+                    end = next;
+                }
+                if (end == start && !stalled) {
+                    stalled = true;
+                    creditStalls.incrementAndGet();
+                }
+                return end - start;
+            } finally {
+                creditLock.unlock();
+            }
+        }
+
+        // End of the frame or line starting at 'from'
+        private int frameEnd(ByteBuffer buffer, int from) {
+            if (binary) {
+                int length = buffer.getInt(from);
+                return length < 0 ? buffer.limit() : (int) Math.min((long) from + 4 + length, buffer.limit());
+            }
+            int at = from;
+            while (at < buffer.limit() && buffer.get(at) != '\n') at++;
+            return Math.min(at + 1, buffer.limit());
+        }
+
+        // Wait for credit, flushing first
+        private int awaitCredit(ByteBuffer buffer) throws IOException, InterruptedException {
+            int allowed = takeCredit(buffer);
+            if (allowed > 0) return allowed;
+            out.flush();
+            creditLock.lock();
+            try {
+                while ((allowed = takeCredit(buffer)) == 0) {
+                    creditGranted.await();
+                }
+            } finally {
+                creditLock.unlock();
+            }
+            return allowed;
+        }
+
+        // Next buffer for the writer: queue first, then backlog
+        private ByteBuffer pollOutbound() {
+            ByteBuffer frame = outbound.poll();
+            if (frame != null || backlogFrames == 0) return frame;
+            List<ClientHandler> released = null;
+            backlogLock.lock();
+            try {
+                if (spilledFrames == 0) {
+                    frame = backlog.poll();
+                    if (frame != null) {
+                        backlogBytes -= frame.remaining();
+                        backlogFrames--;
+                        if (backlogFrames == 0) released = drained();
+                    }
+                }
+            } finally {
+                backlogLock.unlock();
+            }
+            if (frame == null) scheduleSpill();
+            releaseSenders(released);
+            return frame;
+        }
+
+        private void sendBuffer(ByteBuffer buffer) {
+            if (isBroker) {
+                // Replicated commands are applied silently
+                return;
+            }
+            if (enqueue(buffer) && channel != null) {
+                eventLoop.requestFlush(this);
+            }
+        }
+
+        // Queue a frame for the writer, applying the overflow policy
+        private boolean enqueue(ByteBuffer frame) {
+            if (flowControlled || OVERFLOW_POLICY == OverflowPolicy.SPILL) return queueOrSpill(frame);
+            // Frames held back under BLOCK go first
+            boolean queued = backlogFrames == 0 && outbound.offer(frame);
+            if (!queued) {
+                switch (OVERFLOW_POLICY) {
+                    case BLOCK:
+                        queued = holdBack(frame);
+                        break;
+                    case DROP_OLDEST:
+                        while (!queued) {
+                            if (!evictOldestMessage()) {
+                                // Only replies queued: a new message goes, a reply must not be lost silently
+                                if (!isMessage(frame)) {
+                                    LOG.warn("Disconnecting slow client %s (outbound queue full of replies)", clientName);
+                                    disconnect();
+                                }
+                                break;
+                            }
+                            queued = outbound.offer(frame);
+                        }
+                        break;
+                    case DROP_NEWEST:
+                        break;
+                    case DISCONNECT:
+                        LOG.warn("Disconnecting slow client %s (outbound queue full)", clientName);
+                        disconnect();
+                        break;
+                }
+                if (!queued) recordDrop();
+            }
+            if (queued) framesQueued.incrementAndGet();
+            int depth = outbound.size();
+            if (depth > peakQueueDepth) peakQueueDepth = depth;
+            return queued;
+        }
+
+        // BLOCK policy: hold the frame and the sender back
+        private boolean holdBack(ByteBuffer frame) {
+            EventLoop loop = currentEventLoop();
+            ClientHandler sender = loop != null ? loop.reading : null;
+            boolean pause = false;
+            List<ClientHandler> released;
+            backlogLock.lock();
+            try {
+                if (backlogBytes + frame.remaining() > SPILL_MAX_BYTES) {
+                    LOG.warn("Disconnecting slow client %s (%d bytes held back)", clientName, backlogBytes);
+                    recordDrop();
+                    disconnect();
+                    return false;
+                }
+                backlog.add(frame);
+                backlogBytes += frame.remaining();
+                backlogFrames++;
+                released = moveBacklogToQueue();
+                if (backlogFrames > 0 && sender != null && !blockedSenders.contains(sender)) {
+                    blockedSenders.add(sender);
+                    pause = true;
+                }
+            } finally {
+                backlogLock.unlock();
+            }
+            releaseSenders(released);
+            if (pause) {
+                sender.pauseReading();
+                scheduler.schedule(() -> releaseSender(sender), OUTBOUND_BLOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+            List<ClientHandler> waiting = loop == null ? blockedOn.get() : null;
+            if (waiting != null && !waiting.contains(this)) waiting.add(this);
+            framesQueued.incrementAndGet();
+            return true;
+        }
+
+        // Under backlogLock: wake waiters and return connections to resume
+        private List<ClientHandler> drained() {
+            backlogDrained.signalAll();
+            if (blockedSenders.isEmpty()) return null;
+            List<ClientHandler> released = new ArrayList<>(blockedSenders);
+            blockedSenders.clear();
+            return released;
+        }
+
+        private void releaseSenders(List<ClientHandler> released) {
+            if (released == null) return;
+            for (ClientHandler sender : released) {
+                sender.eventLoop.execute(sender::resumeReading);
+            }
+        }
+
+        // The BLOCK timeout: resumes a held back connection even though the backlog has not drained
+        private void releaseSender(ClientHandler sender) {
+            boolean blocked;
+            backlogLock.lock();
+            try {
+                blocked = blockedSenders.remove(sender);
+            } finally {
+                backlogLock.unlock();
+            }
+            if (blocked) sender.eventLoop.execute(sender::resumeReading);
+        }
+
+        // Waits until the backlog has drained or the deadline (System.nanoTime) has passed
+        private void awaitBacklogDrained(long deadline) {
+            backlogLock.lock();
+            try {
+                long left;
+                while (backlogFrames > 0 && (left = deadline - System.nanoTime()) > 0) {
+                    backlogDrained.awaitNanos(left);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                backlogLock.unlock();
+            }
+        }
+
+        // Event loop: pause reading until resumeReading
+        private void pauseReading() {
+            if (readPauses++ == 0 && key != null && key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        private void resumeReading() {
+            if (--readPauses > 0 || !channel.isOpen()) return;
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+            // Commands that arrived in the meantime are already buffered
+            eventLoop.dispatch(this);
+        }
+
+        // Interest ops for reading: none while paused
+        private int readOps() {
+            return readPauses > 0 ? 0 : SelectionKey.OP_READ;
+        }
+
+        // Commands that may wait on the disk
+        private boolean blocksEventLoop(Command command) {
+            switch (command.opcode()) {
+                case BinaryProtocol.REPLAY:
+                    return true;
+                case BinaryProtocol.SUBSCRIBE:
+                    String from = command.field(2);
+                    return from != null && !from.equals("latest");
+                case BinaryProtocol.PUBLISH:
+                case BinaryProtocol.PUBLISHASYNC:
+                case BinaryProtocol.PUBLISHBATCH:
+                    return SYNC_APPENDS;
+                default:
+                    return false;
+            }
+        }
+
+        // Event loop: hand the command to a worker
+        private void offload(byte[] bytes) throws IOException {
+            Command copy = new Command();
+            if (binary) {
+                copy.parseFrame(bytes, 0, bytes.length);
+            } else {
+                copy.parseText(bytes, 0, bytes.length);
+            }
+            pauseReading();
+            clientHandlerExecutor.execute(() -> {
+                blockedOn.set(new ArrayList<>());
+                try {
+                    handleCommand(copy);
+                    awaitBlockedClients();
+                } finally {
+                    blockedOn.remove();
+                    eventLoop.execute(this::resumeReading);
+                }
+            });
+        }
+
+        // DROP_OLDEST: evict the oldest queued message
+        private boolean evictOldestMessage() {
+            Iterator<ByteBuffer> queued = outbound.iterator();
+            while (queued.hasNext()) {
+                if (isMessage(queued.next())) {
+                    queued.remove();
+                    framesDequeued.incrementAndGet();
+                    recordDrop();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Whether a buffer carries messages rather than replies
+        private boolean isMessage(ByteBuffer frame) {
+            int at = frame.position();
+            if (binary) {
+                if (frame.limit() - at < 5) return false;
+                byte opcode = frame.get(at + 4);
+                return opcode == BinaryProtocol.MESSAGE || opcode == BinaryProtocol.CHUNK;
+            }
+            if (!frame.hasRemaining()) return false;
+            byte first = frame.get(at);
+            if (first >= '0' && first <= '9') return true;
+            if (frame.limit() - at < Delivery.MESSAGE_PREFIX.length) return false;
+            for (int i = 0; i < Delivery.MESSAGE_PREFIX.length; i++) {
+                if (frame.get(at + i) != Delivery.MESSAGE_PREFIX[i]) return false;
+            }
+            return true;
+        }
+
+        // SPILL policy: queue the frame or add it to the backlog
+        private boolean queueOrSpill(ByteBuffer frame) {
+            boolean queued = backlogFrames == 0 && outbound.offer(frame);
+            if (!queued) {
+                List<ClientHandler> released;
+                backlogLock.lock();
+                try {
+                    if (backlogBytes + spilledBytes + frame.remaining() > SPILL_MAX_BYTES) {
+                        LOG.warn("Disconnecting slow client %s (%d bytes in backlog)", clientName, backlogBytes + spilledBytes);
+                        recordDrop();
+                        disconnect();
+                        return false;
+                    }
+                    backlog.add(frame);
+                    backlogBytes += frame.remaining();
+                    backlogFrames++;
+                    released = moveBacklogToQueue();
+                } finally {
+                    backlogLock.unlock();
+                }
+                releaseSenders(released);
+                if (backlogFrames > 0) scheduleSpill();
+            }
+            framesQueued.incrementAndGet();
+            int depth = outbound.size();
+            if (depth > peakQueueDepth) peakQueueDepth = depth;
+            return true;
+        }
+
+        private void scheduleSpill() {
+            if (spillScheduled.compareAndSet(false, true)) {
+                clientHandlerExecutor.execute(this::runSpill);
+            }
+        }
+
+        // Spill task: refill the queue and spill the backlog
+        private void runSpill() {
+            do {
+                boolean refilled = false;
+                spillLock.lock();
+                try {
+                    if (spillClosed) return;
+                    refilled = refillFromBacklog();
+                    spillBacklog();
+                } catch (IOException e) {
+                    LOG.error("Error spilling frames of client %s: %s", clientName, e.getMessage());
+                    disconnect();
+                    return;
+                } finally {
+                    spillLock.unlock();
+                    spillScheduled.set(false);
+                }
+                if (refilled && channel != null) eventLoop.requestFlush(this);
+            } while (spillPending() && spillScheduled.compareAndSet(false, true));
+        }
+
+        // Move backlog frames into the outbound queue
+        private boolean refillFromBacklog() throws IOException {
+            boolean refilled = false;
+            List<ClientHandler> released = null;
+            while (outbound.remainingCapacity() > 0) {
+                backlogLock.lock();
+                try {
+                    if (spilledFrames == 0) {
+                        refilled |= !backlog.isEmpty();
+                        released = moveBacklogToQueue();
+                        break;
+                    }
+                } finally {
+                    backlogLock.unlock();
+                }
+                outbound.offer(spill.poll());
+                spilledBytes = spill.bytes();
+                backlogLock.lock();
+                try {
+                    spilledFrames--;
+                    if (--backlogFrames == 0) released = drained();
+                } finally {
+                    backlogLock.unlock();
+                }
+                refilled = true;
+            }
+            releaseSenders(released);
+            return refilled;
+        }
+
+        // Under backlogLock: move in-memory frames into the queue
+        private List<ClientHandler> moveBacklogToQueue() {
+            if (spilledFrames > 0) return null;
+            ByteBuffer next;
+            while (outbound.remainingCapacity() > 0 && (next = backlog.peek()) != null) {
+                backlogBytes -= next.remaining();
+                backlog.poll();
+                outbound.offer(next);
+                backlogFrames--;
+            }
+            return backlogFrames == 0 ? drained() : null;
+        }
+
+        // Whether overflow goes to disk: SPILL, or a client out of credit
+        private boolean spills() {
+            return flowControlled || OVERFLOW_POLICY == OverflowPolicy.SPILL;
+        }
+
+        // Writes the frames held in memory to the spill file, while the outbound queue is full
+        private void spillBacklog() throws IOException {
+            List<ByteBuffer> batch = new ArrayList<>();
+            backlogLock.lock();
+            try {
+                if (!spills() || (outbound.remainingCapacity() > 0 && spilledFrames == 0)) return;
+                batch.addAll(backlog);
+                backlog.clear();
+                backlogBytes = 0;
+                // Counted as spilled from here on, so the writer does not take newer frames from memory first
+                spilledFrames += batch.size();
+            } finally {
+                backlogLock.unlock();
+            }
+            if (batch.isEmpty()) return;
+            if (spill == null) {
+                spill = new SpillFile(Paths.get(SPILL_DIR), "broker-" + brokerId + "-" + String.valueOf(clientName).replaceAll("[^A-Za-z0-9_.-]", "_"));
+            }
+            for (ByteBuffer frame : batch) {
+                spill.append(frame);
+            }
+            spilledBytes = spill.bytes();
+        }
+
+        // Whether the spill task has work
+        private boolean spillPending() {
+            backlogLock.lock();
+            try {
+                return (spilledFrames > 0 && outbound.remainingCapacity() > 0) || (spills() && !backlog.isEmpty());
+            } finally {
+                backlogLock.unlock();
+            }
+        }
+
+        private void closeSpill() {
+            spillLock.lock();
+            try {
+                spillClosed = true;
+                if (spill != null) spill.close();
+                spill = null;
+                spilledBytes = 0;
+            } finally {
+                spillLock.unlock();
+            }
+        }
+
+        private void recordDrop() {
+            long dropped = framesDropped.incrementAndGet();
+            outboundDrops.increment();
+            if (dropped == 1 || dropped % 1000 == 0) {
+                LOG.warn("Outbound queue full for client %s, %d frames dropped", clientName, dropped);
+            }
+        }
+
+        // Writer task for blocking mode: drain everything queued, write it in one go and flush once
+        private void drainOutbound() {
+            List<ByteBuffer> batch = new ArrayList<>();
+            byte[] scratch = new byte[READ_BUFFER_SIZE];
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    ByteBuffer next = pollOutbound();
+                    batch.add(next != null ? next : outbound.take());
+                    outbound.drainTo(batch);
+                    for (ByteBuffer frame : batch) {
+                        while (frame.hasRemaining()) {
+                            int allowed = awaitCredit(frame);
+                            if (frame.hasArray()) {
+                                out.write(frame.array(), frame.arrayOffset() + frame.position(), allowed);
+                                frame.position(frame.position() + allowed);
+                                continue;
+                            }
+                            // Shared fan-out buffers are read-only, copy them out in chunks
+                            while (allowed > 0) {
+                                int chunk = Math.min(scratch.length, allowed);
+                                frame.get(scratch, 0, chunk);
+                                out.write(scratch, 0, chunk);
+                                allowed -= chunk;
+                            }
+                        }
+                    }
+                    out.flush();
+                    framesWritten(batch.size());
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                LOG.debug("Error writing to client: %s", e.getMessage());
+                disconnect();
+            }
+        }
+
+        // Close the connection from any thread; the reader notices and runs cleanupConnection
+        private void disconnect() {
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException e) {
+                LOG.debug("Error closing client connection: %s", e.getMessage());
+            }
+            if (channel != null) eventLoop.execute(() -> eventLoop.closeClient(this));
+        }
+
+        // Split the bytes read so far into lines (or frames once binary) and dispatch each complete one
+        private void processReadBuffer() throws IOException {
+            readBuffer.flip();
+            int start = readBuffer.position();
+            int scan = start;
+            while (channel.isOpen() && !handedOff && readPauses == 0) {
+                if (binary) {
+                    if (readBuffer.limit() - start < 4) break;
+                    int length = readBuffer.getInt(start);
+                    if (length < 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                        throw new IOException("Invalid frame length: " + length);
+                    }
+                    if (readBuffer.limit() - start - 4 < length) break;
+                    int body = start + 4;
+                    command.parseFrame(readBuffer.array(), body, length);
+                    start = body + length;
+                    scan = start;
+                    if (blocksEventLoop(command)) {
+                        offload(Arrays.copyOfRange(readBuffer.array(), body, start));
+                    } else {
+                        handleCommand(command);
+                    }
+                } else {
+                    while (scan < readBuffer.limit() && readBuffer.get(scan) != '\n') {
+                        scan++;
+                    }
+                    if (scan >= readBuffer.limit()) break;
+                    int lineEnd = scan;
+                    if (lineEnd > start && readBuffer.get(lineEnd - 1) == '\r') {
+                        lineEnd--;
+                    }
+                    int lineStart = start;
+                    command.parseText(readBuffer.array(), lineStart, lineEnd - lineStart);
+                    start = ++scan;
+                    if (blocksEventLoop(command)) {
+                        offload(Arrays.copyOfRange(readBuffer.array(), lineStart, lineEnd));
+                    } else {
+                        handleCommand(command);
+                    }
+                }
+            }
+            if (!channel.isOpen()) {
+                return;
+            }
+            readBuffer.position(start);
+            if (handedOff) {
+                // Leave whatever follows the handshake for the BrokerHandler taking over
+                return;
+            }
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining() && readPauses == 0) {
+                // Line or frame longer than the buffer, grow it
+                ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        }
+
+        // Hand the connection over to a BrokerHandler
+        private void adoptBrokerLink() {
+            handedOff = true;
+            if (channel == null) {
+                return;
+            }
+            key.cancel();
+            eventLoop.execute(() -> {
+                try {
+                    // Complete the deregistration before switching the channel back to blocking mode
+                    eventLoop.selector.selectNow();
+                    channel.configureBlocking(true);
+                    // Bytes the peer sent after its handshake are still in the read buffer
+                    InputStream pending = new ByteArrayInputStream(readBuffer.array(), readBuffer.position(), readBuffer.remaining());
+                    Socket linkSocket = channel.socket();
+                    InputStream linkIn = new SequenceInputStream(pending, new BufferedInputStream(linkSocket.getInputStream()));
+                    clientHandlerExecutor.submit(() -> startBrokerLink(linkSocket, linkIn));
+                } catch (IOException e) {
+                    LINK_LOG.warn("Failed to hand over link from Broker %d: %s", peerBrokerId, e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException closeError) {
+                        LINK_LOG.debug("Error closing broker connection: %s", closeError.getMessage());
+                    }
+                }
+            });
+        }
+
+        private void startBrokerLink(Socket linkSocket, InputStream linkIn) {
+            try {
+                BrokerHandler handler = new BrokerHandler(linkSocket, peerBrokerId, linkIn);
+                handler.accept(offeredBinary, offeredDeflate);
+                handler.start();
+            } catch (IOException e) {
+                LINK_LOG.warn("Failed to accept link from Broker %d: %s", peerBrokerId, e.getMessage());
+                try {
+                    linkSocket.close();
+                } catch (IOException closeError) {
+                    LINK_LOG.debug("Error closing broker connection: %s", closeError.getMessage());
+                }
+            }
+        }
+
+        // Handshake reply, switching to binary if offered
+        private void sendHandshakeSuccess(String message) {
+            if (offeredBinary) {
+                deflate = offeredDeflate && COMPRESSION;
+                sendSuccess(message + (deflate ? ":" + BinaryProtocol.DEFLATE : "") + ":" + BinaryProtocol.VERSION);
+                binary = true;
+            } else {
+                sendSuccess(message);
+            }
+        }
+
+        // The reply to a successful publish: ACK when pipelined, otherwise a prebuilt SUCCESS
+        private void sendPublished() {
+            if (!isBroker) ackLatency.record(System.nanoTime() - ingressNanos);
+            if (correlationId != null) {
+                sendSuccess("Message published");
+            } else {
+                sendBuffer((binary ? PUBLISHED_FRAME : PUBLISHED_TEXT).duplicate());
+            }
+        }
+
+        // Reply to a publish the owner answered
+        private void sendForwardedReply(String correlationId, boolean published, String message, long ingressNanos) {
+            ackLatency.record(System.nanoTime() - ingressNanos);
+            if (correlationId != null) {
+                sendCommand(published ? "ACK" : "NACK", correlationId, message);
+            } else if (published) {
+                sendBuffer((binary ? PUBLISHED_FRAME : PUBLISHED_TEXT).duplicate());
+            } else {
+                sendCommand("ERROR", message);
+            }
+        }
+
+        private void sendSuccess(String message) {
+            if (correlationId != null) {
+                sendCommand("ACK", correlationId, message);
+                return;
+            }
+            if (LOG.isDebugEnabled()) LOG.debug("Sending success response: SUCCESS:%s", message);
+            sendCommand("SUCCESS", message);
+        }
+        
+        private void sendError(String message) {
+            if (correlationId != null) {
+                LOG.debug("Sending error response: NACK:%s:%s", correlationId, message);
+                sendCommand("NACK", correlationId, message);
+                return;
+            }
+            LOG.debug("Sending error response: ERROR:%s", message);
+            sendCommand("ERROR", message);
+        }
+
+        private void cleanupConnection() {
+            try {
+                if (socket != null) socket.close();
+                if (channel != null) channel.close();
+                if (writerTask != null) writerTask.cancel(true);
+                outbound.clear();
+                List<ClientHandler> released;
+                backlogLock.lock();
+                try {
+                    backlog.clear();
+                    backlogBytes = 0;
+                    backlogFrames = 0;
+                    spilledFrames = 0;
+                    released = drained();
+                } finally {
+                    backlogLock.unlock();
+                }
+                releaseSenders(released);
+                // A running spill task may be writing the file; close it from a worker rather than wait here
+                try {
+                    clientHandlerExecutor.execute(this::closeSpill);
+                } catch (RejectedExecutionException e) {
+                    closeSpill();
+                }
+                clients.remove(this);
+                TrackedWrite tracked;
+                while ((tracked = trackedWrites.poll()) != null) {
+                    writeCompleted(tracked.delivery);
+                }
+                if (framesDropped.get() > 0) {
+                    LOG.warn("Client %s dropped %d frames (peak queue depth %d)", clientName, framesDropped.get(), peakQueueDepth);
+                }
+                if (isBroker) {
+                    LINK_LOG.info("Broker link closed");
+                } else if (clientName == null) {
+                    // Never sent a handshake, e.g. a connection that only asked for STATS
+                } else if (!counted.getAndSet(false)) {
+                    // Refused at admission, or already cleaned up after its EXIT
+                } else if (isPublisher) {
+                    publisherCount.decrement();
+                    connectedPublishers.remove(clientName);
+                    LOG.info("Publisher disconnected: %s", clientName);
+                    for (Map.Entry<String, OpenStream> open : openStreams.entrySet()) {
+                        if (!open.getValue().failed) abortStream(open.getKey(), open.getValue());
+                    }
+                    openStreams.clear();
+                    broadcastToOtherBrokers("REMOVE", "PUBLISHER", clientName);
+        
+                    Set<UUID> owned = topicsByPublisher.get(clientName);
+                    if (owned != null) {
+                        for (UUID topicId : new ArrayList<>(owned)) {
+                            deleteTopic(topicId, false, clientName);
+                        }
+                    }
+                } else {
+                    subscriberCount.decrement();
+                    connectedSubscribers.remove(clientName);
+                    LOG.info("Subscriber disconnected: %s", clientName);
+                    broadcastToOtherBrokers("REMOVE", "SUBSCRIBER", clientName);
+                }
+        
+                if (!patterns.isEmpty()) {
+                    synchronized (topicNames) {
+                        for (String pattern : patterns) {
+                            wildcardSubscriptions.remove(pattern, this);
+                        }
+                        patterns.clear();
+                    }
+                }
+                // Only the topics this client subscribed to; ids of topics deleted meanwhile are skipped
+                for (UUID topicId : subscribedTopics) {
+                    Topic topic = topics.get(topicId);
+                    if (topic == null) continue;
+                    synchronized (topic) {
+                        if (topic.removeSubscriber(this)) advertiseInterest(topicId, topic, false);
+                    }
+                }
+                subscribedTopics.clear();
+            } catch (IOException e) {
+                LOG.debug("Error closing client connection: %s", e.getMessage());
+            }
+        }
+    }
+
+    // Selector loop serving a share of the client channels
+    private class EventLoop implements Runnable {
+        private final int index;
+        private final Selector selector;
+        private final Queue<ClientHandler> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<ClientHandler> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Clients written to from this loop during the current iteration, flushed once at its end
+        private final ArrayDeque<ClientHandler> loopWrites = new ArrayDeque<>();
+        private volatile Thread loopThread;
+        // The connection whose commands this loop is handling, held back by a full queue under BLOCK
+        private ClientHandler reading;
+
+        EventLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel clientChannel) {
+            pendingRegistrations.add(new ClientHandler(clientChannel, this));
+            selector.wakeup();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == loopThread;
+        }
+
+        // Flush the client's queue at the end of this iteration
+        void requestFlush(ClientHandler handler) {
+            if (inLoop()) {
+                if (handler.outbound.size() >= OUTBOUND_QUEUE_CAPACITY / 2) {
+                    flush(handler);
+                } else if (handler.flushRequested.compareAndSet(false, true)) {
+                    loopWrites.add(handler);
+                }
+            } else if (handler.flushRequested.compareAndSet(false, true)) {
+                pendingWrites.add(handler);
+                selector.wakeup();
+            }
+        }
+
+        // Run a task on this loop
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            loopThread = Thread.currentThread();
+            while (!Thread.currentThread().isInterrupted() && selector.isOpen()) {
+                try {
+                    selector.select();
+                    ClientHandler handler;
+                    while ((handler = pendingRegistrations.poll()) != null) {
+                        handler.key = handler.channel.register(selector, SelectionKey.OP_READ, handler);
+                    }
+                    while ((handler = pendingWrites.poll()) != null) {
+                        // Cleared first: frames queued from here on request a new flush
+                        handler.flushRequested.set(false);
+                        flush(handler);
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ClientHandler client = (ClientHandler) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            read(client);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(client);
+                        }
+                    }
+                    while ((handler = loopWrites.poll()) != null) {
+                        handler.flushRequested.set(false);
+                        flush(handler);
+                    }
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (IOException e) {
+                    LOG.error("Event loop %d error: %s", index, e.getMessage());
+                }
+            }
+        }
+
+        private void read(ClientHandler client) {
+            try {
+                int n = client.channel.read(client.readBuffer);
+                if (n < 0) {
+                    closeClient(client);
+                    return;
+                }
+            } catch (IOException e) {
+                LOG.debug("Error handling client: %s", e.getMessage());
+                closeClient(client);
+                return;
+            }
+            dispatch(client);
+        }
+
+        // Handle the commands buffered for a client
+        void dispatch(ClientHandler client) {
+            reading = client;
+            try {
+                client.processReadBuffer();
+            } catch (IOException e) {
+                LOG.debug("Error handling client: %s", e.getMessage());
+                closeClient(client);
+            } finally {
+                reading = null;
             }
         }
 
-        private void handlePublish(String[] parts) {
-            if (parts.length < 3) {
-                System.out.println("Invalid PUBLISH message format");
+        private void flush(ClientHandler client) {
+            if (!client.channel.isOpen()) {
+                client.outbound.clear();
                 return;
             }
+            int written = 0;
             try {
-                UUID topicId = UUID.fromString(parts[1]);
-                String content = parts[2];
-                Topic topic = topics.get(topicId);
-                if (topic != null) {
-                    for (ClientHandler subscriber : topic.subscribers) {
-                        subscriber.sendMessage("MESSAGE:" + topicId + ":" + topic.name + ":" + content);
+                while (client.pendingWrite != null || (client.pendingWrite = client.pollOutbound()) != null) {
+                    ByteBuffer frame = client.pendingWrite;
+                    if (client.creditedBytes == 0 && frame.hasRemaining()) {
+                        client.creditedBytes = client.takeCredit(frame);
+                        // Out of credit: hold the frame until the client grants more
+                        if (client.creditedBytes == 0) break;
                     }
-                    System.out.println("Message from another broker published to topic: " + topic.name + " (ID: " + topicId + ")");
-                } else {
-                    System.out.println("Received message for non-existent topic: " + topicId);
+                    int limit = frame.limit();
+                    frame.limit(frame.position() + client.creditedBytes);
+                    client.creditedBytes -= client.channel.write(frame);
+                    frame.limit(limit);
+                    if (client.creditedBytes > 0) {
+                        // Socket buffer full, resume when writable
+                        if (client.key != null) client.key.interestOps(client.readOps() | SelectionKey.OP_WRITE);
+                        break;
+                    }
+                    if (frame.hasRemaining()) continue;
+                    client.pendingWrite = null;
+                    written++;
                 }
-            } catch (IllegalArgumentException e) {
-                System.out.println("Invalid topic ID in PUBLISH message: " + parts[1]);
+                client.framesWritten(written);
+                if (client.creditedBytes == 0 && client.key != null && client.key.isValid()) client.key.interestOps(client.readOps());
+            } catch (IOException e) {
+                LOG.debug("Error writing to client: %s", e.getMessage());
+                closeClient(client);
+            }
+        }
+
+        void closeClient(ClientHandler client) {
+            if (client.key != null) client.key.cancel();
+            if (client.channel.isOpen()) {
+                client.cleanupConnection();
+            }
+        }
+
+        void close() {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOG.debug("Error closing event loop: %s", e.getMessage());
+            }
+        }
+    }
+
+    // One replication link to another broker
+    private class BrokerHandler implements Runnable {
+        private final Socket socket;
+        private final int otherBrokerId;
+        private final OutputStream out;
+        private final InputStream in;
+        private volatile boolean binary;
+        private volatile boolean deflate;
+        private final BlockingQueue<ReplicationEvent> replicationQueue = new LinkedBlockingQueue<>(REPLICATION_QUEUE_CAPACITY);
+        private Future<?> writerTask;
+
+        // Written by the writer only; read and reset by reportReplication
+        private final AtomicLong eventsSent = new AtomicLong();
+        private final AtomicLong batchesSent = new AtomicLong();
+        private final AtomicInteger maxBatchSize = new AtomicInteger();
+        private final AtomicLong maxLagNanos = new AtomicLong();
+        private final AtomicLong publishesFiltered = new AtomicLong();
+        private final AtomicLong chunksFiltered = new AtomicLong();
+        private volatile long lastLagNanos;
+        // Never reset, for STATS
+        private final LatencyHistogram lag = new LatencyHistogram();
+        // Topics the peer is still catching us up on (see follow)
+        private final Map<UUID, Topic> catchingUp = new ConcurrentHashMap<>();
+
+        public BrokerHandler(Socket socket, int otherBrokerId, InputStream in) throws IOException {
+            this.socket = socket;
+            this.otherBrokerId = otherBrokerId;
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.in = in;
+        }
+
+        // Dialing side: identify the link and offer binary framing
+        private void negotiate() throws IOException {
+            boolean offerBinary = "binary".equals(PEER_PROTOCOL);
+            writeNow("BROKER:" + brokerId + (offerBinary ? ":" + BinaryProtocol.VERSION + (COMPRESSION ? ":" + BinaryProtocol.DEFLATE : "") : ""));
+            socket.setSoTimeout(CONNECTION_TIMEOUT_MS);
+            try {
+                String response = BinaryProtocol.readLine(in);
+                binary = offerBinary && BinaryProtocol.acceptsBinary(response);
+                deflate = binary && BinaryProtocol.acceptsDeflate(response);
+            } finally {
+                socket.setSoTimeout(0);
             }
         }
 
-        public void sendMessage(String message) {
-            out.println(message);
+        // Accepting side: answer the peer's BROKER handshake
+        private void accept(boolean offeredBinary, boolean offeredDeflate) throws IOException {
+            binary = offeredBinary && "binary".equals(PEER_PROTOCOL);
+            deflate = binary && offeredDeflate && COMPRESSION;
+            writeNow("SUCCESS:Connected as broker" + (deflate ? ":" + BinaryProtocol.DEFLATE : "") + (binary ? ":" + BinaryProtocol.VERSION : ""));
+        }
+
+        private void writeNow(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
             out.flush();
         }
 
-        private void cleanupBrokerConnection() {
+        // Register the link, replacing one the peer has since abandoned, and start its reader and writer
+        private void start() {
+            BrokerHandler previous = brokerHandlers.put(otherBrokerId, this);
+            if (previous != null) {
+                LINK_LOG.info("Replacing stale link to Broker %d", otherBrokerId);
+                previous.close();
+                // The peer advertises its interest again over the new link
+                dropPeerInterest(otherBrokerId);
+            }
+            writerTask = clientHandlerExecutor.submit(this::drainReplicationQueue);
+            clientHandlerExecutor.submit(this);
+            LINK_LOG.info("Connected to Broker %d (%s)", otherBrokerId, binary ? "binary" : "text");
+            if (!binary) LINK_LOG.warn("Link to Broker %d is text, which carries no numbered messages: none are replicated over it", otherBrokerId);
+            // Resync counts, topics and interest after reconnecting
+            replicate("AMOUNT", publisherCount.state(), subscriberCount.state());
+            for (Map.Entry<UUID, Topic> entry : topics.entrySet()) {
+                Topic topic = entry.getValue();
+                synchronized (topic) {
+                    if (topics.get(entry.getKey()) != topic) continue;
+                    replicate("NEWTOPIC", entry.getKey().toString(), topic.name, topic.publisherName);
+                    if (follows(entry.getKey(), topic)) follow(entry.getKey(), topic);
+                }
+            }
+        }
+
+        // Queue one command for this peer only
+        private void replicate(String... parts) {
+            String[] broadcast = new String[parts.length + 1];
+            broadcast[0] = "Broadcast";
+            System.arraycopy(parts, 0, broadcast, 1, parts.length);
+            sendBytes(encode(broadcast));
+        }
+
+        // A command, given as the parts of its text form, in this link's protocol
+        private byte[] encode(String... parts) {
+            return binary ? BinaryProtocol.Frame.fromParts(parts).encode()
+                    : (String.join(":", parts) + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void run() {
+            ClientHandler replicated = new ClientHandler(this);
+            blockedOn.set(new ArrayList<>());
             try {
-                if (socket != null) socket.close();
+                Command command = new Command();
+                while (binary ? command.readFrame(in) : command.readLine(in)) {
+                    replicated.handleCommand(command);
+                    awaitBlockedClients();
+                }
+            } catch (IOException e) {
+                LINK_LOG.warn("Connection lost with Broker %d", otherBrokerId);
+            } finally {
+                blockedOn.remove();
+                close();
+            }
+        }
+
+        // Queue a replication event; never waits
+        public void sendBytes(byte[] bytes) {
+            if (!replicationQueue.offer(new ReplicationEvent(bytes))) {
+                LINK_LOG.warn("Replication queue to Broker %d full, closing link", otherBrokerId);
+                close();
+            }
+        }
+
+        // Writer task: batch events and flush once
+        private void drainReplicationQueue() {
+            List<ReplicationEvent> batch = new ArrayList<>(REPLICATION_MAX_BATCH);
+            long lingerNanos = TimeUnit.MILLISECONDS.toNanos(REPLICATION_LINGER_MS);
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    ReplicationEvent first = replicationQueue.take();
+                    batch.add(first);
+                    long deadline = first.enqueuedNanos + lingerNanos;
+                    while (batch.size() < REPLICATION_MAX_BATCH) {
+                        long wait = deadline - System.nanoTime();
+                        ReplicationEvent next = wait > 0 ? replicationQueue.poll(wait, TimeUnit.NANOSECONDS) : replicationQueue.poll();
+                        if (next == null) break;
+                        batch.add(next);
+                    }
+                    for (ReplicationEvent event : batch) {
+                        out.write(event.bytes);
+                    }
+                    out.flush();
+                    recordBatch(batch.size(), System.nanoTime() - first.enqueuedNanos);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                LINK_LOG.warn("Failed to send to Broker %d: %s", otherBrokerId, e.getMessage());
+                close();
+            }
+        }
+
+        // Lag is measured from the oldest event of the batch being queued until the batch was flushed
+        private void recordBatch(int size, long lagNanos) {
+            eventsSent.addAndGet(size);
+            batchesSent.incrementAndGet();
+            maxBatchSize.accumulateAndGet(size, Math::max);
+            maxLagNanos.accumulateAndGet(lagNanos, Math::max);
+            lastLagNanos = lagNanos;
+            lag.record(lagNanos);
+        }
+
+        // Log and reset this interval's counters, if anything was sent
+        private void reportReplication() {
+            long batches = batchesSent.getAndSet(0);
+            long publishes = publishesFiltered.getAndSet(0);
+            long chunks = chunksFiltered.getAndSet(0);
+            if (batches == 0 && publishes == 0 && chunks == 0) {
+                return;
+            }
+            long events = eventsSent.getAndSet(0);
+            LINK_LOG.info("Replication to Broker %d: %d events in %d batches (avg %.1f, max %d per batch), lag last %d us, max %d us, %d queued, %d messages and %d stream chunks not forwarded (not followed)",
+                    otherBrokerId, events, batches, batches == 0 ? 0.0 : (double) events / batches, maxBatchSize.getAndSet(0),
+                    TimeUnit.NANOSECONDS.toMicros(lastLagNanos), TimeUnit.NANOSECONDS.toMicros(maxLagNanos.getAndSet(0)),
+                    replicationQueue.size(), publishes, chunks);
+        }
+
+        // Ask the peer to catch us up and relay the topic
+        private void follow(UUID topicId, Topic topic) {
+            if (!binary) return;
+            if (catchingUp.put(topicId, topic) != topic) topic.catchUps++;
+            replicate("INTEREST", topicId.toString(), "1", String.valueOf(topic.nextSequence));
+        }
+
+        // CAUGHTUP from the peer: what it relays on the topic from now on is new
+        private void caughtUp(UUID topicId) {
+            Topic topic = catchingUp.get(topicId);
+            if (topic == null) return;
+            synchronized (topic) {
+                if (catchingUp.remove(topicId, topic)) topic.caughtUp();
+            }
+        }
+
+        // Tear the link down from any thread; the dialing side reconnects on its next attempt
+        private void close() {
+            if (writerTask != null) writerTask.cancel(true);
+            try {
+                socket.close();
             } catch (IOException e) {
-                System.out.println("Error closing broker connection: " + e.getMessage());
+                LINK_LOG.debug("Error closing broker connection: %s", e.getMessage());
+            }
+            replicationQueue.clear();
+            if (brokerHandlers.remove(otherBrokerId, this)) {
+                dropPeerInterest(otherBrokerId);
+                failForwards(otherBrokerId);
+                // A lost link catches us up no further
+                for (UUID topicId : catchingUp.keySet()) {
+                    caughtUp(topicId);
+                }
+                // Its clients are out of reach; the counters take them back when the link is up again
+                publisherCount.forget(otherBrokerId);
+                subscriberCount.forget(otherBrokerId);
+            }
+        }
+    }
+
+    // One replication command, encoded for its link, and when it was queued
+    private static final class ReplicationEvent {
+        final byte[] bytes;
+        final long enqueuedNanos;
+
+        ReplicationEvent(byte[] bytes) {
+            this.bytes = bytes;
+            this.enqueuedNanos = System.nanoTime();
+        }
+    }
+
+    private void reportReplication() {
+        for (BrokerHandler handler : brokerHandlers.values()) {
+            handler.reportReplication();
+        }
+    }
+
+    // A tracked delivery waiting for its subscriber's writer to get past queue position 'position'
+    private static final class TrackedWrite {
+        final Delivery delivery;
+        final long position;
+
+        TrackedWrite(Delivery delivery, long position) {
+            this.delivery = delivery;
+            this.position = position;
+        }
+    }
+
+    private void writeCompleted(Delivery delivery) {
+        if (delivery.writeCompleted()) deliveryLatency.record(System.nanoTime() - delivery.ingressNanos);
+    }
+
+    private void sampleRates() {
+        for (Topic topic : topics.values()) {
+            long published = topic.published.sum();
+            topic.publishRate = (double) (published - topic.ratePublished) / RATE_WINDOW_SECONDS;
+            topic.ratePublished = published;
+        }
+    }
+
+    // STATS reply
+    private String statsSnapshot() {
+        int publishers = 0;
+        int subscribers = 0;
+        for (ClientHandler client : clients) {
+            if (client.isPublisher) publishers++;
+            else subscribers++;
+        }
+        StringBuilder stats = new StringBuilder();
+        stats.append("broker=").append(brokerId)
+             .append(" uptime_s=").append(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos))
+             .append(" connections.publishers=").append(publishers)
+             .append(" connections.subscribers=").append(subscribers)
+             .append(" connections.brokers=").append(brokerHandlers.size())
+             .append(" cluster.publishers=").append(publisherCount.value())
+             .append(" cluster.subscribers=").append(subscriberCount.value())
+             .append(" topics=").append(topics.size())
+             .append(" outbound_drops=").append(outboundDrops.sum());
+        ackLatency.snapshot().appendTo(stats, "ack_latency");
+        deliveryLatency.snapshot().appendTo(stats, "delivery_latency");
+        for (Map.Entry<UUID, Topic> entry : topics.entrySet()) {
+            Topic topic = entry.getValue();
+            String name = " topic." + entry.getKey();
+            stats.append(name).append(".published=").append(topic.published.sum())
+                 .append(name).append(".rate_per_s=").append(String.format(Locale.ROOT, "%.1f", topic.publishRate))
+                 .append(name).append(".fanout=").append(topic.fanout.sum())
+                 .append(name).append(".subscribers=").append(topic.subscribers.size());
+            long tests = topic.filterTests.sum();
+            if (tests > 0) {
+                stats.append(name).append(".filter_groups=").append(topic.filterGroupCount())
+                     .append(name).append(".filter_tests=").append(tests)
+                     .append(name).append(".filter_hit_rate=").append(String.format(Locale.ROOT, "%.3f", (double) topic.filterPasses.sum() / tests))
+                     .append(name).append(".filter_ns=").append(topic.filterNanos.sum() / tests);
+            }
+            long streamed = topic.streamBytes.sum();
+            if (streamed > 0) {
+                stats.append(name).append(".streams=").append(topic.streams.sum())
+                     .append(name).append(".stream_bytes=").append(streamed);
+            }
+        }
+        for (ClientHandler client : clients) {
+            if (client.isPublisher) continue;
+            String name = " subscriber." + client.clientName;
+            stats.append(name).append(".queue=").append(client.outbound.size())
+                 .append(name).append(".peak_queue=").append(client.peakQueueDepth)
+                 .append(name).append(".dropped=").append(client.framesDropped.get());
+            if (client.flowControlled) {
+                client.creditLock.lock();
+                try {
+                    stats.append(name).append(".credit_frames=").append(client.frameCredit)
+                         .append(name).append(".credit_bytes=").append(client.byteCredit);
+                } finally {
+                    client.creditLock.unlock();
+                }
+                stats.append(name).append(".credit_stalls=").append(client.creditStalls.get());
+            }
+            if (client.backlogFrames > 0) stats.append(name).append(".backlog=").append(client.backlogFrames);
+            if (client.spilledBytes > 0) stats.append(name).append(".spilled_bytes=").append(client.spilledBytes);
+        }
+        for (BrokerHandler link : brokerHandlers.values()) {
+            String name = "link." + link.otherBrokerId;
+            stats.append(' ').append(name).append(".queued=").append(link.replicationQueue.size());
+            link.lag.snapshot().appendTo(stats, name + ".lag");
+        }
+        return stats.toString();
+    }
+
+    // The event loop running on this thread, if any
+    private EventLoop currentEventLoop() {
+        if (eventLoops == null) return null;
+        for (EventLoop loop : eventLoops) {
+            if (loop.inLoop()) return loop;
+        }
+        return null;
+    }
+
+    // BLOCK policy: wait for filled clients to drain
+    private void awaitBlockedClients() {
+        List<ClientHandler> blocked = blockedOn.get();
+        if (blocked == null || blocked.isEmpty()) return;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(OUTBOUND_BLOCK_TIMEOUT_MS);
+        for (ClientHandler client : blocked) {
+            client.awaitBacklogDrained(deadline);
+        }
+        blocked.clear();
+    }
+
+    // Owner partitioning: update the ring and move topics
+    private void updateRing(int peerBrokerId, boolean joined) {
+        if (!OWNER_PARTITIONING) return;
+        Map<UUID, Integer> owners = new HashMap<>();
+        for (UUID topicId : topics.keySet()) {
+            owners.put(topicId, ring.owner(topicId));
+        }
+        if (!(joined ? ring.add(peerBrokerId) : ring.remove(peerBrokerId))) return;
+        int moved = 0;
+        for (Map.Entry<UUID, Integer> entry : owners.entrySet()) {
+            int owner = ring.owner(entry.getKey());
+            if (owner == entry.getValue()) continue;
+            moved++;
+            Topic topic = topics.get(entry.getKey());
+            if (topic == null) continue;
+            synchronized (topic) {
+                if (!topic.subscribers.isEmpty()) continue;
+                if (owner == brokerId) {
+                    takeOver(entry.getKey(), topic);
+                } else if (entry.getValue() == brokerId) {
+                    broadcastToOtherBrokers("INTEREST", entry.getKey().toString(), "0");
+                }
+            }
+        }
+        LINK_LOG.info("Broker %d %s the ring %s, %d of %d topics changed owner",
+                peerBrokerId, joined ? "joined" : "left", String.valueOf(ring.members()), moved, owners.size());
+    }
+
+    // Follows a topic this broker now owns; callers hold the topic's monitor
+    private void takeOver(UUID topicId, Topic topic) {
+        follow(topicId, topic);
+        topic.takingOver = topic.catchUps > 0;
+    }
+
+    // Forward a publish to the topic's owner
+    private void forward(BrokerHandler owner, PendingReply reply, int[] positions, boolean listed, Function<String, byte[]> encode) {
+        String forwardId = String.valueOf(nextForwardId.incrementAndGet());
+        reply.forwarded();
+        forwardedPublishes.put(forwardId, new ForwardedPublish(reply, owner.otherBrokerId, positions, listed));
+        owner.sendBytes(encode.apply(forwardId));
+        // A link lost before the forward was registered never answers it (see failForwards)
+        if (brokerHandlers.get(owner.otherBrokerId) != owner) forwardAnswered(forwardId, false, OWNER_LINK_LOST);
+    }
+
+    // Forward batch entries owned by other brokers
+    private void forwardBatchToOwners(String publisherName, Map<UUID, List<String>> accepted,
+                                      Map<UUID, List<Integer>> positions, PendingReply reply) {
+        Map<BrokerHandler, Map<UUID, List<String>>> byOwner = new HashMap<>();
+        Iterator<Map.Entry<UUID, List<String>>> entries = accepted.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<UUID, List<String>> entry = entries.next();
+            int owner = ring.owner(entry.getKey());
+            if (owner == brokerId) continue;
+            entries.remove();
+            BrokerHandler link = brokerHandlers.get(owner);
+            if (link == null) {
+                for (int position : positions.get(entry.getKey())) {
+                    reply.refuse(position, OWNER_UNAVAILABLE);
+                }
+            } else {
+                byOwner.computeIfAbsent(link, l -> new LinkedHashMap<>()).put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<BrokerHandler, Map<UUID, List<String>>> entry : byOwner.entrySet()) {
+            BrokerHandler owner = entry.getKey();
+            Map<UUID, List<String>> batch = entry.getValue();
+            if (owner.binary) {
+                List<Integer> ordered = new ArrayList<>();
+                for (UUID topicId : batch.keySet()) {
+                    ordered.addAll(positions.get(topicId));
+                }
+                int[] batchPositions = ordered.stream().mapToInt(Integer::intValue).toArray();
+                forward(owner, reply, batchPositions, true, forwardId -> encodeBatchFrame(publisherName, forwardId, batch));
+                continue;
+            }
+            for (Map.Entry<UUID, List<String>> topicEntry : batch.entrySet()) {
+                String topicId = topicEntry.getKey().toString();
+                List<Integer> topicPositions = positions.get(topicEntry.getKey());
+                for (int i = 0; i < topicEntry.getValue().size(); i++) {
+                    String content = topicEntry.getValue().get(i);
+                    forward(owner, reply, new int[] {topicPositions.get(i)}, false,
+                            forwardId -> owner.encode("PUBLISHASYNC", topicId, publisherName, forwardId, content));
+                }
+            }
+        }
+    }
+
+    // Owner's answer to a forwarded publish
+    private void forwardAnswered(String forwardId, boolean ok, String message) {
+        ForwardedPublish forward = forwardedPublishes.remove(forwardId);
+        if (forward != null) forward.reply.answered(forward.positions, forward.listed, ok, message);
+    }
+
+    // The owner's clients learn the forward may or may not have gone through
+    private void failForwards(int owner) {
+        for (Map.Entry<String, ForwardedPublish> entry : forwardedPublishes.entrySet()) {
+            if (entry.getValue().owner == owner) forwardAnswered(entry.getKey(), false, OWNER_LINK_LOST);
+        }
+    }
+
+    // Relay new messages to following peers
+    private void relayToPeers(UUID topicId, Delivery[] deliveries) {
+        Set<Integer> peers = peerInterest.getOrDefault(topicId, Collections.emptySet());
+        byte[] frames = null;
+        for (BrokerHandler handler : brokerHandlers.values()) {
+            if (!handler.binary || !peers.contains(handler.otherBrokerId)) {
+                handler.publishesFiltered.addAndGet(deliveries.length);
+                continue;
+            }
+            if (frames == null) frames = bytesOf(Delivery.concat(deliveries, true));
+            handler.sendBytes(frames);
+        }
+    }
+
+    // Record and fan out a message relayed by a peer
+    private void relayFromPeer(BrokerHandler link, UUID topicId, Command command) {
+        long ingressNanos = System.nanoTime();
+        Topic topic = topics.get(topicId);
+        if (topic == null) {
+            LINK_LOG.warn("Received message for non-existent topic: %s", topicId);
+            return;
+        }
+        long sequence;
+        try {
+            sequence = Long.parseLong(command.field(2));
+        } catch (NumberFormatException e) {
+            LINK_LOG.warn("Invalid sequence in relayed message: %s", command.toString());
+            return;
+        }
+        Delivery delivery = new Delivery(topicId, command.field(0), command.payloadText(), command.field(1), sequence);
+        FilterResults tested = topic.testFilters(delivery.content);
+        synchronized (topic) {
+            if (topic.recordRelayed(delivery)) {
+                if (link.catchingUp.get(topicId) == topic) {
+                    topic.relayCaughtUp(delivery);
+                } else {
+                    topic.relay(delivery, ingressNanos, tested);
+                }
             }
-            brokerHandlers.remove(otherBrokerId);
         }
+        topic.syncLog();
+    }
+
+    private void updatePeerInterest(UUID topicId, int peerBrokerId, boolean interested) {
+        if (interested) {
+            peerInterest.computeIfAbsent(topicId, id -> ConcurrentHashMap.newKeySet()).add(peerBrokerId);
+        } else {
+            Set<Integer> peers = peerInterest.get(topicId);
+            if (peers != null) peers.remove(peerBrokerId);
+        }
+    }
+
+    private void dropPeerInterest(int peerBrokerId) {
+        for (Set<Integer> peers : peerInterest.values()) {
+            peers.remove(peerBrokerId);
+        }
+    }
+
+    // Advertise interest in a topic to the peers
+    private void advertiseInterest(UUID topicId, Topic topic, boolean interested) {
+        if (OWNER_PARTITIONING && ring.owner(topicId) == brokerId) return;
+        if (interested) {
+            follow(topicId, topic);
+        } else {
+            broadcastToOtherBrokers("INTEREST", topicId.toString(), "0");
+        }
+    }
+
+    // Follow a topic: peers catch us up and relay it
+    private void follow(UUID topicId, Topic topic) {
+        for (BrokerHandler handler : brokerHandlers.values()) {
+            handler.follow(topicId, topic);
+        }
+    }
+
+    // Topics with local subscribers, and under owner partitioning those this broker owns
+    private boolean follows(UUID topicId, Topic topic) {
+        return !topic.subscribers.isEmpty() || OWNER_PARTITIONING && ring.owner(topicId) == brokerId;
     }
 
-    private void broadcastToOtherBrokers(String message) {
-        System.out.println("Broker!! " + brokerId + " broadcasting to other brokers!!!: " + message);
-        System.out.println("Broadcasting to other brokers: " + message);
+    // Broadcast a command, encoded at most once per link protocol
+    private void broadcastToOtherBrokers(String... parts) {
+        if (LINK_LOG.isDebugEnabled()) LINK_LOG.debug("Broadcasting to other brokers: %s", String.join(":", parts));
+        byte[] textLine = null;
+        byte[] frame = null;
         for (BrokerHandler handler : brokerHandlers.values()) {
             try {
-                handler.sendMessage("Broadcast:" + message);
+                if (handler.binary) {
+                    if (frame == null) {
+                        String[] broadcast = new String[parts.length + 1];
+                        broadcast[0] = "Broadcast";
+                        System.arraycopy(parts, 0, broadcast, 1, parts.length);
+                        frame = BinaryProtocol.Frame.fromParts(broadcast).encode();
+                    }
+                    handler.sendBytes(frame);
+                } else {
+                    if (textLine == null) {
+                        textLine = ("Broadcast:" + String.join(":", parts) + "\n").getBytes(StandardCharsets.UTF_8);
+                    }
+                    handler.sendBytes(textLine);
+                }
             } catch (Exception e) {
-                System.out.println("Failed to send message to broker: " + e.getMessage());
+                LINK_LOG.warn("Failed to send message to broker: %s", e.getMessage());
+            }
+        }
+    }
+
+    // Gossip changed publisher and subscriber counts
+    private void gossipCounts() {
+        String publishers = publisherCount.state();
+        String subscribers = subscriberCount.state();
+        String counts = publishers + ":" + subscribers;
+        if (counts.equals(gossipedCounts)) return;
+        gossipedCounts = counts;
+        broadcastToOtherBrokers("AMOUNT", publishers, subscribers);
+    }
+
+    // Relay a stream chunk to interested binary peers
+    private void forwardChunkToInterestedBrokers(StreamChunk chunk) {
+        Set<Integer> peers = peerInterest.getOrDefault(chunk.topicId, Collections.emptySet());
+        for (BrokerHandler handler : brokerHandlers.values()) {
+            if (!handler.binary || !peers.contains(handler.otherBrokerId)) {
+                handler.chunksFiltered.incrementAndGet();
+                continue;
+            }
+            try {
+                handler.sendBytes(chunk.encoded(handler.deflate, true));
+            } catch (IOException e) {
+                LINK_LOG.warn("Failed to relay chunk %d of stream %s: %s", chunk.index, chunk.streamId, e.getMessage());
+            }
+        }
+    }
+
+    // The buffer's remaining bytes, for queueing on a link
+    private static byte[] bytesOf(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    // A batch as one PUBLISHBATCH frame for the owner to handle, answered under the forward id
+    private static byte[] encodeBatchFrame(String publisherName, String forwardId, Map<UUID, List<String>> batch) {
+        List<UUID> topicIds = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        for (Map.Entry<UUID, List<String>> entry : batch.entrySet()) {
+            for (String content : entry.getValue()) {
+                topicIds.add(entry.getKey());
+                contents.add(content.getBytes(StandardCharsets.UTF_8));
             }
         }
+        return new BinaryProtocol.Frame(BinaryProtocol.PUBLISHBATCH, (byte) 0, 0L, 0L,
+                new String[] {publisherName, forwardId}, BinaryProtocol.encodeBatch(topicIds, contents)).encode();
     }
+
     private void shutdown() {
-        System.out.println("Shutting down Broker " + brokerId);
+        LOG.info("Shutting down Broker %d", brokerId);
         scheduler.shutdownNow();
-        clientHandlerExecutor.shutdownNow();
-        for (BrokerHandler handler : brokerHandlers.values()) {
+        heartbeats.shutdownNow();
+        Socket session = directorySocket;
+        if (session != null) {
             try {
-                handler.socket.close();
+                session.close();
             } catch (IOException e) {
-                System.out.println("Error closing broker connection: " + e.getMessage());
+                LOG.debug("Error closing directory service session: %s", e.getMessage());
+            }
+        }
+        clientHandlerExecutor.shutdownNow();
+        if (eventLoops != null) {
+            for (EventLoop loop : eventLoops) {
+                if (loop != null) loop.close();
             }
         }
+        for (BrokerHandler handler : brokerHandlers.values()) {
+            handler.close();
+        }
         brokerHandlers.clear();
+        for (Topic topic : topics.values()) {
+            topic.closeLog();
+        }
     }
 
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.out.println("Usage: java Broker <brokerId>");
+            System.out.println("Usage: java [-Dbroker.transport=blocking|virtual|nio] Broker <brokerId>");
             System.exit(1);
         }
 
         int brokerId = Integer.parseInt(args[0]);
-        if (brokerId < 0 || brokerId >= BROKER_PORTS.length) {
-            System.out.println("Invalid brokerId. Must be between 0 and " + (BROKER_PORTS.length - 1));
+        if (brokerId < 0) {
+            System.out.println("Invalid brokerId. Must be 0 or more");
             System.exit(1);
         }
 
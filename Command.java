@@ -0,0 +1,477 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+// Reusable, allocation-free view over one text line or binary frame, valid until the next parse
+public final class Command {
+    public static final byte UNKNOWN = -1;
+    private static final int MAX_FIELDS = 8;
+    private static final byte[] BROADCAST_PREFIX = "Broadcast:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = new byte[128];
+    static {
+        Arrays.fill(HEX, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            HEX["0123456789abcdef".charAt(i)] = (byte) i;
+            HEX["0123456789ABCDEF".charAt(i)] = (byte) i;
+        }
+    }
+
+    private byte opcode = UNKNOWN;
+    private boolean broadcast;
+    private boolean hasTopic;
+    private boolean topicValid;
+    private long topicMsb;
+    private long topicLsb;
+
+    private byte[] buf;
+    private int commandStart;
+    private int commandEnd;
+    private int fieldCount;
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private int payloadStart = -1;
+    private int payloadEnd = -1;
+
+    // Buffer owned by this command for stream reads, grown as needed and reused afterwards
+    private byte[] readBuffer = new byte[256];
+
+    public byte opcode() {
+        return opcode;
+    }
+
+    public boolean isBroadcast() {
+        return broadcast;
+    }
+
+    public boolean hasTopic() {
+        return hasTopic;
+    }
+
+    // False when the command should carry a topic id but the text was not a canonical UUID
+    public boolean topicValid() {
+        return topicValid;
+    }
+
+    public long topicMsb() {
+        return topicMsb;
+    }
+
+    public long topicLsb() {
+        return topicLsb;
+    }
+
+    public UUID topicId() {
+        return new UUID(topicMsb, topicLsb);
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    public String field(int index) {
+        if (index >= fieldCount) {
+            return null;
+        }
+        return new String(buf, fieldStart[index], fieldEnd[index] - fieldStart[index], StandardCharsets.UTF_8);
+    }
+
+    // Compares a field with a string without materialising the field (for ASCII values)
+    public boolean fieldEquals(int index, String value) {
+        if (index >= fieldCount) {
+            return false;
+        }
+        if (!isAscii(value)) {
+            return value.equals(field(index));
+        }
+        int length = fieldEnd[index] - fieldStart[index];
+        if (length != value.length()) {
+            return false;
+        }
+        int start = fieldStart[index];
+        for (int i = 0; i < length; i++) {
+            if (buf[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int fieldInt(int index) {
+        if (index >= fieldCount || fieldEnd[index] == fieldStart[index]) {
+            throw new NumberFormatException("Missing numeric field " + index);
+        }
+        int value = 0;
+        int i = fieldStart[index];
+        boolean negative = buf[i] == '-';
+        if (negative) i++;
+        for (; i < fieldEnd[index]; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Not a number: " + field(index));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    public boolean hasPayload() {
+        return payloadStart >= 0;
+    }
+
+    public byte[] buffer() {
+        return buf;
+    }
+
+    public int payloadOffset() {
+        return payloadStart;
+    }
+
+    public int payloadLength() {
+        return payloadStart < 0 ? 0 : payloadEnd - payloadStart;
+    }
+
+    public String payloadText() {
+        return payloadStart < 0 ? null : new String(buf, payloadStart, payloadEnd - payloadStart, StandardCharsets.UTF_8);
+    }
+
+    // Parses one text line (without its line terminator) in place
+    public Command parseText(byte[] source, int offset, int length) {
+        reset(source);
+        int end = offset + length;
+        int pos = offset;
+        if (startsWith(source, pos, end, BROADCAST_PREFIX)) {
+            broadcast = true;
+            pos += BROADCAST_PREFIX.length;
+        }
+        commandStart = pos;
+        int sep = indexOf(source, pos, end);
+        commandEnd = sep;
+        opcode = lookup(source, pos, sep);
+        if (opcode == UNKNOWN && !broadcast && parseTimestamped(source, offset, end)) {
+            return this;
+        }
+        pos = sep < end ? sep + 1 : end;
+        if (opcode == UNKNOWN) {
+            splitFields(pos, end, sep < end);
+            return this;
+        }
+        BinaryProtocol.Layout layout = BinaryProtocol.layout(opcode);
+        if (layout.textRestOfLine) {
+            if (sep < end) addField(pos, end);
+            return this;
+        }
+        int index = 1;
+        hasTopic = layout.hasTopic;
+        if (hasTopic) {
+            if (sep >= end) {
+                return this;
+            }
+            int topicEnd = indexOf(source, pos, end);
+            topicValid = parseUuid(source, pos, topicEnd);
+            pos = topicEnd < end ? topicEnd + 1 : end;
+            sep = topicEnd;
+            index++;
+        }
+        if (layout.payloadIndex < 0) {
+            splitFields(pos, end, sep < end);
+            return this;
+        }
+        // Fields before the payload
+        while (index < layout.payloadIndex && sep < end) {
+            sep = indexOf(source, pos, end);
+            addField(pos, sep);
+            pos = sep < end ? sep + 1 : end;
+            index++;
+        }
+        if (sep >= end) {
+            return this;
+        }
+        // The payload runs up to the separator before the trailing fields, so it may contain ':'
+        int payloadLimit = end;
+        int trailing = 0;
+        while (trailing < layout.textTrailingFields) {
+            int prev = lastIndexOf(source, pos, payloadLimit);
+            if (prev < 0) break;
+            payloadLimit = prev;
+            trailing++;
+        }
+        payloadStart = pos;
+        payloadEnd = payloadLimit;
+        if (trailing > 0) {
+            splitFields(payloadLimit + 1, end, true);
+        }
+        return this;
+    }
+
+    // "<timestamp> <topicId>:<topicName>: <content>", a timestamped MESSAGE line
+    private boolean parseTimestamped(byte[] source, int offset, int end) {
+        for (int space = offset; space + 38 <= end; space++) {
+            if (source[space] != ' ' || source[space + 37] != ':' || !parseUuid(source, space + 1, space + 37)) continue;
+            int nameStart = space + 38;
+            int nameEnd = indexOf(source, nameStart, end);
+            if (nameEnd >= end) return false;
+            opcode = BinaryProtocol.MESSAGE;
+            hasTopic = true;
+            topicValid = true;
+            addField(nameStart, nameEnd);
+            addField(offset, space);
+            payloadStart = nameEnd + 1 < end && source[nameEnd + 1] == ' ' ? nameEnd + 2 : nameEnd + 1;
+            payloadEnd = end;
+            return true;
+        }
+        return false;
+    }
+
+    // Parses one binary frame body (everything after the length prefix) in place
+    public Command parseFrame(byte[] source, int offset, int length) throws IOException {
+        reset(source);
+        int end = offset + length;
+        if (length < BinaryProtocol.HEADER_LENGTH - 4 + 1) {
+            throw new IOException("Frame too short: " + length);
+        }
+        int pos = offset;
+        byte op = source[pos++];
+        if (op < 0 || op >= BinaryProtocol.OPCODE_COUNT) {
+            throw new IOException("Unknown opcode: " + op);
+        }
+        opcode = op;
+        broadcast = (source[pos++] & BinaryProtocol.FLAG_BROADCAST) != 0;
+        topicMsb = readLong(source, pos);
+        topicLsb = readLong(source, pos + 8);
+        pos += 16;
+        hasTopic = BinaryProtocol.layout(op).hasTopic;
+        topicValid = hasTopic;
+        long count = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (pos >= end || shift > 28) throw new IOException("Malformed varint");
+            b = source[pos++];
+            count |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (count > MAX_FIELDS) {
+            throw new IOException("Too many fields: " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            int fieldLength = 0;
+            shift = 0;
+            do {
+                if (pos >= end || shift > 28) throw new IOException("Malformed varint");
+                b = source[pos++];
+                fieldLength |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (fieldLength < 0 || pos + fieldLength > end) {
+                throw new IOException("Field exceeds frame");
+            }
+            addField(pos, pos + fieldLength);
+            pos += fieldLength;
+        }
+        if (BinaryProtocol.layout(op).payloadIndex >= 0) {
+            payloadStart = pos;
+            payloadEnd = end;
+        }
+        return this;
+    }
+
+    // Reads and parses the next '\n' terminated line; returns false at end of stream
+    public boolean readLine(InputStream in) throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (length == readBuffer.length) {
+                readBuffer = Arrays.copyOf(readBuffer, length * 2);
+            }
+            readBuffer[length++] = (byte) b;
+        }
+        if (b == -1 && length == 0) {
+            return false;
+        }
+        if (length > 0 && readBuffer[length - 1] == '\r') {
+            length--;
+        }
+        parseText(readBuffer, 0, length);
+        return true;
+    }
+
+    // Reads and parses the next length-prefixed frame; returns false at end of stream
+    public boolean readFrame(InputStream in) throws IOException {
+        int b0 = in.read();
+        if (b0 == -1) {
+            return false;
+        }
+        int length = (b0 << 24) | (readByte(in) << 16) | (readByte(in) << 8) | readByte(in);
+        if (length < 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if (length > readBuffer.length) {
+            readBuffer = new byte[Math.max(length, readBuffer.length * 2)];
+        }
+        int read = 0;
+        while (read < length) {
+            int n = in.read(readBuffer, read, length - read);
+            if (n < 0) throw new EOFException("Truncated frame");
+            read += n;
+        }
+        parseFrame(readBuffer, 0, length);
+        return true;
+    }
+
+    // Text form of the command, for logging only
+    @Override
+    public String toString() {
+        if (buf == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        if (broadcast) sb.append("Broadcast:");
+        if (opcode == UNKNOWN) {
+            sb.append(new String(buf, commandStart, commandEnd - commandStart, StandardCharsets.UTF_8));
+        } else {
+            sb.append(BinaryProtocol.layout(opcode).command);
+        }
+        int payloadIndex = opcode == UNKNOWN ? -1 : BinaryProtocol.layout(opcode).payloadIndex;
+        int index = 1;
+        if (hasTopic) {
+            sb.append(':').append(topicValid ? topicId().toString() : "?");
+            index++;
+        }
+        for (int i = 0; i < fieldCount; i++) {
+            if (index++ == payloadIndex) sb.append(':').append(payloadText());
+            sb.append(':').append(field(i));
+        }
+        if (index == payloadIndex && hasPayload()) {
+            // Batch entries are binary, log their size only
+            sb.append(':').append(opcode == BinaryProtocol.PUBLISHBATCH ? "<" + payloadLength() + " bytes>" : payloadText());
+        }
+        return sb.toString();
+    }
+
+    private void reset(byte[] source) {
+        buf = source;
+        opcode = UNKNOWN;
+        broadcast = false;
+        hasTopic = false;
+        topicValid = false;
+        topicMsb = 0L;
+        topicLsb = 0L;
+        fieldCount = 0;
+        payloadStart = -1;
+        payloadEnd = -1;
+        commandStart = 0;
+        commandEnd = 0;
+    }
+
+    private void addField(int start, int end) {
+        if (fieldCount == MAX_FIELDS) {
+            // Fold anything beyond the last slot into it, like split with a limit
+            fieldEnd[MAX_FIELDS - 1] = end;
+            return;
+        }
+        fieldStart[fieldCount] = start;
+        fieldEnd[fieldCount] = end;
+        fieldCount++;
+    }
+
+    private void splitFields(int pos, int end, boolean present) {
+        if (!present) return;
+        while (true) {
+            int sep = indexOf(buf, pos, end);
+            addField(pos, sep);
+            if (sep >= end) return;
+            pos = sep + 1;
+        }
+    }
+
+    private static byte lookup(byte[] source, int start, int end) {
+        int length = end - start;
+        for (int op = 1; op < BinaryProtocol.OPCODE_COUNT; op++) {
+            byte[] name = BinaryProtocol.layout(op).commandBytes;
+            if (name.length == length && startsWith(source, start, end, name)) {
+                return (byte) op;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    // Parses the canonical 8-4-4-4-12 hex form written by UUID.toString()
+    private boolean parseUuid(byte[] source, int start, int end) {
+        if (end - start != 36) {
+            return parseUuidSlow(source, start, end);
+        }
+        long msb = 0;
+        long lsb = 0;
+        for (int i = 0; i < 36; i++) {
+            byte c = source[start + i];
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') return false;
+                continue;
+            }
+            int digit = c < 0 ? -1 : HEX[c];
+            if (digit < 0) return false;
+            if (i < 18) {
+                msb = (msb << 4) | digit;
+            } else {
+                lsb = (lsb << 4) | digit;
+            }
+        }
+        topicMsb = msb;
+        topicLsb = lsb;
+        return true;
+    }
+
+    // Non-canonical forms are rare, defer to UUID.fromString for them
+    private boolean parseUuidSlow(byte[] source, int start, int end) {
+        try {
+            UUID id = UUID.fromString(new String(source, start, end - start, StandardCharsets.US_ASCII));
+            topicMsb = id.getMostSignificantBits();
+            topicLsb = id.getLeastSignificantBits();
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static boolean startsWith(byte[] source, int pos, int end, byte[] prefix) {
+        if (end - pos < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (source[pos + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] source, int pos, int end) {
+        while (pos < end && source[pos] != ':') pos++;
+        return pos;
+    }
+
+    private static int lastIndexOf(byte[] source, int start, int end) {
+        for (int i = end - 1; i >= start; i--) {
+            if (source[i] == ':') return i;
+        }
+        return -1;
+    }
+
+    private static long readLong(byte[] source, int pos) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (source[pos + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) throw new EOFException("Truncated frame header");
+        return b;
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,384 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+// Append-only, memory-mapped log of one topic's messages, in segments
+//   <baseOffset>.log    records back to back (int32 length | MESSAGE frame body)
+//   <baseOffset>.index  newest append time (int64 millis), then sparse (int32 offset, int32 position) entries
+class CommitLog implements Closeable {
+    enum FsyncPolicy {
+        ALWAYS,    // force the segment after every append, see force()
+        INTERVAL,  // force from a background timer, see flush()
+        OS         // leave write-back to the operating system
+    }
+
+    static final class Config {
+        final long segmentBytes;
+        final FsyncPolicy fsync;
+        final long retentionBytes;
+        final long retentionMs;
+
+        Config(long segmentBytes, FsyncPolicy fsync, long retentionBytes, long retentionMs) {
+            // A segment must be able to hold at least one maximum-size frame
+            this.segmentBytes = Math.min(Integer.MAX_VALUE, Math.max(segmentBytes, BinaryProtocol.MAX_FRAME_LENGTH + 4L));
+            this.fsync = fsync;
+            this.retentionBytes = retentionBytes;
+            this.retentionMs = retentionMs;
+        }
+    }
+
+    // Records returned by read(), with their first and next offsets
+    static final class Chunk {
+        final ByteBuffer records;
+        final long firstOffset;
+        final long nextOffset;
+
+        Chunk(ByteBuffer records, long firstOffset, long nextOffset) {
+            this.records = records;
+            this.firstOffset = firstOffset;
+            this.nextOffset = nextOffset;
+        }
+    }
+
+    private static final Log.Logger LOG = Log.get("broker.log");
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final int INDEX_ENTRY_BYTES = 8;
+    private static final int INDEX_HEADER_BYTES = 8;
+    // First mapping of a new segment's files; both double from there as they fill
+    private static final int INITIAL_LOG_BYTES = 64 * 1024;
+    private static final int INITIAL_INDEX_BYTES = INDEX_HEADER_BYTES + 64 * INDEX_ENTRY_BYTES;
+
+    private final Path dir;
+    private final Config config;
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment active;
+    private long nextOffset;
+    private boolean dirty;
+    private boolean deleted;
+
+    CommitLog(Path dir, Config config) throws IOException {
+        this.dir = dir;
+        this.config = config;
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        List<Long> baseOffsets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                baseOffsets.add(Long.parseLong(name.substring(0, name.length() - 4)));
+            }
+        }
+        Collections.sort(baseOffsets);
+        for (long baseOffset : baseOffsets) {
+            segments.add(new Segment(baseOffset));
+        }
+        if (segments.isEmpty()) {
+            return;
+        }
+        // Sealed segments may end early after skipped offsets
+        for (int i = 0; i < segments.size() - 1; i++) {
+            segments.get(i).recoverSealed();
+        }
+        active = segments.get(segments.size() - 1);
+        active.recover();
+        nextOffset = active.baseOffset + active.recordCount;
+        applyRetention();
+    }
+
+    synchronized long startOffset() {
+        return segments.isEmpty() ? nextOffset : segments.get(0).baseOffset;
+    }
+
+    synchronized long endOffset() {
+        return nextOffset;
+    }
+
+    // Appends one encoded frame (length prefix included) and returns its offset
+    synchronized long append(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        if (deleted) {
+            throw new IOException("log deleted");
+        }
+        if (active == null) {
+            Files.createDirectories(dir);
+            active = new Segment(nextOffset);
+            segments.add(active);
+        } else if (active.size + length > config.segmentBytes) {
+            roll();
+        }
+        active.append(record);
+        dirty = true;
+        return nextOffset++;
+    }
+
+    // Skip to offset; the next append starts a new segment
+    synchronized void skipTo(long offset) throws IOException {
+        if (offset <= nextOffset) {
+            return;
+        }
+        if (active != null && active.recordCount == 0) {
+            // Named after an offset that will now never be written
+            segments.remove(active);
+            active.close();
+            Files.deleteIfExists(active.logFile);
+            Files.deleteIfExists(active.indexFile);
+            active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        }
+        nextOffset = offset;
+        if (active != null) {
+            roll();
+        }
+    }
+
+    // Force appends to disk, outside the log's lock
+    void force() {
+        Segment segment;
+        synchronized (this) {
+            segment = active;
+        }
+        if (segment != null) {
+            segment.log.force();
+        }
+    }
+
+    // Whole records in [fromOffset, toOffset) from one segment; null at the end
+    synchronized Chunk read(long fromOffset, long toOffset, int maxBytes) {
+        if (segments.isEmpty()) {
+            return null;
+        }
+        fromOffset = Math.max(fromOffset, segments.get(0).baseOffset);
+        if (fromOffset >= Math.min(nextOffset, toOffset)) {
+            return null;
+        }
+        Segment segment = segments.get(0);
+        for (Segment candidate : segments) {
+            if (candidate.baseOffset > fromOffset) break;
+            segment = candidate;
+        }
+        if (fromOffset >= segment.baseOffset + segment.recordCount) {
+            int next = segments.indexOf(segment) + 1;
+            if (next == segments.size()) {
+                return null;
+            }
+            segment = segments.get(next);
+            fromOffset = segment.baseOffset;
+            if (fromOffset >= Math.min(nextOffset, toOffset)) {
+                return null;
+            }
+        }
+        int start = segment.positionOf((int) (fromOffset - segment.baseOffset));
+        int end = start;
+        long offset = fromOffset;
+        long segmentEnd = Math.min(segment.baseOffset + segment.recordCount, toOffset);
+        while (offset < segmentEnd) {
+            int recordLength = 4 + segment.log.getInt(end);
+            if (end > start && end - start + recordLength > maxBytes) break;
+            end += recordLength;
+            offset++;
+        }
+        ByteBuffer records = segment.log.asReadOnlyBuffer();
+        records.limit(end).position(start);
+        return new Chunk(records.slice(), fromOffset, offset);
+    }
+
+    // Force appends to disk under FsyncPolicy.INTERVAL
+    synchronized void flush() {
+        if (dirty && active != null) {
+            active.log.force();
+            active.index.force();
+            dirty = false;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    // Closes the log and removes its files and directory, e.g. once its topic is deleted
+    synchronized void delete() throws IOException {
+        close();
+        for (Segment segment : segments) {
+            Files.deleteIfExists(segment.logFile);
+            Files.deleteIfExists(segment.indexFile);
+        }
+        segments.clear();
+        active = null;
+        deleted = true;
+        Files.deleteIfExists(dir);
+    }
+
+    private void roll() throws IOException {
+        active.log.force();
+        active.index.force();
+        active = new Segment(nextOffset);
+        segments.add(active);
+        applyRetention();
+    }
+
+    // Drop the oldest sealed segments past the size or age limit
+    private void applyRetention() throws IOException {
+        long now = System.currentTimeMillis();
+        long totalBytes = 0;
+        for (Segment segment : segments) {
+            totalBytes += segment.size;
+        }
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            boolean overSize = config.retentionBytes > 0 && totalBytes > config.retentionBytes;
+            boolean expired = config.retentionMs > 0 && now - oldest.newestAppendMillis > config.retentionMs;
+            if (!overSize && !expired) break;
+            segments.remove(0);
+            totalBytes -= oldest.size;
+            oldest.close();
+            // Slices handed out earlier keep the mapping alive; unlinking the files is still safe
+            Files.deleteIfExists(oldest.logFile);
+            Files.deleteIfExists(oldest.indexFile);
+        }
+    }
+
+    // Doubles a mapping's size until it holds needed bytes, without going past limit
+    private static long grown(long capacity, long needed, long limit) {
+        long size = Math.max(capacity, 1);
+        while (size < needed) size *= 2;
+        return Math.max(needed, Math.min(size, limit));
+    }
+
+    private final class Segment {
+        final long baseOffset;
+        final Path logFile;
+        final Path indexFile;
+        final FileChannel logChannel;
+        final FileChannel indexChannel;
+        // Remapped larger by append as the segment fills; slices handed out earlier stay valid
+        MappedByteBuffer log;
+        MappedByteBuffer index;
+        int size;
+        int recordCount;
+        int indexEntries;
+        int bytesSinceIndex;
+        long newestAppendMillis;
+
+        Segment(long baseOffset) throws IOException {
+            this.baseOffset = baseOffset;
+            String name = String.format("%020d", baseOffset);
+            this.logFile = dir.resolve(name + ".log");
+            this.indexFile = dir.resolve(name + ".index");
+            this.logChannel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(logChannel.size(), Math.min(config.segmentBytes, INITIAL_LOG_BYTES)));
+            this.index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(indexChannel.size(), INITIAL_INDEX_BYTES));
+            // A segment never appended to has no time yet and counts from now
+            newestAppendMillis = index.getLong(0);
+            if (newestAppendMillis == 0) newestAppendMillis = System.currentTimeMillis();
+        }
+
+        // Rebuilds size, record count and index of the active segment by walking its records
+        void recover() throws IOException {
+            int position = 0;
+            recordCount = 0;
+            indexEntries = 0;
+            bytesSinceIndex = 0;
+            while (position + 4 <= log.capacity()) {
+                int length = log.getInt(position);
+                if (length <= 0 || length > BinaryProtocol.MAX_FRAME_LENGTH || position + 4 + length > log.capacity()) break;
+                maybeIndex(position);
+                position += 4 + length;
+                bytesSinceIndex += 4 + length;
+                recordCount++;
+            }
+            size = position;
+        }
+
+        void append(ByteBuffer record) throws IOException {
+            int length = record.remaining();
+            if (size + length > log.capacity()) {
+                log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, grown(log.capacity(), size + length, config.segmentBytes));
+            }
+            maybeIndex(size);
+            log.put(size, record, record.position(), length);
+            size += length;
+            bytesSinceIndex += length;
+            recordCount++;
+            newestAppendMillis = System.currentTimeMillis();
+            index.putLong(0, newestAppendMillis);
+        }
+
+        private void maybeIndex(int position) throws IOException {
+            if (indexEntries == 0 || bytesSinceIndex >= INDEX_INTERVAL_BYTES) {
+                int at = INDEX_HEADER_BYTES + indexEntries * INDEX_ENTRY_BYTES;
+                if (at + INDEX_ENTRY_BYTES > index.capacity()) {
+                    index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, grown(index.capacity(), at + INDEX_ENTRY_BYTES, Integer.MAX_VALUE));
+                }
+                index.putInt(at, recordCount);
+                index.putInt(at + 4, position);
+                indexEntries++;
+                bytesSinceIndex = 0;
+            }
+        }
+
+        // Count the records past the last index entry
+        void recoverSealed() {
+            indexEntries = countIndexEntries();
+            int offset = index.getInt(INDEX_HEADER_BYTES + (indexEntries - 1) * INDEX_ENTRY_BYTES);
+            int position = index.getInt(INDEX_HEADER_BYTES + (indexEntries - 1) * INDEX_ENTRY_BYTES + 4);
+            while (position + 4 <= log.capacity()) {
+                int length = log.getInt(position);
+                if (length <= 0 || length > BinaryProtocol.MAX_FRAME_LENGTH || position + 4 + length > log.capacity()) break;
+                position += 4 + length;
+                offset++;
+            }
+            recordCount = offset;
+            size = position;
+        }
+
+        // Position of the record with the given offset relative to this segment
+        int positionOf(int relativeOffset) {
+            int low = 0;
+            int high = indexEntries - 1;
+            int position = 0;
+            int offset = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int entryOffset = index.getInt(INDEX_HEADER_BYTES + mid * INDEX_ENTRY_BYTES);
+                if (entryOffset <= relativeOffset) {
+                    offset = entryOffset;
+                    position = index.getInt(INDEX_HEADER_BYTES + mid * INDEX_ENTRY_BYTES + 4);
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            while (offset < relativeOffset) {
+                position += 4 + log.getInt(position);
+                offset++;
+            }
+            return position;
+        }
+
+        // Every entry after the first has a non-zero position
+        private int countIndexEntries() {
+            int maxEntries = (index.capacity() - INDEX_HEADER_BYTES) / INDEX_ENTRY_BYTES;
+            int count = 1;
+            while (count < maxEntries && index.getInt(INDEX_HEADER_BYTES + count * INDEX_ENTRY_BYTES + 4) > 0) count++;
+            return count;
+        }
+
+        void close() {
+            try {
+                logChannel.close();
+                indexChannel.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing log segment %s: %s", logFile, e.getMessage());
+            }
+        }
+    }
+}
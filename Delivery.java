@@ -0,0 +1,120 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+// One published message, encoded once per protocol and shared by every subscriber
+class Delivery {
+    final UUID topicId;
+    final String topicName;
+    final String content;
+    final String timestamp;
+    final long sequence;
+    static final byte[] MESSAGE_PREFIX = "MESSAGE:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private ByteBuffer text;
+    private ByteBuffer frame;
+    // Sampled deliveries only: arrival time and outstanding writes, for the latency histogram
+    long ingressNanos;
+    private volatile int pendingWrites;
+    private static final AtomicIntegerFieldUpdater<Delivery> PENDING_WRITES =
+            AtomicIntegerFieldUpdater.newUpdater(Delivery.class, "pendingWrites");
+
+    Delivery(UUID topicId, String topicName, String content, String timestamp, long sequence) {
+        this.topicId = topicId;
+        this.topicName = topicName;
+        this.content = content;
+        this.timestamp = timestamp == null || timestamp.isEmpty() ? null : timestamp;
+        this.sequence = sequence;
+    }
+
+    // Rebuilds a delivery from a MESSAGE frame, e.g. a record read back from a topic's commit log
+    static Delivery fromFrame(BinaryProtocol.Frame frame) {
+        String timestamp = frame.fields.length > 1 ? frame.fields[1] : null;
+        long sequence = frame.fields.length > 2 ? Long.parseLong(frame.fields[2]) : -1;
+        return new Delivery(frame.topicId(), frame.fields[0], frame.payloadText(), timestamp, sequence);
+    }
+
+    // The encoded messages back to back in one read-only buffer, for queueing a whole batch at once
+    static ByteBuffer concat(Delivery[] deliveries, boolean binary) {
+        int length = 0;
+        for (Delivery delivery : deliveries) {
+            length += delivery.encoded(binary).remaining();
+        }
+        ByteBuffer batch = ByteBuffer.allocate(length);
+        for (Delivery delivery : deliveries) {
+            batch.put(delivery.encoded(binary));
+        }
+        batch.flip();
+        return batch.asReadOnlyBuffer();
+    }
+
+    // Starts tracking a sampled delivery that is about to be queued to 'subscribers' clients
+    void expectWrites(long ingressNanos, int subscribers) {
+        this.ingressNanos = ingressNanos;
+        this.pendingWrites = subscribers + 1;
+    }
+
+    // One write is done; true for the last one
+    boolean writeCompleted() {
+        return PENDING_WRITES.decrementAndGet(this) == 0;
+    }
+
+    // A fresh view of the encoded message for one subscriber, under the topic's monitor
+    ByteBuffer encoded(boolean binary) {
+        if (binary) {
+            if (frame == null) {
+                frame = ByteBuffer.wrap(BinaryProtocol.encodeMessage(topicId.getMostSignificantBits(), topicId.getLeastSignificantBits(),
+                        topicName, timestamp == null ? "" : timestamp, sequence, content)).asReadOnlyBuffer();
+            }
+            return frame.duplicate();
+        }
+        if (text == null) {
+            text = ByteBuffer.wrap(encodeText()).asReadOnlyBuffer();
+        }
+        return text.duplicate();
+    }
+
+    // The text MESSAGE line, timestamped when there is a timestamp
+    private byte[] encodeText() {
+        int length = (timestamp != null ? BinaryProtocol.utf8Length(timestamp) + 1 : MESSAGE_PREFIX.length)
+                + 36 + 1 + BinaryProtocol.utf8Length(topicName) + (timestamp != null ? 2 : 1)
+                + BinaryProtocol.utf8Length(content) + 1;
+        ByteBuffer line = ByteBuffer.allocate(length);
+        if (timestamp != null) {
+            BinaryProtocol.putUtf8(line, timestamp);
+            line.put((byte) ' ');
+        } else {
+            line.put(MESSAGE_PREFIX);
+        }
+        putUuid(line, topicId);
+        line.put((byte) ':');
+        BinaryProtocol.putUtf8(line, topicName);
+        line.put((byte) ':');
+        if (timestamp != null) line.put((byte) ' ');
+        BinaryProtocol.putUtf8(line, content);
+        line.put((byte) '\n');
+        return line.array();
+    }
+
+    // Same text as UUID.toString(), without building the string
+    private static void putUuid(ByteBuffer buffer, UUID id) {
+        long msb = id.getMostSignificantBits();
+        long lsb = id.getLeastSignificantBits();
+        putHex(buffer, msb >>> 32, 8);
+        buffer.put((byte) '-');
+        putHex(buffer, msb >>> 16, 4);
+        buffer.put((byte) '-');
+        putHex(buffer, msb, 4);
+        buffer.put((byte) '-');
+        putHex(buffer, lsb >>> 48, 4);
+        buffer.put((byte) '-');
+        putHex(buffer, lsb, 12);
+    }
+
+    private static void putHex(ByteBuffer buffer, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            buffer.put(HEX_DIGITS[(int) (value >>> shift) & 0xF]);
+        }
+    }
+}
@@ -6,18 +6,60 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public class DirectoryService {
     private static final int PORT = 6000;
+    // A joined broker that sends no heartbeat for this long is taken out of the cluster
+    private static final long HEARTBEAT_TIMEOUT_MS = Long.getLong("directory.heartbeatTimeoutMs", 5000);
+    // Events a session may have waiting before it is cut off
+    private static final int SESSION_QUEUE_CAPACITY = Integer.getInteger("directory.sessionQueueCapacity", 1024);
+    // Queued after a session's last event to stop its writer
+    private static final String END_OF_SESSION = new String("END_OF_SESSION");
+    private static final Log.Logger LOG = Log.get("directory");
     private final Map<Integer, BrokerInfo> brokerRegistry = new ConcurrentHashMap<>();
     private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
 
     private static class BrokerInfo {
         String address;
         int port;
         AtomicInteger connectionCount;
+        // Open for JOINed brokers; null for a REGISTER
+        final Socket session;
+        final PrintWriter sessionOut;
+        // Events waiting for the session's writer
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>(SESSION_QUEUE_CAPACITY);
+        volatile long lastHeartbeat = System.nanoTime();
 
         BrokerInfo(String address, int port) {
+            this(address, port, null, null);
+        }
+
+        BrokerInfo(String address, int port, Socket session, PrintWriter sessionOut) {
             this.address = address;
             this.port = port;
             this.connectionCount = new AtomicInteger(0);
+            this.session = session;
+            this.sessionOut = sessionOut;
+        }
+
+        // Push a membership event; a session that falls behind is closed
+        void push(String line) {
+            if (sessionOut == null) return;
+            if (!events.offer(line)) {
+                LOG.warn("Session of broker at %s is %d events behind, closing it", this, SESSION_QUEUE_CAPACITY);
+                closeSession(this);
+            }
+        }
+
+        // The session's writer: the only thread writing to the broker once it has joined
+        void writeEvents() {
+            try {
+                String line;
+                while ((line = events.take()) != END_OF_SESSION) {
+                    sessionOut.println(line);
+                    if (sessionOut.checkError()) return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
 
         @Override
@@ -27,16 +69,18 @@ public class DirectoryService {
     }
 
     public void start() {
+        scheduler.scheduleWithFixedDelay(this::expireBrokers, HEARTBEAT_TIMEOUT_MS / 2, HEARTBEAT_TIMEOUT_MS / 2, TimeUnit.MILLISECONDS);
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Directory Service is running on port " + PORT);
+            LOG.info("Directory Service is running on port %d", PORT);
             while (true) {
                 Socket clientSocket = serverSocket.accept();
                 executorService.submit(new ClientHandler(clientSocket));
             }
         } catch (IOException e) {
-            System.out.println("Error starting directory service: " + e.getMessage());
+            LOG.error("Error starting directory service: %s", e.getMessage());
         } finally {
             executorService.shutdown();
+            scheduler.shutdownNow();
         }
     }
 
@@ -54,9 +98,13 @@ public class DirectoryService {
                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
             ) {
                 String message = in.readLine();
-                System.out.println("Received message: " + message);
+                LOG.debug("Received message: %s", message);
                 
-                if (message.startsWith("REGISTER:")) {
+                if (message == null) {
+                    return;
+                } else if (message.startsWith("JOIN:")) {
+                    handleBrokerSession(message, in, out);
+                } else if (message.startsWith("REGISTER:")) {
                     handleBrokerRegistration(message, out);
                 } else if (message.equals("QUERY_BROKERS")) {
                     handleClientQuery(out);
@@ -66,7 +114,7 @@ public class DirectoryService {
                     out.println("ERROR:Invalid command");
                 }
             } catch (IOException e) {
-                System.out.println("Error handling client: " + e.getMessage());
+                LOG.debug("Error handling client: %s", e.getMessage());
             }
         }
 
@@ -81,7 +129,48 @@ public class DirectoryService {
             int port = Integer.parseInt(parts[3]);
             registerBroker(brokerId, address, port);
             out.println("SUCCESS:Broker registered");
-            System.out.println("Broker registered: " + brokerId + " at " + address + ":" + port);
+            LOG.info("Broker registered: %d at %s:%d", brokerId, address, port);
+        }
+
+        // JOIN: keep the broker registered while it sends heartbeats, and push membership events
+        private void handleBrokerSession(String message, BufferedReader in, PrintWriter out) throws IOException {
+            String[] parts = message.split(":");
+            int brokerId;
+            int port;
+            try {
+                if (parts.length != 4) throw new NumberFormatException();
+                brokerId = Integer.parseInt(parts[1]);
+                port = Integer.parseInt(parts[3]);
+            } catch (NumberFormatException e) {
+                out.println("ERROR:Invalid join format");
+                return;
+            }
+            BrokerInfo member = new BrokerInfo(parts[2], port, socket, out);
+            executorService.execute(member::writeEvents);
+            StringBuilder members = new StringBuilder();
+            synchronized (brokerRegistry) {
+                BrokerInfo previous = brokerRegistry.put(brokerId, member);
+                // A restarted broker rejoining before its old session timed out replaces it
+                if (previous != null) closeSession(previous);
+                member.push("SUCCESS:Broker registered");
+                for (Map.Entry<Integer, BrokerInfo> entry : brokerRegistry.entrySet()) {
+                    if (entry.getKey() == brokerId) continue;
+                    if (members.length() > 0) members.append(',');
+                    members.append(entry.getKey()).append('=').append(entry.getValue());
+                }
+                member.push("MEMBERS:" + members);
+                broadcast(brokerId, "JOINED:" + brokerId + ":" + member);
+            }
+            LOG.info("Broker joined: %d at %s", brokerId, member);
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.equals("HEARTBEAT")) member.lastHeartbeat = System.nanoTime();
+                }
+            } catch (IOException e) {
+                LOG.debug("Session of broker %d ended: %s", brokerId, e.getMessage());
+            }
+            leave(brokerId, member, "disconnected");
         }
 
         private void handleClientQuery(PrintWriter out) {
@@ -89,22 +178,22 @@ public class DirectoryService {
             if (leastLoaded != null) {
                 leastLoaded.connectionCount.incrementAndGet();
                 out.println(leastLoaded.toString());
-                System.out.println("Assigned client to broker: " + leastLoaded);
+                LOG.info("Assigned client to broker: %s", leastLoaded.toString());
             } else {
                 out.println("ERROR:No brokers available");
-                System.out.println("No brokers available for client query");
+                LOG.warn("No brokers available for client query");
             }
         }
 
         private void handleClientDisconnection(String message) {
             String[] parts = message.split(":");
             if (parts.length != 2) {
-                System.out.println("ERROR:Invalid disconnection message format");
+                LOG.warn("Invalid disconnection message format: %s", message);
                 return;
             }
             int brokerId = Integer.parseInt(parts[1]);
             clientDisconnected(brokerId);
-            System.out.println("Client disconnected from broker: " + brokerId);
+            LOG.info("Client disconnected from broker: %d", brokerId);
         }
     }
 
@@ -112,6 +201,45 @@ public class DirectoryService {
         brokerRegistry.put(brokerId, new BrokerInfo(address, port));
     }
 
+    // Takes a member out and tells the others, unless it already left or was replaced by a rejoin
+    private void leave(int brokerId, BrokerInfo member, String reason) {
+        synchronized (brokerRegistry) {
+            if (!brokerRegistry.remove(brokerId, member)) return;
+            broadcast(brokerId, "LEFT:" + brokerId);
+        }
+        closeSession(member);
+        LOG.info("Broker left: %d (%s)", brokerId, reason);
+    }
+
+    // Tells every joined broker but one of a membership change; callers hold the registry's monitor
+    private void broadcast(int exceptBrokerId, String event) {
+        for (Map.Entry<Integer, BrokerInfo> entry : brokerRegistry.entrySet()) {
+            if (entry.getKey() != exceptBrokerId) entry.getValue().push(event);
+        }
+    }
+
+    private void expireBrokers() {
+        long now = System.nanoTime();
+        for (Map.Entry<Integer, BrokerInfo> entry : brokerRegistry.entrySet()) {
+            BrokerInfo member = entry.getValue();
+            if (member.session != null && now - member.lastHeartbeat > TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_TIMEOUT_MS)) {
+                leave(entry.getKey(), member, "no heartbeat for " + HEARTBEAT_TIMEOUT_MS + " ms");
+            }
+        }
+    }
+
+    // Also stops the session's writer, dropping the events it has not written
+    private static void closeSession(BrokerInfo member) {
+        if (member.session == null) return;
+        member.events.clear();
+        member.events.offer(END_OF_SESSION);
+        try {
+            member.session.close();
+        } catch (IOException e) {
+            LOG.debug("Error closing broker session: %s", e.getMessage());
+        }
+    }
+
     private BrokerInfo getLeastLoadedBroker() {
         return brokerRegistry.values().stream()
             .min(Comparator.comparingInt(b -> b.connectionCount.get()))
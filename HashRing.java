@@ -0,0 +1,55 @@
+import java.util.*;
+
+// Consistent hash ring assigning each topic to one owning broker
+class HashRing {
+    private final int virtualNodes;
+    private volatile TreeMap<Long, Integer> points = new TreeMap<>();
+
+    HashRing(int virtualNodes) {
+        this.virtualNodes = Math.max(1, virtualNodes);
+    }
+
+    synchronized boolean add(int brokerId) {
+        if (points.containsValue(brokerId)) return false;
+        TreeMap<Long, Integer> updated = new TreeMap<>(points);
+        for (int i = 0; i < virtualNodes; i++) {
+            updated.put(pointHash(brokerId, i), brokerId);
+        }
+        points = updated;
+        return true;
+    }
+
+    synchronized boolean remove(int brokerId) {
+        if (!points.containsValue(brokerId)) return false;
+        TreeMap<Long, Integer> updated = new TreeMap<>(points);
+        updated.values().removeIf(id -> id == brokerId);
+        points = updated;
+        return true;
+    }
+
+    // Owning broker of a topic, or -1 while the ring is empty
+    int owner(UUID topicId) {
+        TreeMap<Long, Integer> current = points;
+        if (current.isEmpty()) return -1;
+        Map.Entry<Long, Integer> point = current.ceilingEntry(mix(topicId.getMostSignificantBits() ^ mix(topicId.getLeastSignificantBits())));
+        return (point != null ? point : current.firstEntry()).getValue();
+    }
+
+    SortedSet<Integer> members() {
+        return new TreeSet<>(points.values());
+    }
+
+    private static long pointHash(int brokerId, int virtualNode) {
+        return mix(((long) brokerId << 32) | virtualNode);
+    }
+
+    // MurmurHash3 64-bit finalizer: spreads neighbouring inputs over the whole ring
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93e5372a3b7L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear latency histogram (within 12.5%), striped so recording never contends
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final int STRIPES = Integer.highestOneBit(Math.min(16, Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)));
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)].incrementAndGet(bucket(nanos));
+        total.add(nanos);
+        if (nanos > max.get()) max.accumulateAndGet(nanos, Math::max);
+    }
+
+    Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return new Snapshot(counts, total.sum(), max.get());
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Highest value that falls into a bucket
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = SUB_BUCKETS + bucket % SUB_BUCKETS;
+        return ((sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    static final class Snapshot {
+        private final long[] counts;
+        final long count;
+        final long sum;
+        final long max;
+
+        private Snapshot(long[] counts, long sum, long max) {
+            long count = 0;
+            for (long c : counts) count += c;
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        // Value at or below which the given fraction of the recorded values lie, e.g. 0.99
+        long percentile(double fraction) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(upperBound(i), max);
+            }
+            return max;
+        }
+
+        long mean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        // name.count=... name.mean=... name.p50=... up to name.max, in microseconds
+        void appendTo(StringBuilder out, String name) {
+            out.append(' ').append(name).append(".count=").append(count)
+               .append(' ').append(name).append(".mean_us=").append(micros(mean()))
+               .append(' ').append(name).append(".p50_us=").append(micros(percentile(0.5)))
+               .append(' ').append(name).append(".p90_us=").append(micros(percentile(0.9)))
+               .append(' ').append(name).append(".p99_us=").append(micros(percentile(0.99)))
+               .append(' ').append(name).append(".p999_us=").append(micros(percentile(0.999)))
+               .append(' ').append(name).append(".max_us=").append(micros(max));
+        }
+
+        private static long micros(long nanos) {
+            return nanos / 1000;
+        }
+    }
+}
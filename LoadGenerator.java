@@ -0,0 +1,399 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless load against a running cluster, measuring latency from the send schedule
+public class LoadGenerator {
+    private static final Log.Logger LOG = Log.get("loadgen");
+    private static final String DIRECTORY = System.getProperty("load.directory", "localhost:6000");
+    private static final int PUBLISHERS = Integer.getInteger("load.publishers", 1);
+    private static final int SUBSCRIBERS = Integer.getInteger("load.subscribers", 1);
+    private static final int TOPICS_PER_PUBLISHER = Integer.getInteger("load.topicsPerPublisher", 1);
+    // Messages per second per publisher; 0 publishes as fast as the window allows
+    private static final int RATE = Integer.getInteger("load.rate", 1000);
+    private static final int WINDOW = Integer.getInteger("load.window", 64);
+    private static final int PAYLOAD_SIZE = Integer.getInteger("load.payloadSize", 100);
+    private static final int WARMUP_SECONDS = Integer.getInteger("load.warmupSeconds", 5);
+    private static final int DURATION_SECONDS = Integer.getInteger("load.durationSeconds", 30);
+    private static final String REPORT = System.getProperty("load.report", "load-report.json");
+    private static final String PROTOCOL = System.getProperty("protocol", "binary");
+    private static final int CONNECTION_TIMEOUT_MS = 5000;
+    // How long to wait after the run for outstanding ACKs and deliveries
+    private static final long DRAIN_TIMEOUT_MS = 10_000;
+
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+    private final LatencyHistogram endToEndLatency = new LatencyHistogram();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong acked = new AtomicLong();
+    private final AtomicLong nacked = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    // Messages due in [measureStart, measureEnd) are counted; earlier ones are warmup
+    private volatile long measureStart;
+    private volatile long measureEnd;
+
+    // One connection to a broker, as the directory assigned it
+    private abstract class Client {
+        final String name;
+        final Socket socket = new Socket();
+        OutputStream out;
+        InputStream in;
+        boolean binary;
+        final Command command = new Command();
+        Thread reader;
+
+        Client(String name) {
+            this.name = name;
+        }
+
+        void connect(String role) throws IOException {
+            String broker = queryDirectory();
+            int colon = broker.lastIndexOf(':');
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(broker.substring(0, colon), Integer.parseInt(broker.substring(colon + 1))), CONNECTION_TIMEOUT_MS);
+            socket.setSoTimeout(CONNECTION_TIMEOUT_MS);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new BufferedInputStream(socket.getInputStream());
+            boolean offerBinary = "binary".equals(PROTOCOL);
+            out.write((role + ":" + name + (offerBinary ? ":" + BinaryProtocol.VERSION : "") + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String response = BinaryProtocol.readLine(in);
+            if (response == null || !response.startsWith("SUCCESS:")) {
+                throw new IOException(name + " was refused by broker " + broker + ": " + response);
+            }
+            binary = offerBinary && BinaryProtocol.acceptsBinary(response);
+            LOG.debug("%s connected to broker %s", name, broker);
+        }
+
+        void send(String... parts) throws IOException {
+            if (binary) {
+                out.write(BinaryProtocol.Frame.fromParts(parts).encode());
+            } else {
+                out.write((String.join(":", parts) + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+        }
+
+        // Next reply during setup, before the reader thread owns the input
+        String readReply() throws IOException {
+            if (binary) {
+                BinaryProtocol.Frame frame = BinaryProtocol.readFrame(in);
+                return frame == null ? null : frame.toTextLine();
+            }
+            return BinaryProtocol.readLine(in);
+        }
+
+        void startReader() throws IOException {
+            socket.setSoTimeout(0);
+            reader = new Thread(() -> {
+                try {
+                    while (true) {
+                        if (binary) {
+                            byte[] frame = BinaryProtocol.readFrameBody(in);
+                            if (frame == null) break;
+                            received(command.parseFrame(frame, 0, frame.length), null);
+                        } else {
+                            byte[] line = BinaryProtocol.readLineBytes(in);
+                            if (line == null) break;
+                            received(command.parseText(line, 0, line.length), line);
+                        }
+                    }
+                } catch (IOException e) {
+                    if (!socket.isClosed()) LOG.warn("%s stopped reading: %s", name, e.getMessage());
+                }
+            }, name + "-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        // A message from the broker on the reader thread; line holds the raw text line in text mode
+        abstract void received(Command command, byte[] line);
+
+        void close(String role) {
+            if (out == null) return;
+            try {
+                send("EXIT", role);
+                socket.close();
+            } catch (IOException e) {
+                LOG.debug("Error closing %s: %s", name, e.getMessage());
+            }
+        }
+    }
+
+    private class LoadPublisher extends Client {
+        final UUID[] topicIds = new UUID[TOPICS_PER_PUBLISHER];
+        final Semaphore window = new Semaphore(WINDOW);
+        // When each in-flight publish was due, by correlation id; the window bounds the ids in flight
+        final AtomicLongArray dueAt = new AtomicLongArray(Integer.highestOneBit(Math.max(1, WINDOW - 1)) << 1);
+        long nextCorrelationId;
+
+        LoadPublisher(int index) {
+            super("loadpub-" + index);
+        }
+
+        void createTopics(int index) throws IOException {
+            for (int t = 0; t < topicIds.length; t++) {
+                UUID topicId = UUID.randomUUID();
+                send("CREATETOPIC", topicId.toString(), "load-" + index + "-" + t);
+                String response = readReply();
+                if (response == null || !response.startsWith("SUCCESS:")) {
+                    throw new IOException(name + " could not create a topic: " + response);
+                }
+                topicIds[t] = topicId;
+            }
+        }
+
+        // Send everything due, late or not, so stalls show in the latencies
+        void run(long start) {
+            long giveUp = measureEnd + DRAIN_TIMEOUT_MS * 1_000_000L;
+            long interval = RATE > 0 ? 1_000_000_000L / RATE : 0;
+            String padding = "x".repeat(PAYLOAD_SIZE);
+            try {
+                for (long i = 0; ; i++) {
+                    long due = start + i * interval;
+                    long now;
+                    while ((now = System.nanoTime()) < due) {
+                        LockSupport.parkNanos(due - now);
+                    }
+                    if (interval == 0 ? now >= measureEnd : due >= measureEnd || now >= giveUp) break;
+                    window.acquireUninterruptibly();
+                    if (interval == 0) due = System.nanoTime();
+                    long correlationId = nextCorrelationId++;
+                    dueAt.set((int) (correlationId & (dueAt.length() - 1)), due);
+                    String stamp = Long.toString(due);
+                    String content = stamp + " " + padding.substring(Math.min(padding.length(), stamp.length() + 1));
+                    send("PUBLISHASYNC", topicIds[(int) (i % topicIds.length)].toString(), name, Long.toString(correlationId), content);
+                    if (measured(due)) published.incrementAndGet();
+                }
+            } catch (IOException e) {
+                LOG.error("%s stopped publishing: %s", name, e.getMessage());
+            }
+        }
+
+        @Override
+        void received(Command command, byte[] line) {
+            boolean ack = command.opcode() == BinaryProtocol.ACK;
+            if (!ack && command.opcode() != BinaryProtocol.NACK) return;
+            long correlationId;
+            try {
+                correlationId = Long.parseLong(command.field(0));
+            } catch (NumberFormatException e) {
+                LOG.warn("%s got an acknowledgement for unknown publish %s", name, command.field(0));
+                return;
+            }
+            long due = dueAt.get((int) (correlationId & (dueAt.length() - 1)));
+            window.release();
+            if (!measured(due)) return;
+            if (ack) {
+                ackLatency.record(System.nanoTime() - due);
+                acked.incrementAndGet();
+            } else {
+                nacked.incrementAndGet();
+                LOG.debug("%s publish %d refused: %s", name, correlationId, command.payloadText());
+            }
+        }
+
+        boolean drained() {
+            return window.availablePermits() == WINDOW;
+        }
+    }
+
+    private class LoadSubscriber extends Client {
+        LoadSubscriber(int index) {
+            super("loadsub-" + index);
+        }
+
+        // Topics created elsewhere arrive by replication, so retry
+        void subscribe(UUID topicId) throws IOException, InterruptedException {
+            long deadline = System.currentTimeMillis() + CONNECTION_TIMEOUT_MS;
+            while (true) {
+                send("SUBSCRIBE", topicId.toString(), name, String.valueOf(socket.getLocalPort()), "latest");
+                String response = readReply();
+                if (response != null && response.startsWith("SUCCESS:")) return;
+                if (response == null || System.currentTimeMillis() > deadline) {
+                    throw new IOException(name + " could not subscribe to " + topicId + ": " + response);
+                }
+                Thread.sleep(100);
+            }
+        }
+
+        @Override
+        void received(Command command, byte[] line) {
+            String content;
+            if (command.opcode() == BinaryProtocol.MESSAGE) {
+                content = command.payloadText();
+            } else if (line != null && command.opcode() == Command.UNKNOWN) {
+                // "<timestamp> <topicId>:<topicName>: <content>"
+                String text = new String(line, StandardCharsets.UTF_8);
+                int separator = text.indexOf(": ");
+                if (separator < 0) return;
+                content = text.substring(separator + 2);
+            } else {
+                return;
+            }
+            int space = content.indexOf(' ');
+            long due;
+            try {
+                due = Long.parseLong(space < 0 ? content : content.substring(0, space));
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (!measured(due)) return;
+            endToEndLatency.record(System.nanoTime() - due);
+            delivered.incrementAndGet();
+        }
+    }
+
+    private boolean measured(long due) {
+        return due >= measureStart && due < measureEnd;
+    }
+
+    private static String queryDirectory() throws IOException {
+        int colon = DIRECTORY.lastIndexOf(':');
+        try (Socket directorySocket = new Socket(DIRECTORY.substring(0, colon), Integer.parseInt(DIRECTORY.substring(colon + 1)));
+             PrintWriter out = new PrintWriter(directorySocket.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(directorySocket.getInputStream()))) {
+            out.println("QUERY_BROKERS");
+            String response = in.readLine();
+            if (response == null || response.isEmpty() || response.startsWith("ERROR:")) {
+                throw new IOException("No broker from the directory: " + response);
+            }
+            return response.split(",")[0];
+        }
+    }
+
+    public void run() throws IOException, InterruptedException {
+        List<LoadPublisher> publishers = new ArrayList<>();
+        List<LoadSubscriber> subscribers = new ArrayList<>();
+        try {
+            for (int p = 0; p < PUBLISHERS; p++) {
+                LoadPublisher publisher = new LoadPublisher(p);
+                publishers.add(publisher);
+                publisher.connect("PUBLISHER");
+                publisher.createTopics(p);
+            }
+            for (int s = 0; s < SUBSCRIBERS; s++) {
+                LoadSubscriber subscriber = new LoadSubscriber(s);
+                subscribers.add(subscriber);
+                subscriber.connect("SUBSCRIBER");
+                for (LoadPublisher publisher : publishers) {
+                    for (UUID topicId : publisher.topicIds) {
+                        subscriber.subscribe(topicId);
+                    }
+                }
+                subscriber.startReader();
+            }
+            for (LoadPublisher publisher : publishers) {
+                publisher.startReader();
+            }
+            LOG.info("%d publishers, %d subscribers, %d topics: warming up for %ds, measuring for %ds",
+                    PUBLISHERS, SUBSCRIBERS, PUBLISHERS * TOPICS_PER_PUBLISHER, WARMUP_SECONDS, DURATION_SECONDS);
+
+            long start = System.nanoTime();
+            measureStart = start + WARMUP_SECONDS * 1_000_000_000L;
+            measureEnd = measureStart + DURATION_SECONDS * 1_000_000_000L;
+            List<Thread> senders = new ArrayList<>();
+            for (LoadPublisher publisher : publishers) {
+                // Publishers start staggered across one interval so their sends do not line up
+                long offset = RATE > 0 ? 1_000_000_000L / RATE * senders.size() / PUBLISHERS : 0;
+                Thread sender = new Thread(() -> publisher.run(start + offset), publisher.name);
+                sender.start();
+                senders.add(sender);
+            }
+            for (Thread sender : senders) {
+                sender.join();
+            }
+            drain(publishers);
+            report();
+        } finally {
+            for (LoadPublisher publisher : publishers) publisher.close("PUBLISHER");
+            for (LoadSubscriber subscriber : subscribers) subscriber.close("SUBSCRIBER");
+        }
+    }
+
+    // Waits for every ACK, then until deliveries stop arriving, each within DRAIN_TIMEOUT_MS
+    private void drain(List<LoadPublisher> publishers) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        for (LoadPublisher publisher : publishers) {
+            while (!publisher.drained() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+        long expected = published.get() * SUBSCRIBERS;
+        deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        long seen = -1;
+        while (delivered.get() < expected && delivered.get() != seen && System.currentTimeMillis() < deadline) {
+            seen = delivered.get();
+            Thread.sleep(500);
+        }
+    }
+
+    private void report() throws IOException {
+        LatencyHistogram.Snapshot ack = ackLatency.snapshot();
+        LatencyHistogram.Snapshot endToEnd = endToEndLatency.snapshot();
+        long expected = published.get() * SUBSCRIBERS;
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"config\": {\"publishers\": ").append(PUBLISHERS)
+            .append(", \"subscribers\": ").append(SUBSCRIBERS)
+            .append(", \"topicsPerPublisher\": ").append(TOPICS_PER_PUBLISHER)
+            .append(", \"rate\": ").append(RATE)
+            .append(", \"window\": ").append(WINDOW)
+            .append(", \"payloadSize\": ").append(PAYLOAD_SIZE)
+            .append(", \"protocol\": \"").append(PROTOCOL).append('"')
+            .append(", \"warmupSeconds\": ").append(WARMUP_SECONDS)
+            .append(", \"durationSeconds\": ").append(DURATION_SECONDS)
+            .append(", \"coordinatedOmissionCorrected\": ").append(RATE > 0).append("},\n");
+        json.append("  \"published\": ").append(published.get())
+            .append(", \"acked\": ").append(acked.get())
+            .append(", \"nacked\": ").append(nacked.get())
+            .append(", \"delivered\": ").append(delivered.get())
+            .append(", \"expectedDeliveries\": ").append(expected).append(",\n");
+        json.append("  \"publishRate\": ").append(rate(acked.get()))
+            .append(", \"deliveryRate\": ").append(rate(delivered.get())).append(",\n");
+        appendLatency(json, "ackLatencyUs", ack).append(",\n");
+        appendLatency(json, "endToEndLatencyUs", endToEnd).append("\n}\n");
+        if (!REPORT.isEmpty()) Files.write(Paths.get(REPORT), json.toString().getBytes(StandardCharsets.UTF_8));
+
+        System.out.printf("published %d, acked %d, nacked %d, delivered %d of %d%n",
+                published.get(), acked.get(), nacked.get(), delivered.get(), expected);
+        System.out.printf("throughput: %.1f publishes/s, %.1f deliveries/s%n", rate(acked.get()), rate(delivered.get()));
+        printLatency("ack", ack);
+        printLatency("end-to-end", endToEnd);
+        if (!REPORT.isEmpty()) System.out.println("report written to " + REPORT);
+    }
+
+    private static double rate(long count) {
+        return Math.round(count * 10.0 / DURATION_SECONDS) / 10.0;
+    }
+
+    private static StringBuilder appendLatency(StringBuilder json, String name, LatencyHistogram.Snapshot latency) {
+        return json.append("  \"").append(name).append("\": {\"count\": ").append(latency.count)
+            .append(", \"mean\": ").append(latency.mean() / 1000)
+            .append(", \"p50\": ").append(latency.percentile(0.5) / 1000)
+            .append(", \"p90\": ").append(latency.percentile(0.9) / 1000)
+            .append(", \"p99\": ").append(latency.percentile(0.99) / 1000)
+            .append(", \"p999\": ").append(latency.percentile(0.999) / 1000)
+            .append(", \"max\": ").append(latency.max / 1000).append('}');
+    }
+
+    private static void printLatency(String name, LatencyHistogram.Snapshot latency) {
+        System.out.printf("%s latency (us): p50 %d, p99 %d, p99.9 %d, max %d%n", name, latency.percentile(0.5) / 1000,
+                latency.percentile(0.99) / 1000, latency.percentile(0.999) / 1000, latency.max / 1000);
+    }
+
+    public static void main(String[] args) {
+        try {
+            new LoadGenerator().run();
+        } catch (IOException | InterruptedException e) {
+            LOG.error("Load run failed: %s", e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
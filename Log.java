@@ -0,0 +1,197 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Leveled logging, printed by one daemon thread from a ring buffer; -Dlog.level[.<name>]
+final class Log {
+    enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final Level DEFAULT_LEVEL = parseLevel(System.getProperty("log.level"), Level.INFO);
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("log.bufferSize", 8192)));
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    // Ring of pending events; a slot is null until its producer stores it
+    private static final AtomicReferenceArray<Event> ring = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed;
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile boolean writerParked;
+    private static volatile boolean shuttingDown;
+    private static final PrintStream out = System.out;
+    private static final Thread writer = startWriter();
+
+    private Log() {
+    }
+
+    static Logger get(String name) {
+        return new Logger(name, levelOf(name));
+    }
+
+    // Events dropped so far because the buffer was full
+    static long dropped() {
+        return dropped.get();
+    }
+
+    static final class Logger {
+        private final String name;
+        private final Level level;
+
+        private Logger(String name, Level level) {
+            this.name = name;
+            this.level = level;
+        }
+
+        boolean isEnabled(Level level) {
+            return level.compareTo(this.level) >= 0 && level != Level.OFF;
+        }
+
+        boolean isDebugEnabled() {
+            return isEnabled(Level.DEBUG);
+        }
+
+        void debug(String format, Object... args) {
+            log(Level.DEBUG, null, format, args);
+        }
+
+        void info(String format, Object... args) {
+            log(Level.INFO, null, format, args);
+        }
+
+        void warn(String format, Object... args) {
+            log(Level.WARN, null, format, args);
+        }
+
+        void error(String format, Object... args) {
+            log(Level.ERROR, null, format, args);
+        }
+
+        // Also prints the stack trace of 'error'
+        void error(Throwable error, String format, Object... args) {
+            log(Level.ERROR, error, format, args);
+        }
+
+        private void log(Level level, Throwable error, String format, Object[] args) {
+            if (isEnabled(level)) enqueue(new Event(System.currentTimeMillis(), level, name, error, format, args));
+        }
+    }
+
+    private static final class Event {
+        final long time;
+        final Level level;
+        final String logger;
+        final Throwable error;
+        final String format;
+        final Object[] args;
+
+        Event(long time, Level level, String logger, Throwable error, String format, Object[] args) {
+            this.time = time;
+            this.level = level;
+            this.logger = logger;
+            this.error = error;
+            this.format = format;
+            this.args = args;
+        }
+
+        String message() {
+            if (args == null || args.length == 0) return format;
+            try {
+                return String.format(format, args);
+            } catch (RuntimeException e) {
+                return format + " " + java.util.Arrays.toString(args);
+            }
+        }
+    }
+
+    private static void enqueue(Event event) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        ring.set((int) sequence & (CAPACITY - 1), event);
+        if (writerParked) LockSupport.unpark(writer);
+    }
+
+    private static Thread startWriter() {
+        Thread thread = new Thread(Log::drainLoop, "log-writer");
+        thread.setDaemon(true);
+        thread.start();
+        // Print what is still buffered when the process exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            shuttingDown = true;
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        return thread;
+    }
+
+    private static void drainLoop() {
+        long reportedDrops = 0;
+        while (true) {
+            boolean wrote = false;
+            long next = consumed;
+            while (next < claimed.get()) {
+                int slot = (int) next & (CAPACITY - 1);
+                Event event = ring.get(slot);
+                if (event == null) {
+                    // Claimed but not stored yet
+                    Thread.onSpinWait();
+                    continue;
+                }
+                ring.set(slot, null);
+                consumed = ++next;
+                write(event);
+                wrote = true;
+            }
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                write(new Event(System.currentTimeMillis(), Level.WARN, "log", null,
+                        "%d log events dropped (buffer full)", new Object[] {drops - reportedDrops}));
+                reportedDrops = drops;
+                wrote = true;
+            }
+            if (wrote) {
+                out.flush();
+                continue;
+            }
+            if (shuttingDown) return;
+            writerParked = true;
+            if (consumed == claimed.get()) LockSupport.parkNanos(100_000_000L);
+            writerParked = false;
+        }
+    }
+
+    private static void write(Event event) {
+        out.println(TIME_FORMAT.format(Instant.ofEpochMilli(event.time)) + " " + event.level + " " + event.logger + ": " + event.message());
+        if (event.error != null) event.error.printStackTrace(out);
+    }
+
+    private static Level levelOf(String name) {
+        for (String prefix = name; ; prefix = prefix.substring(0, prefix.lastIndexOf('.'))) {
+            String value = System.getProperty("log.level." + prefix);
+            if (value != null) return parseLevel(value, DEFAULT_LEVEL);
+            if (prefix.indexOf('.') < 0) return DEFAULT_LEVEL;
+        }
+    }
+
+    private static Level parseLevel(String value, Level fallback) {
+        if (value == null) return fallback;
+        try {
+            return Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// A subscription's content filter, compiled once and tested by the broker (see README)
+final class MessageFilter {
+    private static final int REGEX_STEPS = Math.max(1, Integer.getInteger("broker.filterRegexSteps", 64));
+
+    private interface Clause {
+        boolean test(String content);
+    }
+
+    // The content as the regex reads it, counting down the reads it has left
+    private static final class BoundedContent implements CharSequence {
+        private static final RuntimeException EXHAUSTED = new RuntimeException("regex step budget exhausted", null, false, false) {};
+        private final String content;
+        private long steps;
+
+        BoundedContent(String content) {
+            this.content = content;
+            this.steps = (long) REGEX_STEPS * (content.length() + 1);
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (--steps < 0) throw EXHAUSTED;
+            return content.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return content.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return content.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return content;
+        }
+    }
+
+    // Trimmed as given; identical filters are tested once
+    final String expression;
+    private final Clause[] clauses;
+
+    private MessageFilter(String expression, Clause[] clauses) {
+        this.expression = expression;
+        this.clauses = clauses;
+    }
+
+    // Throws IllegalArgumentException saying what is wrong with the expression
+    static MessageFilter compile(String expression) {
+        String trimmed = expression.trim();
+        if (trimmed.isEmpty()) throw new IllegalArgumentException("empty filter");
+        String[] parts = trimmed.split(" && ");
+        Clause[] clauses = new Clause[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            clauses[i] = clause(parts[i].trim());
+        }
+        return new MessageFilter(trimmed, clauses);
+    }
+
+    boolean test(String content) {
+        for (Clause clause : clauses) {
+            if (!clause.test(content)) return false;
+        }
+        return true;
+    }
+
+    private static Clause clause(String text) {
+        int open = text.indexOf('(');
+        if (open < 0 || !text.endsWith(")")) throw new IllegalArgumentException("expected name(arguments): " + text);
+        String name = text.substring(0, open).trim();
+        String argument = text.substring(open + 1, text.length() - 1);
+        switch (name) {
+            case "prefix":
+                return content -> content.startsWith(argument);
+            case "regex":
+                Pattern pattern;
+                try {
+                    pattern = Pattern.compile(argument);
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException("bad regex " + argument + ": " + e.getDescription());
+                }
+                return content -> {
+                    try {
+                        return pattern.matcher(new BoundedContent(content)).find();
+                    } catch (RuntimeException e) {
+                        if (e != BoundedContent.EXHAUSTED) throw e;
+                        return false;
+                    }
+                };
+            case "eq": {
+                String[] args = argument.split(",", 2);
+                if (args.length != 2 || args[0].isEmpty()) throw new IllegalArgumentException("expected eq(key,value): " + text);
+                String key = args[0] + "=";
+                String value = args[1];
+                return content -> {
+                    int start = valueStart(content, key);
+                    return start >= 0 && valueEnd(content, start) - start == value.length() && content.startsWith(value, start);
+                };
+            }
+            case "range": {
+                String[] args = argument.split(",", -1);
+                if (args.length != 3 || args[0].isEmpty()) throw new IllegalArgumentException("expected range(key,min,max): " + text);
+                String key = args[0] + "=";
+                double min = bound(args[1], Double.NEGATIVE_INFINITY);
+                double max = bound(args[2], Double.POSITIVE_INFINITY);
+                return content -> {
+                    int start = valueStart(content, key);
+                    if (start < 0) return false;
+                    try {
+                        double value = Double.parseDouble(content.substring(start, valueEnd(content, start)));
+                        return value >= min && value <= max;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                };
+            }
+            default:
+                throw new IllegalArgumentException("unknown filter " + name);
+        }
+    }
+
+    private static double bound(String text, double open) {
+        if (text.trim().isEmpty()) return open;
+        try {
+            return Double.parseDouble(text.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a number: " + text);
+        }
+    }
+
+    // Where the value of the first word starting with "key=" begins, or -1
+    private static int valueStart(String content, String keyAndEquals) {
+        int at = content.indexOf(keyAndEquals);
+        while (at > 0 && !Character.isWhitespace(content.charAt(at - 1))) {
+            at = content.indexOf(keyAndEquals, at + 1);
+        }
+        return at < 0 ? -1 : at + keyAndEquals.length();
+    }
+
+    private static int valueEnd(String content, int start) {
+        int end = start;
+        while (end < content.length() && !Character.isWhitespace(content.charAt(end))) end++;
+        return end;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Cluster-wide count as a state-based PN-counter, one entry per broker incarnation
+class PNCounter {
+    private final int localId;
+    private final long incarnation;
+    private final LongAdder increments = new LongAdder();
+    private final LongAdder decrements = new LongAdder();
+    private volatile Map<Integer, Entry> remote = Collections.emptyMap();
+    private volatile long remoteValue;
+
+    private static final class Entry {
+        final long incarnation;
+        final long increments;
+        final long decrements;
+
+        Entry(long incarnation, long increments, long decrements) {
+            this.incarnation = incarnation;
+            this.increments = increments;
+            this.decrements = decrements;
+        }
+
+        // The entry holding at least what both have seen
+        Entry merge(Entry other) {
+            if (other.incarnation != incarnation) return other.incarnation > incarnation ? other : this;
+            if (other.increments <= increments && other.decrements <= decrements) return this;
+            return new Entry(incarnation, Math.max(increments, other.increments), Math.max(decrements, other.decrements));
+        }
+    }
+
+    PNCounter(int localId, long incarnation) {
+        this.localId = localId;
+        this.incarnation = incarnation;
+    }
+
+    void increment() {
+        increments.increment();
+    }
+
+    void decrement() {
+        decrements.increment();
+    }
+
+    long value() {
+        return localValue() + remoteValue;
+    }
+
+    // This broker's own count
+    long localValue() {
+        return increments.sum() - decrements.sum();
+    }
+
+    // Every entry as <brokerId>/<incarnation>/<increments>/<decrements>, comma separated
+    String state() {
+        StringBuilder state = new StringBuilder();
+        state.append(localId).append('/').append(incarnation).append('/').append(increments.sum()).append('/').append(decrements.sum());
+        for (Map.Entry<Integer, Entry> entry : remote.entrySet()) {
+            Entry e = entry.getValue();
+            state.append(',').append(entry.getKey()).append('/').append(e.incarnation).append('/').append(e.increments).append('/').append(e.decrements);
+        }
+        return state.toString();
+    }
+
+    // Merge another broker's state; returns whether anything changed
+    synchronized boolean merge(String state, Set<Integer> known) {
+        Map<Integer, Entry> merged = null;
+        for (String part : state.split(",")) {
+            String[] fields = part.split("/");
+            if (fields.length != 4) continue;
+            int id;
+            Entry incoming;
+            try {
+                id = Integer.parseInt(fields[0]);
+                incoming = new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (id == localId || !known.contains(id)) continue;
+            Map<Integer, Entry> current = merged != null ? merged : remote;
+            Entry existing = current.get(id);
+            Entry result = existing == null ? incoming : existing.merge(incoming);
+            if (result == existing) continue;
+            if (merged == null) merged = new HashMap<>(remote);
+            merged.put(id, result);
+        }
+        if (merged == null) return false;
+        publish(merged);
+        return true;
+    }
+
+    // Drops a broker's entry, e.g. once it has left the cluster
+    synchronized void forget(int brokerId) {
+        if (!remote.containsKey(brokerId)) return;
+        Map<Integer, Entry> updated = new HashMap<>(remote);
+        updated.remove(brokerId);
+        publish(updated);
+    }
+
+    private void publish(Map<Integer, Entry> updated) {
+        long value = 0;
+        for (Entry e : updated.values()) {
+            value += e.increments - e.decrements;
+        }
+        remote = updated;
+        remoteValue = value;
+    }
+}
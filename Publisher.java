@@ -1,21 +1,59 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 public class Publisher {
-    private static final int MAX_MESSAGE_LENGTH = 100;
+    // Longest message sent in one publish; longer ones are streamed
+    private static final int MAX_MESSAGE_LENGTH = Integer.getInteger("maxMessageLength", 100);
+    private static final Log.Logger LOG = Log.get("publisher");
     private final String name;
     private String host;
     private int port;
     private final Map<UUID, String> topics = new ConcurrentHashMap<>();
     private final BufferedReader consoleReader;
     private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private OutputStream out;
+    private InputStream in;
+    private boolean binary;
+    // Whether the broker accepted deflate-compressed chunks
+    private boolean deflate;
     private static final int MAX_RETRY_ATTEMPTS = 5;
     private static final int RETRY_DELAY_MS = 5000;
     private static final int CONNECTION_TIMEOUT_MS = 5000;
+    // Offer the binary protocol at the handshake ("binary" or "text")
+    private static final String PROTOCOL = System.getProperty("protocol", "binary");
+    // Publishes that may be awaiting their ACK at once
+    private static final int PUBLISH_WINDOW = Integer.getInteger("publishWindow", 64);
+    // Pending bytes that flush a PUBLISHBATCH (binary only); 0 disables batching
+    private static final int PUBLISH_BATCH_BYTES = Integer.getInteger("publishBatchBytes", 0);
+    private static final long PUBLISH_LINGER_MS = Long.getLong("publishLingerMs", 5);
+    // Streaming (binary only): bytes per CHUNK and compression
+    private static final int CHUNK_BYTES = Math.max(1, Math.min(Integer.getInteger("chunkBytes", 64 * 1024), BinaryProtocol.MAX_CHUNK_LENGTH));
+    private static final String COMPRESSION = System.getProperty("compression", BinaryProtocol.DEFLATE);
+
+    // Pipelined publishes by correlation id
+    private final AtomicLong nextCorrelationId = new AtomicLong();
+    private final Map<Long, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private final Semaphore publishWindow = new Semaphore(PUBLISH_WINDOW);
+    // Every other reply, in order, for the request/response commands
+    private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+    private Thread readerThread;
+
+    // Publishes waiting for the current batch to be sent, guarded by batchLock
+    private final Object batchLock = new Object();
+    private List<UUID> batchTopics = new ArrayList<>();
+    private List<byte[]> batchContents = new ArrayList<>();
+    private List<CompletableFuture<String>> batchFutures = new ArrayList<>();
+    private int batchBytes;
+    private final ScheduledExecutorService lingerTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "publisher-linger");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public Publisher(String name) {
         this.name = name;
@@ -28,7 +66,7 @@ public class Publisher {
             connectToBroker();
             runConsoleMenu();
         } catch (IOException e) {
-            System.out.println("Error: " + e.getMessage());
+            LOG.error("Error: %s", e.getMessage());
         } finally {
             disconnect();
         }
@@ -47,7 +85,7 @@ public class Publisher {
                     String[] brokerInfo = brokers[0].split(":");
                     host = brokerInfo[0];
                     port = Integer.parseInt(brokerInfo[1]);
-                    System.out.println("Connecting to broker at " + host + ":" + port);
+                    LOG.info("Connecting to broker at %s:%d", host, port);
                 } else {
                     throw new IOException("No brokers available");
                 }
@@ -63,31 +101,39 @@ public class Publisher {
             try {
                 socket = new Socket();
                 socket.connect(new InetSocketAddress(host, port), CONNECTION_TIMEOUT_MS);
-                out = new PrintWriter(socket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                out = socket.getOutputStream();
+                in = new BufferedInputStream(socket.getInputStream());
+                binary = false;
 
                 // Send initialization message
-                out.println("PUBLISHER:" + name);
+                boolean offerBinary = "binary".equals(PROTOCOL);
+                boolean offerDeflate = offerBinary && BinaryProtocol.DEFLATE.equals(COMPRESSION);
+                sendLine("PUBLISHER:" + name + (offerBinary ? ":" + BinaryProtocol.VERSION : "") + (offerDeflate ? ":" + BinaryProtocol.DEFLATE : ""));
                 
                 String response = waitForResponse();
+                binary = offerBinary && BinaryProtocol.acceptsBinary(response);
+                deflate = offerDeflate && BinaryProtocol.acceptsDeflate(response);
                 
                 if (response == null) {
                     throw new IOException("No response from broker");
                 } else if (response.startsWith("ERROR:")) {
                     throw new IOException("Failed to connect: " + response);
                 } else if (response.startsWith("SUCCESS:")) {
-                    System.out.println("Connected to broker at " + host + ":" + port);
+                    LOG.info("Connected to broker at %s:%d", host, port);
+                    readerThread = new Thread(this::readReplies, "publisher-reader");
+                    readerThread.setDaemon(true);
+                    readerThread.start();
                     return; // Successful connection
                 } else {
                     throw new IOException("Unexpected response from broker: " + response);
                 }
             } catch (IOException e) {
-                System.out.println("Connection attempt failed in catch: " + e.getMessage());
+                LOG.warn("Connection attempt failed: %s", e.getMessage());
                 attempts++;
                 if (attempts >= MAX_RETRY_ATTEMPTS) {
                     throw new IOException("Failed to connect after " + MAX_RETRY_ATTEMPTS + " attempts: " + e.getMessage());
                 }
-                System.out.println("Connection attempt failed. Retrying in " + (RETRY_DELAY_MS / 1000) + " seconds...");
+                LOG.info("Retrying in %d seconds...", RETRY_DELAY_MS / 1000);
                 try {
                     Thread.sleep(RETRY_DELAY_MS);
                 } catch (InterruptedException ie) {
@@ -101,8 +147,8 @@ public class Publisher {
     private String waitForResponse() throws IOException {
         long startTime = System.currentTimeMillis();
         while (System.currentTimeMillis() - startTime < CONNECTION_TIMEOUT_MS) {
-            if (in.ready()) {
-                return in.readLine();
+            if (in.available() > 0) {
+                return BinaryProtocol.readLine(in);
             }
             try {
                 Thread.sleep(100);
@@ -114,9 +160,176 @@ public class Publisher {
         return null; // Timeout occurred
     }
 
+    // Send a command given as the parts of its text form; callers may be on any thread
+    private synchronized void send(String... parts) throws IOException {
+        if (binary) {
+            out.write(BinaryProtocol.Frame.fromParts(parts).encode());
+        } else {
+            sendLine(String.join(":", parts));
+        }
+    }
+
+    private void sendLine(String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Wait for the broker's next reply that is not a publish acknowledgement
+    private String readResponse() throws IOException {
+        try {
+            String response = responses.poll(CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (response == null) {
+                throw new IOException("Timeout while waiting for response");
+            }
+            return response;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for response", e);
+        }
+    }
+
+    // Reader thread: completes pipelined publishes on ACK/NACK and queues every other reply
+    private void readReplies() {
+        try {
+            while (true) {
+                String reply;
+                if (binary) {
+                    BinaryProtocol.Frame frame = BinaryProtocol.readFrame(in);
+                    if (frame == null) break;
+                    if (frame.opcode == BinaryProtocol.ACK || frame.opcode == BinaryProtocol.NACK) {
+                        complete(frame.opcode == BinaryProtocol.ACK, frame.field(0), frame.payloadText());
+                        continue;
+                    }
+                    reply = frame.toTextLine();
+                } else {
+                    reply = BinaryProtocol.readLine(in);
+                    if (reply == null) break;
+                    if (reply.startsWith("ACK:") || reply.startsWith("NACK:")) {
+                        String[] parts = reply.split(":", 3);
+                        complete(parts[0].equals("ACK"), parts[1], parts.length > 2 ? parts[2] : "");
+                        continue;
+                    }
+                }
+                responses.add(reply);
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) LOG.warn("Error reading from broker: %s", e.getMessage());
+        }
+        IOException closed = new IOException("Connection to broker closed");
+        for (CompletableFuture<String> pending : inFlight.values()) {
+            pending.completeExceptionally(closed);
+        }
+    }
+
+    private void complete(boolean success, String correlationId, String message) {
+        CompletableFuture<String> pending;
+        try {
+            pending = inFlight.remove(Long.parseLong(correlationId));
+        } catch (NumberFormatException e) {
+            pending = null;
+        }
+        if (pending == null) {
+            LOG.warn("Acknowledgement for unknown publish %s: %s", correlationId, message);
+        } else if (success) {
+            pending.complete(message);
+        } else {
+            pending.completeExceptionally(new IOException(message));
+        }
+    }
+
+    // Publish without waiting for the broker's acknowledgement
+    public CompletableFuture<String> publishAsync(UUID topicId, String message) throws IOException {
+        if (message.length() > MAX_MESSAGE_LENGTH) {
+            if (binary) return publishStream(topicId, new ByteArrayInputStream(message.getBytes(StandardCharsets.UTF_8)));
+            return CompletableFuture.failedFuture(new IOException("Message too long (max " + MAX_MESSAGE_LENGTH
+                    + " characters); longer messages need the binary protocol"));
+        }
+        boolean batching = PUBLISH_BATCH_BYTES > 0 && binary;
+        acquirePublishWindow(batching);
+        if (batching) {
+            return addToBatch(topicId, message);
+        }
+        long correlationId = nextCorrelationId.incrementAndGet();
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        pending.whenComplete((ack, error) -> publishWindow.release());
+        inFlight.put(correlationId, pending);
+        try {
+            send("PUBLISHASYNC", topicId.toString(), name, String.valueOf(correlationId), message);
+        } catch (IOException e) {
+            inFlight.remove(correlationId);
+            pending.completeExceptionally(e);
+        }
+        return pending;
+    }
+
+    private void acquirePublishWindow(boolean batching) throws IOException {
+        // A full window may be waiting on publishes still sitting in the batch, so send those first
+        if (!publishWindow.tryAcquire()) {
+            if (batching) flushBatch();
+            try {
+                publishWindow.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the publish window", e);
+            }
+        }
+    }
+
+    // Stream the data as one chunked message (binary only)
+    public CompletableFuture<String> publishStream(UUID topicId, InputStream data) throws IOException {
+        if (!binary) {
+            throw new IOException("Streaming requires the binary protocol");
+        }
+        acquirePublishWindow(PUBLISH_BATCH_BYTES > 0);
+        long streamId = nextCorrelationId.incrementAndGet();
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        pending.whenComplete((ack, error) -> publishWindow.release());
+        inFlight.put(streamId, pending);
+        Deflater deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+        byte[] chunk = new byte[CHUNK_BYTES];
+        int index = 0;
+        try {
+            while (true) {
+                int length;
+                try {
+                    length = data.readNBytes(chunk, 0, chunk.length);
+                } catch (IOException e) {
+                    inFlight.remove(streamId);
+                    pending.completeExceptionally(e);
+                    if (index > 0) sendChunk(topicId, streamId, index, BinaryProtocol.CHUNK_ABORT, deflater, chunk, 0);
+                    return pending;
+                }
+                // A short read ends the data
+                boolean last = length < chunk.length;
+                sendChunk(topicId, streamId, index++, last ? BinaryProtocol.CHUNK_LAST : BinaryProtocol.CHUNK_MORE, deflater, chunk, length);
+                if (last) return pending;
+            }
+        } catch (IOException e) {
+            inFlight.remove(streamId);
+            pending.completeExceptionally(e);
+            return pending;
+        } finally {
+            if (deflater != null) deflater.end();
+        }
+    }
+
+    private void sendChunk(UUID topicId, long streamId, int index, String state, Deflater deflater, byte[] data, int length) throws IOException {
+        String encoding = BinaryProtocol.RAW;
+        byte[] payload = null;
+        if (deflater != null && length > 0) {
+            byte[] deflated = BinaryProtocol.deflate(deflater, data, 0, length);
+            if (deflated.length < length) {
+                payload = deflated;
+                encoding = BinaryProtocol.DEFLATE;
+            }
+        }
+        if (payload == null) payload = Arrays.copyOf(data, length);
+        sendFrame(new BinaryProtocol.Frame(BinaryProtocol.CHUNK, (byte) 0, topicId.getMostSignificantBits(), topicId.getLeastSignificantBits(),
+                new String[] {name, String.valueOf(streamId), String.valueOf(index), state, encoding}, payload));
+    }
+
     private void runConsoleMenu() throws IOException {
         while (true) {
-            System.out.println("Please select command: create, publish, show, delete, exit.");
+            System.out.println("Please select command: create, publish, stream, show, delete, exit.");
             String choice = consoleReader.readLine();
             String[] parts = choice.split(" ", 3);
             String messageType;
@@ -125,7 +338,7 @@ public class Publisher {
             String topicName = null;
             if (parts.length == 3){
                 if (parts[0].equals("create")){
-                    System.out.println(" argumentserror");
+                    System.out.println("arguments error");
                     runConsoleMenu();
                 }
                 messageType = parts[0];
@@ -140,10 +353,7 @@ public class Publisher {
             
             switch (messageType) {
                 case "create":
-                    System.out.println(parts.length);
-                    for (String part : parts){
-                        System.out.println(part);
-                    }
+                    LOG.debug("create: %s", Arrays.toString(parts));
                     if (parts.length != 2){
                         System.out.println("arguments error");
                         break;
@@ -161,10 +371,7 @@ public class Publisher {
                     
                     break;
                 case "publish":
-                    System.out.println(parts.length);
-                    for (String part : parts){
-                        System.out.println(part);
-                    }
+                    LOG.debug("publish: %s", Arrays.toString(parts));
                     if (parts.length != 3){
                         System.out.println("arguments error");
                         break;
@@ -173,10 +380,6 @@ public class Publisher {
                         System.out.println("Topic not found.");
                         break;
                     }
-                    if(content.length() > MAX_MESSAGE_LENGTH){
-                        System.out.println("Message too long. Truncating to 100 characters.");
-                        break;
-                    }
                     if (content == null || content.trim().isEmpty()) {
                         System.out.println("Content cannot be empty. Please enter a valid message.");
                         break;
@@ -187,6 +390,21 @@ public class Publisher {
                         System.out.println("Error publishing message: " + e.getMessage());
                     }
                     break;
+                case "stream":
+                    if (parts.length != 3 || !binary){
+                        System.out.println(binary ? "Usage: stream <topicId> <file>" : "Streaming requires the binary protocol.");
+                        break;
+                    }
+                    if (!topics.containsKey(topicId)){
+                        System.out.println("Topic not found.");
+                        break;
+                    }
+                    try (InputStream file = new BufferedInputStream(new FileInputStream(content.trim()))) {
+                        streamMessage(topicId, file);
+                    } catch (IOException e) {
+                        System.out.println("Error streaming file: " + e.getMessage());
+                    }
+                    break;
                 case "show":
                     showSubscriberCount();
                     break;
@@ -206,11 +424,11 @@ public class Publisher {
         UUID topicId = UUID.randomUUID();
         String createTopicMessage = "CREATETOPIC:" + topicId + ":" + topicName;
         
-        System.out.println("Sending create topic request: " + createTopicMessage);
-        out.println(createTopicMessage);
+        LOG.debug("Sending create topic request: %s", createTopicMessage);
+        send("CREATETOPIC", topicId.toString(), topicName);
         synchronized(socket){
-            String response = in.readLine();
-            System.out.println("Received response: " + response);
+            String response = readResponse();
+            LOG.debug("Received response: %s", response);
             
             if (response.startsWith("SUCCESS:")) {
                 topics.put(topicId, topicName);
@@ -225,7 +443,78 @@ public class Publisher {
     }
     }
 
-    private synchronized void publishMessage(UUID topicId, String message) throws IOException {
+    private CompletableFuture<String> addToBatch(UUID topicId, String message) throws IOException {
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        pending.whenComplete((ack, error) -> publishWindow.release());
+        byte[] content = message.getBytes(StandardCharsets.UTF_8);
+        boolean full;
+        synchronized (batchLock) {
+            if (batchFutures.isEmpty()) {
+                lingerTimer.schedule(this::flushBatchQuietly, PUBLISH_LINGER_MS, TimeUnit.MILLISECONDS);
+            }
+            batchTopics.add(topicId);
+            batchContents.add(content);
+            batchFutures.add(pending);
+            batchBytes += content.length;
+            full = batchBytes >= PUBLISH_BATCH_BYTES;
+        }
+        if (full) flushBatch();
+        return pending;
+    }
+
+    // Sends the pending batch as one PUBLISHBATCH; its ACK lists one status per publish, in order
+    private void flushBatch() throws IOException {
+        List<UUID> topicIds;
+        List<byte[]> contents;
+        List<CompletableFuture<String>> futures;
+        synchronized (batchLock) {
+            if (batchFutures.isEmpty()) return;
+            topicIds = batchTopics;
+            contents = batchContents;
+            futures = batchFutures;
+            batchTopics = new ArrayList<>();
+            batchContents = new ArrayList<>();
+            batchFutures = new ArrayList<>();
+            batchBytes = 0;
+        }
+        long correlationId = nextCorrelationId.incrementAndGet();
+        CompletableFuture<String> batch = new CompletableFuture<>();
+        batch.whenComplete((ack, error) -> {
+            String[] statuses = error == null ? ack.split("\\|", -1) : new String[0];
+            for (int i = 0; i < futures.size(); i++) {
+                if (error != null) {
+                    futures.get(i).completeExceptionally(error);
+                } else if (i < statuses.length && statuses[i].equals("OK")) {
+                    futures.get(i).complete("Message published");
+                } else {
+                    futures.get(i).completeExceptionally(new IOException(i < statuses.length ? statuses[i] : "No status from broker"));
+                }
+            }
+        });
+        inFlight.put(correlationId, batch);
+        try {
+            sendFrame(new BinaryProtocol.Frame(BinaryProtocol.PUBLISHBATCH, (byte) 0, 0L, 0L,
+                    new String[] {name, String.valueOf(correlationId)}, BinaryProtocol.encodeBatch(topicIds, contents)));
+        } catch (IOException e) {
+            inFlight.remove(correlationId);
+            batch.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private void flushBatchQuietly() {
+        try {
+            flushBatch();
+        } catch (IOException e) {
+            LOG.error("Error sending publish batch: %s", e.getMessage());
+        }
+    }
+
+    private synchronized void sendFrame(BinaryProtocol.Frame frame) throws IOException {
+        out.write(frame.encode());
+    }
+
+    private void publishMessage(UUID topicId, String message) throws IOException {
         if (topics.isEmpty()) {
             System.out.println("No topics available. Create a topic first.");
             return;
@@ -253,21 +542,25 @@ public class Publisher {
 
         // System.out.print("Enter message (max 100 characters): ");
         // String message = consoleReader.readLine();
-        if (message.length() > MAX_MESSAGE_LENGTH) {
-            System.out.println("Message too long. Truncating to 100 characters.");
-            message = message.substring(0, MAX_MESSAGE_LENGTH);
-        }
 
-        out.println("PUBLISH:" + topicId + ":" + message + ":" + name);
-        synchronized(socket){
-            String response = in.readLine();
-            System.out.println("Received response : " + response);
-            if (response.startsWith("SUCCESS:")) {
+        // The console moves on at once; the outcome is printed when the broker acknowledges
+        publishAsync(topicId, message).whenComplete((ack, error) -> {
+            if (error == null) {
                 System.out.println("Message published to topic: " + topics.get(topicId));
             } else {
-                System.out.println("Failed to publish message: " + response);
+                System.out.println("Failed to publish message: " + error.getMessage());
             }
-        }
+        });
+    }
+
+    private void streamMessage(UUID topicId, InputStream data) throws IOException {
+        publishStream(topicId, data).whenComplete((ack, error) -> {
+            if (error == null) {
+                System.out.println(ack + " to topic: " + topics.get(topicId));
+            } else {
+                System.out.println("Failed to stream message: " + error.getMessage());
+            }
+        });
     }
 
     private void showSubscriberCount() throws IOException {
@@ -277,8 +570,8 @@ public class Publisher {
         }
 
         for (Map.Entry<UUID, String> entry : topics.entrySet()) {
-            out.println("GETSUBSCRIBERCOUNT:" + entry.getKey());
-            String response = in.readLine();
+            send("GETSUBSCRIBERCOUNT", entry.getKey().toString());
+            String response = readResponse();
             String[] parts = response.split(":");
             if (parts.length == 2 && parts[0].equals("SUBSCRIBERCOUNT")) {
                 System.out.println("Topic: " + entry.getValue() + " (ID: " + entry.getKey() + ") - Subscribers: " + parts[1]);
@@ -314,8 +607,8 @@ public class Publisher {
             return;
         }
 
-        out.println("DELETETOPIC:" + topicId + ":" + name);
-        String response = in.readLine();
+        send("DELETETOPIC", topicId.toString(), name);
+        String response = readResponse();
         if (response.startsWith("SUCCESS:")) {
             topics.remove(topicId);
             System.out.println("Topic deleted: " + topicId);
@@ -325,13 +618,14 @@ public class Publisher {
     }
 
     private void disconnect() {
-        out.println("EXIT:PUBLISHER");
+        flushBatchQuietly();
         try {
+            if (out != null && !socket.isClosed()) send("EXIT", "PUBLISHER");
             if (out != null) out.close();
             if (in != null) in.close();
             if (socket != null) socket.close();
         } catch (IOException e) {
-            System.out.println("Error while disconnecting: " + e.getMessage());
+            LOG.debug("Error while disconnecting: %s", e.getMessage());
         }
     }
 
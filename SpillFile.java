@@ -0,0 +1,82 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+// Spilled outbound frames, in order, as int32 length | buffer; not thread-safe
+class SpillFile implements Closeable {
+    private static final Log.Logger LOG = Log.get("broker.spill");
+
+    private final Path path;
+    private final FileChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private long readPosition;
+    private long writePosition;
+
+    SpillFile(Path dir, String name) throws IOException {
+        Files.createDirectories(dir);
+        this.path = Files.createTempFile(dir, name + "-", ".spill");
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    boolean isEmpty() {
+        return readPosition == writePosition;
+    }
+
+    // Bytes waiting to be read back
+    long bytes() {
+        return writePosition - readPosition;
+    }
+
+    void append(ByteBuffer buffer) throws IOException {
+        ByteBuffer data = buffer.duplicate();
+        header.clear();
+        header.putInt(data.remaining()).flip();
+        writePosition += writeFully(header, writePosition);
+        writePosition += writeFully(data, writePosition);
+    }
+
+    // The oldest buffer spilled, or null when everything was read back
+    ByteBuffer poll() throws IOException {
+        if (isEmpty()) return null;
+        header.clear();
+        readFully(header, readPosition);
+        int length = header.flip().getInt();
+        ByteBuffer data = ByteBuffer.allocate(length);
+        readFully(data, readPosition + 4);
+        readPosition += 4 + length;
+        if (isEmpty()) {
+            channel.truncate(0);
+            readPosition = 0;
+            writePosition = 0;
+        }
+        return data.flip();
+    }
+
+    private int writeFully(ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        long at = position;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, at);
+            if (n < 0) throw new EOFException("Spill file " + path + " ends early");
+            at += n;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOG.warn("Error removing spill file %s: %s", path, e.getMessage());
+        }
+    }
+}
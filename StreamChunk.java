@@ -0,0 +1,64 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.zip.Inflater;
+
+// One chunk of a streamed message, each CHUNK variant encoded once and shared
+class StreamChunk {
+    final UUID topicId;
+    final String publisherName;
+    final String streamId;
+    final int index;
+    final String state;
+    final String encoding;
+    final byte[] payload;
+    private byte[] inflated;
+    // Indexed by (plain ? 1 : 0) + (broadcast ? 2 : 0)
+    private final byte[][] frames = new byte[4][];
+
+    StreamChunk(UUID topicId, String publisherName, String streamId, int index, String state, String encoding, byte[] payload) {
+        this.topicId = topicId;
+        this.publisherName = publisherName;
+        this.streamId = streamId;
+        this.index = index;
+        this.state = state;
+        this.encoding = encoding;
+        this.payload = payload;
+    }
+
+    // Tells subscribers a stream ended early; they drop what they reassembled of it
+    static StreamChunk abort(UUID topicId, String publisherName, String streamId, int index) {
+        return new StreamChunk(topicId, publisherName, streamId, index, BinaryProtocol.CHUNK_ABORT, BinaryProtocol.RAW, new byte[0]);
+    }
+
+    boolean deflated() {
+        return encoding.equals(BinaryProtocol.DEFLATE);
+    }
+
+    boolean last() {
+        return state.equals(BinaryProtocol.CHUNK_LAST);
+    }
+
+    // The frame with or without deflate; throws on a corrupt payload
+    byte[] encoded(boolean acceptsDeflate, boolean broadcast) throws IOException {
+        boolean plain = deflated() && !acceptsDeflate;
+        int variant = (plain ? 1 : 0) + (broadcast ? 2 : 0);
+        if (frames[variant] == null) {
+            if (plain && inflated == null) {
+                Inflater inflater = new Inflater();
+                try {
+                    ByteArrayOutputStream sink = new ByteArrayOutputStream(payload.length * 4);
+                    BinaryProtocol.inflate(inflater, payload, 0, payload.length, sink, new byte[64 * 1024]);
+                    inflated = sink.toByteArray();
+                } finally {
+                    inflater.end();
+                }
+            }
+            frames[variant] = new BinaryProtocol.Frame(BinaryProtocol.CHUNK, broadcast ? BinaryProtocol.FLAG_BROADCAST : 0,
+                    topicId.getMostSignificantBits(), topicId.getLeastSignificantBits(),
+                    new String[] {publisherName, streamId, String.valueOf(index), state, plain ? BinaryProtocol.RAW : encoding},
+                    plain ? inflated : payload).encode();
+        }
+        return frames[variant];
+    }
+}
@@ -1,26 +1,53 @@
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.zip.Inflater;
 
 public class Subscriber {
+    private static final Log.Logger LOG = Log.get("subscriber");
     private static final int MAX_RETRY_ATTEMPTS = 5;
     private static final int RETRY_DELAY_MS = 5000;
     private static final int CONNECTION_TIMEOUT_MS = 5000;
+    // Offer the binary protocol at the handshake ("binary" or "text")
+    private static final String PROTOCOL = System.getProperty("protocol", "binary");
+    // Offer to take streamed messages' chunks deflate-compressed ("deflate" or "none")
+    private static final String COMPRESSION = System.getProperty("compression", BinaryProtocol.DEFLATE);
+    // Directory for streamed messages; empty keeps them in memory
+    private static final String STREAM_DIR = System.getProperty("streamDir", "");
+    // Characters of an in-memory streamed message printed
+    private static final int STREAM_PREVIEW_CHARS = 200;
+    // Broker credit in frames and bytes; 0 frames disables it
+    private static final int CREDIT_FRAMES = Integer.getInteger("creditFrames", 256);
+    private static final long CREDIT_BYTES = Long.getLong("creditBytes", 8L << 20);
 
     private final String name;
     private String host;
     private int port;
     private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private OutputStream out;
+    private InputStream in;
+    private volatile boolean binary;
     private final Map<UUID, TopicInfo> subscriptions = new ConcurrentHashMap<>();
-    private final BlockingQueue<String> messageQueue = new LinkedBlockingQueue<>();
+    // Raw lines or frame bodies, parsed on the display thread with a reused Command
+    private final BlockingQueue<byte[]> messageQueue = new LinkedBlockingQueue<>();
+    private final Command command = new Command();
     private final BufferedReader consoleReader;
+    // Streams being reassembled; display thread only
+    private final Map<String, IncomingStream> incomingStreams = new HashMap<>();
+    private final Inflater inflater = new Inflater();
+    private final byte[] inflateBuffer = new byte[64 * 1024];
+    // Frames and bytes displayed since credit was last returned; only touched by the display thread
+    private int consumedFrames;
+    private long consumedBytes;
 
     private static class TopicInfo {
         String name;
         String publisherName;
+        // Sequence of the last message received (binary protocol only), to resume from after a reconnect
+        long lastSequence = -1;
 
         TopicInfo(String name, String publisherName) {
             this.name = name;
@@ -28,6 +55,31 @@ public class Subscriber {
         }
     }
 
+    // A streamed message reassembled chunk by chunk
+    private static class IncomingStream {
+        final TopicInfo topic;
+        final OutputStream sink;
+        // The file written to, or null when the sink is in memory
+        final File file;
+        int nextIndex;
+        long bytes;
+
+        IncomingStream(TopicInfo topic, OutputStream sink, File file) {
+            this.topic = topic;
+            this.sink = sink;
+            this.file = file;
+        }
+
+        void discard() {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                LOG.debug("Error closing stream: %s", e.getMessage());
+            }
+            if (file != null && !file.delete()) LOG.debug("Could not delete %s", file);
+        }
+    }
+
     public Subscriber(String name) {
         this.name = name;
         this.consoleReader = new BufferedReader(new InputStreamReader(System.in));
@@ -41,7 +93,7 @@ public class Subscriber {
             new Thread(this::displayMessages).start();
             runConsoleMenu();
         } catch (IOException e) {
-            System.out.println("Error: " + e.getMessage());
+            LOG.error("Error: %s", e.getMessage());
         } finally {
             disconnect();
         }
@@ -60,7 +112,7 @@ public class Subscriber {
                     String[] brokerInfo = brokers[0].split(":");
                     host = brokerInfo[0];
                     port = Integer.parseInt(brokerInfo[1]);
-                    System.out.println("Connecting to broker at " + host + ":" + port);
+                    LOG.info("Connecting to broker at %s:%d", host, port);
                 } else {
                     throw new IOException("No brokers available");
                 }
@@ -74,37 +126,46 @@ public class Subscriber {
         int attempts = 0;
         while (attempts < MAX_RETRY_ATTEMPTS) {
             try {
-                System.out.println("Attempting to connect to broker at " + host + ":" + port + " (Attempt " + (attempts + 1) + ")");
+                LOG.debug("Attempting to connect to broker at %s:%d (Attempt %d)", host, port, attempts + 1);
                 socket = new Socket();
                 socket.connect(new InetSocketAddress(host, port), CONNECTION_TIMEOUT_MS);
-                System.out.println("Socket connected successfully");
+                LOG.debug("Socket connected successfully");
                 
-                out = new PrintWriter(socket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-                System.out.println("Sending init message: SUBSCRIBER:" + name);
-                out.println("SUBSCRIBER:" + name);
+                out = socket.getOutputStream();
+                in = new BufferedInputStream(socket.getInputStream());
+                binary = false;
+
+                boolean offerBinary = "binary".equals(PROTOCOL);
+                boolean offerDeflate = offerBinary && BinaryProtocol.DEFLATE.equals(COMPRESSION);
+                LOG.debug("Sending init message: SUBSCRIBER:%s", name);
+                sendLine("SUBSCRIBER:" + name + (offerBinary ? ":" + BinaryProtocol.VERSION : "") + (offerDeflate ? ":" + BinaryProtocol.DEFLATE : ""));
                 
                 String response = waitForResponse();
-                System.out.println("Received response from broker: " + response);
+                LOG.debug("Received response from broker: %s", response);
+                binary = offerBinary && BinaryProtocol.acceptsBinary(response);
                 
                 if (response == null) {
                     throw new IOException("No response from broker");
                 } else if (response.startsWith("ERROR:")) {
                     throw new IOException("Failed to connect: " + response);
                 } else if (response.startsWith("SUCCESS:")) {
-                    System.out.println("Connected to broker at " + host + ":" + port);
+                    LOG.info("Connected to broker at %s:%d", host, port);
+                    if (CREDIT_FRAMES > 0) {
+                        consumedFrames = 0;
+                        consumedBytes = 0;
+                        send("CREDIT", String.valueOf(CREDIT_FRAMES), String.valueOf(CREDIT_BYTES));
+                    }
                     return; // Successful connection
                 } else {
                     throw new IOException("Unexpected response from broker: " + response);
                 }
             } catch (IOException e) {
-                System.out.println("Connection attempt failed: " + e.getMessage());
+                LOG.warn("Connection attempt failed: %s", e.getMessage());
                 attempts++;
                 if (attempts >= MAX_RETRY_ATTEMPTS) {
                     throw new IOException("Failed to connect after " + MAX_RETRY_ATTEMPTS + " attempts: " + e.getMessage());
                 }
-                System.out.println("Retrying in " + (RETRY_DELAY_MS / 1000) + " seconds...");
+                LOG.info("Retrying in %d seconds...", RETRY_DELAY_MS / 1000);
                 try {
                     Thread.sleep(RETRY_DELAY_MS);
                 } catch (InterruptedException ie) {
@@ -116,12 +177,12 @@ public class Subscriber {
     }
 
     private String waitForResponse() throws IOException {
-        System.out.println("Waiting for response from broker...");
+        LOG.debug("Waiting for response from broker...");
         long startTime = System.currentTimeMillis();
         while (System.currentTimeMillis() - startTime < CONNECTION_TIMEOUT_MS) {
-            if (in.ready()) {
-                String response = in.readLine();
-                System.out.println("Response received: " + response);
+            if (in.available() > 0) {
+                String response = BinaryProtocol.readLine(in);
+                LOG.debug("Response received: %s", response);
                 return response;
             }
             try {
@@ -131,20 +192,39 @@ public class Subscriber {
                 throw new IOException("Interrupted while waiting for response", e);
             }
         }
-        System.out.println("Timeout while waiting for response");
+        LOG.warn("Timeout while waiting for response");
         return null; // Timeout occurred
     }
 
+    // Send a command given as the parts of its text form; the display thread returns credit alongside the console
+    private synchronized void send(String... parts) throws IOException {
+        if (binary) {
+            out.write(BinaryProtocol.Frame.fromParts(parts).encode());
+        } else {
+            sendLine(String.join(":", parts));
+        }
+    }
+
+    private void sendLine(String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
     private void receiveMessages() {
         try {
-            System.out.println("Message receiving thread started");
-            String message;
-            while ((message = in.readLine()) != null) {
-                System.out.println("Received message: " + message);
+            LOG.debug("Message receiving thread started");
+            if (binary) {
+                byte[] frame;
+                while ((frame = BinaryProtocol.readFrameBody(in)) != null) {
+                    messageQueue.put(frame);
+                }
+                return;
+            }
+            byte[] message;
+            while ((message = BinaryProtocol.readLineBytes(in)) != null) {
                 messageQueue.put(message);
             }
         } catch (Exception e) {
-            System.out.println(e.getMessage());
+            LOG.debug("Stopped receiving: %s", e.getMessage());
             return;
         }
     }
@@ -152,39 +232,65 @@ public class Subscriber {
     private void displayMessages() {
         try {
             while (true) {
-                String message = messageQueue.take();
-                handleReceivedMessage(message);
+                byte[] message = messageQueue.take();
+                // A malformed message is skipped but still paid for, so credit keeps flowing
+                try {
+                    if (binary) {
+                        command.parseFrame(message, 0, message.length);
+                    } else {
+                        command.parseText(message, 0, message.length);
+                    }
+                    handleReceivedMessage(command);
+                } catch (IOException e) {
+                    LOG.error("Malformed message from broker: %s", e.getMessage());
+                }
+                consumed(message.length + (binary ? 4 : 1));
             }
         } catch (InterruptedException e) {
-            System.out.println("Message display interrupted: " + e.getMessage());
+            LOG.debug("Message display interrupted: %s", e.getMessage());
         }
     }
 
-    private void handleReceivedMessage(String message) {
-        String[] parts = message.split(":", 2);
-        if (parts.length < 2) return;
+    // Return credit once half of either window is used
+    private void consumed(int frameBytes) {
+        if (CREDIT_FRAMES <= 0) return;
+        consumedFrames++;
+        consumedBytes += frameBytes;
+        if (consumedFrames < CREDIT_FRAMES / 2 && consumedBytes < CREDIT_BYTES / 2) return;
+        try {
+            send("CREDIT", String.valueOf(consumedFrames), String.valueOf(consumedBytes));
+        } catch (IOException e) {
+            LOG.warn("Error returning credit: %s", e.getMessage());
+        }
+        consumedFrames = 0;
+        consumedBytes = 0;
+    }
 
-        String messageType = parts[0];
-        String content = parts[1];
+    // Commands are parsed in place, so dispatch reads typed fields without any string splitting
+    private void handleReceivedMessage(Command command) {
+        if (command.hasTopic() && !command.topicValid()) return;
 
-        switch (messageType) {
-            case "MESSAGE":
-                handleIncomingMessage(content);
+        switch (command.opcode()) {
+            case BinaryProtocol.MESSAGE:
+                showMessage(command.topicId(), command.payloadText(), command.field(1), command.field(2));
+                break;
+            case BinaryProtocol.CHUNK:
+                receiveChunk(command);
                 break;
-            case "TOPICDELETED":
-                handleTopicDeleted(content);
+            case BinaryProtocol.TOPICDELETED:
+                topicDeleted(command.topicId(), command.field(0));
                 break;
-            case "TOPICLIST":
-                handleTopicList(content);
+            case BinaryProtocol.TOPICLIST:
+                handleTopicList(command.field(0));
                 break;
-            case "SUBSCRIBERCOUNT":
-                handleSubscriberCount(content);
+            case BinaryProtocol.SUBSCRIBERCOUNT:
+                handleSubscriberCount(command.field(0));
                 break;
-            case "SUCCESS":
-                handleSuccessMessage(content);
+            case BinaryProtocol.SUCCESS:
+                handleSuccessMessage(command.field(0));
                 break;
-            case "ERROR":
-                handleErrorMessage(content);
+            case BinaryProtocol.ERROR:
+                handleErrorMessage(command.field(0));
                 break;
             default:
                 // System.out.println("Received unknown message type: " + messageType);
@@ -192,31 +298,115 @@ public class Subscriber {
         }
     }
 
-    private void handleIncomingMessage(String content) {
-        String[] parts = content.split(":", 2);
-        if (parts.length == 2) {
-            UUID topicId = UUID.fromString(parts[0]);
-            String messageContent = parts[1];
-            TopicInfo topic = subscriptions.get(topicId);
-            if (topic != null) {
-                System.out.println("\nReceived message:");
-                System.out.println("Topic: " + topic.name + " (ID: " + topicId + ")");
-                System.out.println("Publisher: " + topic.publisherName);
-                System.out.println("Content: " + messageContent);
+    private void showMessage(UUID topicId, String messageContent, String timestamp, String sequence) {
+        TopicInfo topic = subscriptions.get(topicId);
+        if (topic != null) {
+            if (sequence != null) {
+                try {
+                    topic.lastSequence = Long.parseLong(sequence);
+                } catch (NumberFormatException e) {
+                    LOG.warn("Invalid sequence %s in message for topic %s", sequence, topicId);
+                }
             }
+            if (timestamp != null && timestamp.isEmpty()) timestamp = null;
+            System.out.println("\nReceived message" + (timestamp != null ? " (" + timestamp + ")" : "") + ":");
+            System.out.println("Topic: " + topic.name + " (ID: " + topicId + ")");
+            System.out.println("Publisher: " + topic.publisherName);
+            System.out.println("Content: " + messageContent);
         }
     }
 
-    private void handleTopicDeleted(String content) {
-        String[] parts = content.split(":", 2);
-        if (parts.length == 2) {
-            UUID topicId = UUID.fromString(parts[0]);
-            String topicName = parts[1];
-            TopicInfo deletedTopic = subscriptions.remove(topicId);
-            if (deletedTopic != null) {
-                System.out.println("\nNotification: Topic '" + topicName + "' (ID: " + topicId + ") has been deleted by the publisher.");
+    // Append a chunk; streams missing a chunk are dropped
+    private void receiveChunk(Command command) {
+        UUID topicId = command.topicId();
+        TopicInfo topic = subscriptions.get(topicId);
+        String key = topicId + "/" + command.field(1);
+        IncomingStream stream = incomingStreams.get(key);
+        int index;
+        try {
+            index = command.fieldInt(2);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (stream == null) {
+            if (topic == null || index != 0 || command.fieldEquals(3, BinaryProtocol.CHUNK_ABORT)) return;
+            stream = openStream(topic, command.field(1));
+            if (stream == null) return;
+            incomingStreams.put(key, stream);
+        }
+        String problem = null;
+        if (command.fieldEquals(3, BinaryProtocol.CHUNK_ABORT)) {
+            problem = "aborted by the publisher";
+        } else if (index != stream.nextIndex) {
+            problem = "chunk " + stream.nextIndex + " missing";
+        } else {
+            try {
+                if (!command.hasPayload()) {
+                    // An empty last chunk
+                } else if (command.fieldEquals(4, BinaryProtocol.DEFLATE)) {
+                    stream.bytes += BinaryProtocol.inflate(inflater, command.buffer(), command.payloadOffset(), command.payloadLength(), stream.sink, inflateBuffer);
+                } else {
+                    stream.sink.write(command.buffer(), command.payloadOffset(), command.payloadLength());
+                    stream.bytes += command.payloadLength();
+                }
+                stream.nextIndex++;
+            } catch (IOException e) {
+                problem = e.getMessage();
             }
         }
+        if (problem != null) {
+            incomingStreams.remove(key);
+            stream.discard();
+            System.out.println("\nStreamed message on topic " + stream.topic.name + " discarded: " + problem);
+        } else if (command.fieldEquals(3, BinaryProtocol.CHUNK_LAST)) {
+            incomingStreams.remove(key);
+            showStream(topicId, stream);
+        }
+    }
+
+    private IncomingStream openStream(TopicInfo topic, String streamId) {
+        if (STREAM_DIR.isEmpty()) {
+            return new IncomingStream(topic, new ByteArrayOutputStream(), null);
+        }
+        File file = new File(STREAM_DIR, topic.name.replace('/', '_') + "-" + streamId);
+        try {
+            Files.createDirectories(file.toPath().getParent());
+            return new IncomingStream(topic, new BufferedOutputStream(new FileOutputStream(file)), file);
+        } catch (IOException e) {
+            LOG.error("Cannot write streamed message to %s: %s", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private void showStream(UUID topicId, IncomingStream stream) {
+        System.out.println("\nReceived streamed message (" + stream.bytes + " bytes in " + stream.nextIndex + " chunks):");
+        System.out.println("Topic: " + stream.topic.name + " (ID: " + topicId + ")");
+        System.out.println("Publisher: " + stream.topic.publisherName);
+        try {
+            stream.sink.close();
+        } catch (IOException e) {
+            System.out.println("Error writing streamed message: " + e.getMessage());
+            return;
+        }
+        if (stream.file != null) {
+            System.out.println("Saved to: " + stream.file);
+            return;
+        }
+        String content = new String(((ByteArrayOutputStream) stream.sink).toByteArray(), StandardCharsets.UTF_8);
+        System.out.println("Content: " + (content.length() > STREAM_PREVIEW_CHARS
+                ? content.substring(0, STREAM_PREVIEW_CHARS) + "... (" + content.length() + " characters)" : content));
+    }
+
+    private void topicDeleted(UUID topicId, String topicName) {
+        incomingStreams.entrySet().removeIf(entry -> {
+            if (!entry.getKey().startsWith(topicId + "/")) return false;
+            entry.getValue().discard();
+            return true;
+        });
+        TopicInfo deletedTopic = subscriptions.remove(topicId);
+        if (deletedTopic != null) {
+            System.out.println("\nNotification: Topic '" + topicName + "' (ID: " + topicId + ") has been deleted by the publisher.");
+        }
     }
 
     private void handleTopicList(String content) {
@@ -256,6 +446,16 @@ public class Subscriber {
             String publisherName = parts[3];
             subscriptions.remove(topicId);
             System.out.println("Successfully unsubscribed from topic: " + topicName + " (ID: " + topicId + ")");
+        }else if (parts.length == 4 && parts[0].equals("HISTORY")) {
+            String[] stats = parts[3].split(":");
+            System.out.println("History of topic " + parts[1] + ": capacity " + parts[2] + ", retained " + stats[0]
+                    + " (sequences " + stats[1] + " to " + stats[2] + "), replay hits " + stats[3] + ", misses " + stats[4]);
+        }else if (parts.length == 4 && parts[0].equals("REPLAYED")) {
+            System.out.println("Replayed " + parts[2] + " messages of topic " + parts[1] + ", next offset " + parts[3]);
+        }else if (parts.length == 3 && parts[0].equals("PSUBSCRIBED")) {
+            System.out.println("Subscribed to pattern " + parts[1] + ", matching " + parts[2] + " topics so far");
+        }else if (parts.length == 3 && parts[0].equals("PUNSUBSCRIBED")) {
+            System.out.println("Unsubscribed from pattern " + parts[1] + " and " + parts[2] + " topics");
         }
     }
 
@@ -271,7 +471,7 @@ public class Subscriber {
     private void runConsoleMenu() throws IOException {
         while (true) {
             // printMenu();
-            System.out.println("Please select command: list, sub, current, unsub, exit.");
+            System.out.println("Please select command: list, sub, psub, current, unsub, punsub, replay, history, exit.");
             // System.out.println("1. List All Available Topics");
             // System.out.println("2. Subscribe to a Topic");
             // System.out.println("3. Show Current Subscriptions");
@@ -288,16 +488,25 @@ public class Subscriber {
                     break;
                 case "sub":
                     if (parts.length < 2) {
-                        System.out.println("Please provide a topic ID to subscribe.");
+                        System.out.println("Please provide a topic ID to subscribe, optionally followed by latest, earliest or a sequence number and a filter.");
                     } else {
                         try {
-                            UUID topicId = UUID.fromString(parts[1]);
-                            subscribeToTopic(topicId);
+                            String[] args = parts[1].trim().split(" +", 3);
+                            UUID topicId = UUID.fromString(args[0]);
+                            subscribeToTopic(topicId, args.length > 1 ? args[1] : "latest", args.length > 2 ? args[2] : null);
                         } catch (IllegalArgumentException e) {
                             System.out.println("Invalid topic ID format. Please enter a valid UUID.");
                         }
                     }
                     break;
+                case "psub":
+                case "punsub":
+                    if (parts.length < 2 || parts[1].trim().isEmpty()) {
+                        System.out.println("Please provide a topic name pattern, e.g. prices/*/fr or prices/#.");
+                    } else {
+                        send(command.equals("psub") ? "PSUBSCRIBE" : "PUNSUBSCRIBE", parts[1].trim());
+                    }
+                    break;
                 case "current":
                     showCurrentSubscriptions();
                     // printMenu();
@@ -315,6 +524,31 @@ public class Subscriber {
                         }
                     }
                     break;
+                case "replay":
+                    if (parts.length < 2) {
+                        System.out.println("Please provide a topic ID to replay, optionally followed by an offset.");
+                    } else {
+                        try {
+                            String[] args = parts[1].trim().split(" +");
+                            UUID topicId = UUID.fromString(args[0]);
+                            long offset = args.length > 1 ? Long.parseLong(args[1]) : 0;
+                            replayTopic(topicId, offset);
+                        } catch (IllegalArgumentException e) {
+                            System.out.println("Invalid topic ID or offset.");
+                        }
+                    }
+                    break;
+                case "history":
+                    if (parts.length < 2) {
+                        System.out.println("Please provide a topic ID.");
+                    } else {
+                        try {
+                            send("HISTORY", UUID.fromString(parts[1].trim()).toString());
+                        } catch (IllegalArgumentException e) {
+                            System.out.println("Invalid topic ID format. Please enter a valid UUID.");
+                        }
+                    }
+                    break;
                 case "exit":
                     disconnect();
                     return;
@@ -332,25 +566,40 @@ public class Subscriber {
     // }
     private void listAllTopics() throws IOException {
         System.out.println("Requesting topic list from broker...");
-        out.println("LISTTOPICS");
-        out.flush();
+        send("LISTTOPICS");
 
     }
 
-    private void subscribeToTopic(UUID topicId) throws IOException {
+    // from: "latest", "earliest" or a sequence number; filter is optional
+    private void subscribeToTopic(UUID topicId, String from, String filter) throws IOException {
         // System.out.print("Enter topic ID to subscribe: ");
-        out.println("SUBSCRIBE:" + topicId + ":" + name + ":" + port);
+        if (filter != null) {
+            send("SUBSCRIBE", topicId.toString(), name, String.valueOf(port), from, filter);
+        } else {
+            send("SUBSCRIBE", topicId.toString(), name, String.valueOf(port), from);
+        }
         System.out.println("Subscription request sent for topic ID: " + topicId);
         
     }
 
+    // Asks the broker to resend the topic's logged messages from the given offset
+    private void replayTopic(UUID topicId, long offset) throws IOException {
+        if (!subscriptions.containsKey(topicId)) {
+            System.out.println("You are not subscribed to this topic.");
+            return;
+        }
+        send("REPLAY", topicId.toString(), String.valueOf(offset));
+        System.out.println("Replay requested for topic ID: " + topicId + " from offset " + offset);
+    }
+
     private void showCurrentSubscriptions() {
         if (subscriptions.isEmpty()) {
             System.out.println("You are not subscribed to any topics.");
         } else {
             System.out.println("\nCurrent Subscriptions:");
             for (Map.Entry<UUID, TopicInfo> entry : subscriptions.entrySet()) {
-                System.out.println("ID: " + entry.getKey() + ", Name: " + entry.getValue().name + ", Publisher: " + entry.getValue().publisherName);
+                System.out.println("ID: " + entry.getKey() + ", Name: " + entry.getValue().name + ", Publisher: " + entry.getValue().publisherName
+                        + (entry.getValue().lastSequence >= 0 ? ", Last sequence: " + entry.getValue().lastSequence : ""));
             }
         }
     }
@@ -361,25 +610,28 @@ public class Subscriber {
             System.out.println("You are not subscribed to any topics.");
             return;
         }
-        out.println("UNSUBSCRIBE:" + topicId + ":" + name + ":" + port);
+        send("UNSUBSCRIBE", topicId, name, String.valueOf(port));
     }
 
     private void disconnect() {
         try {
-            for (UUID key : subscriptions.keySet()) {
-                unsubscribeFromTopic(key);
-            out.println("UNSUBSCRIBE:" + key + ":" + name + ":" + port);
-        }}catch (IOException e) {
-            System.out.println("Error while disconnecting: " + e.getMessage());
+            if (out != null && !socket.isClosed()) {
+                for (UUID key : subscriptions.keySet()) {
+                    unsubscribeFromTopic(key);
+                    send("UNSUBSCRIBE", key.toString(), name, String.valueOf(port));
+                }
+                send("EXIT", "SUBSCRIBER");
+            }
+        } catch (IOException e) {
+            LOG.debug("Error while disconnecting: %s", e.getMessage());
         }
-        out.println("EXIT:SUBSCRIBER");
         try {
             if (out != null) out.close();
             if (in != null) in.close();
             if (socket != null) socket.close();
             System.out.println("Disconnected from broker.");
         } catch (IOException e) {
-            System.out.println("Error while disconnecting: " + e.getMessage());
+            LOG.debug("Error while disconnecting: %s", e.getMessage());
         }
     }
 
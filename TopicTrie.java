@@ -0,0 +1,117 @@
+import java.util.*;
+
+// Trie of '/'-separated topic names or patterns ('*' one level, '#' the rest); not thread-safe
+class TopicTrie<T> {
+    static final String ONE_LEVEL = "*";
+    static final String ALL_LEVELS = "#";
+
+    private static final class Node<T> {
+        final Map<String, Node<T>> children = new HashMap<>();
+        final Set<T> values = new HashSet<>();
+    }
+
+    private final Node<T> root = new Node<>();
+
+    static String[] levels(String name) {
+        return name.split("/", -1);
+    }
+
+    // Wildcards must fill a whole level, and '#' must be the last one
+    static boolean isValidPattern(String pattern) {
+        if (pattern.isEmpty()) return false;
+        String[] levels = levels(pattern);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.equals(ALL_LEVELS)) {
+                if (i != levels.length - 1) return false;
+            } else if (!level.equals(ONE_LEVEL) && (level.contains(ONE_LEVEL) || level.contains(ALL_LEVELS))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean matches(String pattern, String name) {
+        String[] patternLevels = levels(pattern);
+        String[] nameLevels = levels(name);
+        for (int i = 0; i < patternLevels.length; i++) {
+            if (patternLevels[i].equals(ALL_LEVELS)) return true;
+            if (i == nameLevels.length) return false;
+            if (!patternLevels[i].equals(ONE_LEVEL) && !patternLevels[i].equals(nameLevels[i])) return false;
+        }
+        return patternLevels.length == nameLevels.length;
+    }
+
+    void add(String path, T value) {
+        Node<T> node = root;
+        for (String level : levels(path)) {
+            node = node.children.computeIfAbsent(level, l -> new Node<>());
+        }
+        node.values.add(value);
+    }
+
+    // Removes the value and prunes the nodes left empty
+    boolean remove(String path, T value) {
+        return remove(root, levels(path), 0, value);
+    }
+
+    private boolean remove(Node<T> node, String[] levels, int depth, T value) {
+        if (depth == levels.length) return node.values.remove(value);
+        Node<T> child = node.children.get(levels[depth]);
+        if (child == null || !remove(child, levels, depth + 1, value)) return false;
+        if (child.values.isEmpty() && child.children.isEmpty()) node.children.remove(levels[depth]);
+        return true;
+    }
+
+    // For a trie of patterns: the values of every pattern the concrete name matches
+    Set<T> matchPatterns(String name) {
+        Set<T> matches = new HashSet<>();
+        matchPatterns(root, levels(name), 0, matches);
+        return matches;
+    }
+
+    private void matchPatterns(Node<T> node, String[] levels, int depth, Set<T> matches) {
+        Node<T> rest = node.children.get(ALL_LEVELS);
+        if (rest != null) matches.addAll(rest.values);
+        if (depth == levels.length) {
+            matches.addAll(node.values);
+            return;
+        }
+        Node<T> exact = node.children.get(levels[depth]);
+        if (exact != null) matchPatterns(exact, levels, depth + 1, matches);
+        Node<T> any = node.children.get(ONE_LEVEL);
+        if (any != null && any != exact) matchPatterns(any, levels, depth + 1, matches);
+    }
+
+    // For a trie of concrete names: the values of every name the pattern matches
+    Set<T> matchNames(String pattern) {
+        Set<T> matches = new HashSet<>();
+        matchNames(root, levels(pattern), 0, matches);
+        return matches;
+    }
+
+    private void matchNames(Node<T> node, String[] levels, int depth, Set<T> matches) {
+        if (depth == levels.length) {
+            matches.addAll(node.values);
+            return;
+        }
+        String level = levels[depth];
+        if (level.equals(ALL_LEVELS)) {
+            collect(node, matches);
+        } else if (level.equals(ONE_LEVEL)) {
+            for (Node<T> child : node.children.values()) {
+                matchNames(child, levels, depth + 1, matches);
+            }
+        } else {
+            Node<T> child = node.children.get(level);
+            if (child != null) matchNames(child, levels, depth + 1, matches);
+        }
+    }
+
+    private void collect(Node<T> node, Set<T> matches) {
+        matches.addAll(node.values);
+        for (Node<T> child : node.children.values()) {
+            collect(child, matches);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Allocation regression check for the broker's publish path. Runs broker 0 in-process with one binary
+// publisher and one binary subscriber, publishes in pipelined windows and measures the bytes the broker's
+// own threads allocate per publish, client threads excluded. Exits with status 1 when that exceeds
+// -Dbench.maxBytesPerPublish; the benchmarks module runs it in the verify phase, so that fails the build.
+//
+//   mvn -B verify [-Dbench.transport=nio]
+public class PublishAllocationBenchmark {
+    private static final int PUBLISHES = Integer.getInteger("bench.publishes", 200_000);
+    private static final int WINDOW = 64;
+    private static final int CONTENT_LENGTH = 64;
+    private static final long MAX_BYTES_PER_PUBLISH = Long.getLong("bench.maxBytesPerPublish", 1024);
+
+    public static void main(String[] args) throws Exception {
+        // Persistence stays on, in a scratch directory, so log appends are part of the measured path
+        System.setProperty("broker.logDir", Files.createTempDirectory("publish-bench").toString());
+        new Broker(0).start();
+        UUID topicId = UUID.randomUUID();
+
+        Socket publisher = connect("PUBLISHER:bench:" + BinaryProtocol.VERSION);
+        OutputStream publisherOut = new BufferedOutputStream(publisher.getOutputStream());
+        InputStream publisherIn = new BufferedInputStream(publisher.getInputStream());
+        Command reply = new Command();
+        send(publisherOut, new BinaryProtocol.Frame(BinaryProtocol.CREATETOPIC, (byte) 0,
+                topicId.getMostSignificantBits(), topicId.getLeastSignificantBits(), new String[] {"bench"}, new byte[0]));
+        reply.readFrame(publisherIn);
+
+        Socket subscriber = connect("SUBSCRIBER:benchsub:" + BinaryProtocol.VERSION);
+        send(new BufferedOutputStream(subscriber.getOutputStream()), new BinaryProtocol.Frame(BinaryProtocol.SUBSCRIBE, (byte) 0,
+                topicId.getMostSignificantBits(), topicId.getLeastSignificantBits(), new String[] {"benchsub", "5003"}, new byte[0]));
+        InputStream subscriberIn = new BufferedInputStream(subscriber.getInputStream());
+        Command subscribed = new Command();
+        if (!subscribed.readFrame(subscriberIn) || subscribed.opcode() != BinaryProtocol.SUCCESS) {
+            throw new IOException("Subscribe failed: " + subscribed);
+        }
+        AtomicLong received = new AtomicLong();
+        Thread reader = new Thread(() -> {
+            try {
+                InputStream in = subscriberIn;
+                Command message = new Command();
+                while (message.readFrame(in)) {
+                    if (message.opcode() == BinaryProtocol.MESSAGE) received.incrementAndGet();
+                }
+            } catch (IOException e) {
+                // Closed at exit
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+
+        byte[] publish = new BinaryProtocol.Frame(BinaryProtocol.PUBLISH, (byte) 0, topicId.getMostSignificantBits(),
+                topicId.getLeastSignificantBits(), new String[] {"bench"},
+                "x".repeat(CONTENT_LENGTH).getBytes(StandardCharsets.UTF_8)).encode();
+        Set<Long> clientThreads = Set.of(Thread.currentThread().getId(), reader.getId());
+
+        // Warm up, then measure the same loop
+        run(publisherOut, publisherIn, reply, publish, PUBLISHES / 4, received);
+        Map<Long, Long> before = allocatedBytes(clientThreads);
+        long start = System.nanoTime();
+        run(publisherOut, publisherIn, reply, publish, PUBLISHES, received);
+        long elapsed = System.nanoTime() - start;
+        Map<Long, Long> after = allocatedBytes(clientThreads);
+
+        long bytes = 0;
+        for (Map.Entry<Long, Long> entry : after.entrySet()) {
+            bytes += entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+        }
+        double perPublish = (double) bytes / PUBLISHES;
+        System.out.printf("%s transport: %.1f ns/publish, %.1f broker bytes/publish (budget %d)%n",
+                System.getProperty("broker.transport", "blocking"), (double) elapsed / PUBLISHES, perPublish, MAX_BYTES_PER_PUBLISH);
+        if (perPublish > MAX_BYTES_PER_PUBLISH) {
+            System.out.println("FAIL: allocation per publish above budget");
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    // Publishes in windows of WINDOW frames, then waits for the subscriber to have seen every message
+    private static void run(OutputStream out, InputStream in, Command reply, byte[] publish, int count, AtomicLong received)
+            throws IOException, InterruptedException {
+        long expected = received.get() + count;
+        for (int sent = 0; sent < count; sent += WINDOW) {
+            int window = Math.min(WINDOW, count - sent);
+            for (int i = 0; i < window; i++) out.write(publish);
+            out.flush();
+            for (int i = 0; i < window; i++) {
+                if (!reply.readFrame(in) || reply.opcode() != BinaryProtocol.SUCCESS) {
+                    throw new IOException("Unexpected reply: " + reply);
+                }
+            }
+        }
+        while (received.get() < expected) Thread.sleep(1);
+    }
+
+    private static Socket connect(String handshake) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Socket socket = new Socket("localhost", 5003);
+                socket.setTcpNoDelay(true);
+                socket.getOutputStream().write((handshake + "\n").getBytes(StandardCharsets.UTF_8));
+                String response = BinaryProtocol.readLine(socket.getInputStream());
+                if (!BinaryProtocol.acceptsBinary(response)) throw new IOException("Handshake refused: " + response);
+                return socket;
+            } catch (java.net.ConnectException e) {
+                if (attempt == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void send(OutputStream out, BinaryProtocol.Frame frame) throws IOException {
+        out.write(frame.encode());
+        out.flush();
+    }
+
+    // Bytes allocated so far by every live thread except the client's
+    private static Map<Long, Long> allocatedBytes(Set<Long> excluded) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        Map<Long, Long> result = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (!excluded.contains(ids[i]) && bytes[i] >= 0) result.put(ids[i], bytes[i]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,82 @@
+package pubsub.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Parsing a client's PUBLISH the way the broker's reader does before dispatching it: Command.parseText for
+// the text protocol, Command.parseFrame for binary frames, and the split loop handleClientMessage used
+// before the Command tokenizer as a baseline. Each returns the fields publish consumes.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dbroker.logDir=", "-Dlog.level=ERROR"})
+public class CommandParsingBenchmark {
+    @Param({"16", "256", "4096"})
+    public int payloadSize;
+
+    private String line;
+    private byte[] lineBytes;
+    private byte[] frame;
+    private Object command;
+    private MethodHandle parseText;
+    private MethodHandle parseFrame;
+    private MethodHandle topicLsb;
+    private MethodHandle payloadLength;
+    private MethodHandle fieldEquals;
+
+    @Setup
+    public void setup() throws Throwable {
+        UUID topicId = UUID.randomUUID();
+        String content = "x".repeat(payloadSize);
+        line = "PUBLISH:" + topicId + ":" + content + ":alice";
+        lineBytes = line.getBytes(StandardCharsets.UTF_8);
+        Object parts = Fixtures.method("BinaryProtocol$Frame", "fromParts", String[].class)
+                .invoke(new String[] {"PUBLISH", topicId.toString(), content, "alice"});
+        frame = (byte[]) Fixtures.method("BinaryProtocol$Frame", "encode").invoke(parts);
+        command = Fixtures.constructor("Command").invoke();
+        parseText = Fixtures.method("Command", "parseText", byte[].class, int.class, int.class);
+        parseFrame = Fixtures.method("Command", "parseFrame", byte[].class, int.class, int.class);
+        topicLsb = Fixtures.method("Command", "topicLsb");
+        payloadLength = Fixtures.method("Command", "payloadLength");
+        fieldEquals = Fixtures.method("Command", "fieldEquals", int.class, String.class);
+    }
+
+    // The parsing done per publish before the tokenizer: split into a fresh list, then UUID.fromString
+    @Benchmark
+    public long legacySplit() {
+        String message = line;
+        ArrayList<String> parts = new ArrayList<>();
+        while (true) {
+            if (message.indexOf(":") == -1) {
+                parts.add(message);
+                break;
+            }
+            parts.add(message.substring(0, message.indexOf(":")));
+            message = message.substring(message.indexOf(":") + 1);
+        }
+        UUID topicId = UUID.fromString(parts.get(1));
+        return topicId.getLeastSignificantBits() + parts.get(2).length() + (parts.get(3).equals("alice") ? 1 : 0);
+    }
+
+    @Benchmark
+    public long parseText() throws Throwable {
+        return parsed((Object) parseText.invokeExact(command, (Object) lineBytes, 0, lineBytes.length));
+    }
+
+    @Benchmark
+    public long parseFrame() throws Throwable {
+        return parsed((Object) parseFrame.invokeExact(command, (Object) frame, 4, frame.length - 4));
+    }
+
+    // The fields publish consumes: topic id, payload and the publisher name check
+    private long parsed(Object parsed) throws Throwable {
+        return (long) topicLsb.invokeExact(parsed) + (int) payloadLength.invokeExact(parsed)
+                + ((boolean) fieldEquals.invokeExact(parsed, 0, (Object) "alice") ? 1 : 0);
+    }
+}
@@ -0,0 +1,121 @@
+package pubsub.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// One publish through Topic.publish to every subscriber's outbound queue, drained afterwards the way the
+// writers do. The baseline encodes the message once per subscriber, as the broker did before Delivery.
+// Subscribers are ClientHandlers without a socket, so delivering only queues the frames.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dbroker.logDir=", "-Dlog.level=ERROR"})
+public class FanOutBenchmark {
+    private static final String TIMESTAMP = "18/10 12:00:00";
+
+    @Param({"1", "100", "1000"})
+    public int subscribers;
+
+    @Param({"16", "256", "4096"})
+    public int payloadSize;
+
+    @Param({"binary", "text"})
+    public String protocol;
+
+    private final UUID topicId = UUID.randomUUID();
+    private Object topic;
+    private Object[] handlers;
+    private Queue<ByteBuffer>[] outbound;
+    private String content;
+    private boolean binary;
+    private MethodHandle testFilters;
+    private MethodHandle publish;
+    private MethodHandle framesWritten;
+    private MethodHandle newFrame;
+    private MethodHandle encode;
+    private byte messageOpcode;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws Throwable {
+        Class<?> brokerType = Fixtures.type("Broker");
+        Class<?> handlerType = Fixtures.type("Broker$ClientHandler");
+        Object broker = Fixtures.constructor("Broker", int.class).invoke(0);
+        topic = Fixtures.constructor("Broker$Topic", brokerType, UUID.class, String.class, String.class)
+                .invoke(broker, topicId, "news", "alice");
+        MethodHandle newHandler = Fixtures.constructor("Broker$ClientHandler", brokerType, Socket.class);
+        MethodHandle addSubscriber = Fixtures.method("Broker$Topic", "addSubscriber", handlerType);
+        binary = "binary".equals(protocol);
+        handlers = new Object[subscribers];
+        outbound = new Queue[subscribers];
+        for (int i = 0; i < subscribers; i++) {
+            handlers[i] = newHandler.invoke(broker, (Socket) null);
+            Fixtures.set(handlers[i], "Broker$ClientHandler", "binary", binary);
+            outbound[i] = (Queue<ByteBuffer>) Fixtures.get(handlers[i], "Broker$ClientHandler", "outbound");
+            synchronized (topic) {
+                addSubscriber.invoke(topic, handlers[i]);
+            }
+        }
+        testFilters = Fixtures.method("Broker$Topic", "testFilters", String.class);
+        publish = Fixtures.method("Broker$Topic", "publish", UUID.class, String.class, String.class, long.class,
+                Fixtures.type("Broker$FilterResults"));
+        framesWritten = Fixtures.method("Broker$ClientHandler", "framesWritten", int.class);
+        newFrame = Fixtures.constructor("BinaryProtocol$Frame", byte.class, byte.class, long.class, long.class,
+                String[].class, byte[].class);
+        encode = Fixtures.method("BinaryProtocol$Frame", "encode");
+        messageOpcode = (Byte) Fixtures.get(null, "BinaryProtocol", "MESSAGE");
+        content = "x".repeat(payloadSize);
+    }
+
+    @Benchmark
+    public long publish() throws Throwable {
+        Object tested = (Object) testFilters.invokeExact(topic, (Object) content);
+        synchronized (topic) {
+            Object delivery = (Object) publish.invokeExact(topic, (Object) topicId, (Object) content, (Object) TIMESTAMP,
+                    System.nanoTime(), tested);
+        }
+        return drain();
+    }
+
+    // Before Delivery: every subscriber got its own freshly encoded copy
+    @Benchmark
+    public long encodePerSubscriber() throws Throwable {
+        for (Queue<ByteBuffer> queue : outbound) {
+            byte[] frame;
+            if (binary) {
+                Object message = (Object) newFrame.invokeExact(messageOpcode, (byte) 0, topicId.getMostSignificantBits(),
+                        topicId.getLeastSignificantBits(), (Object) new String[] {"news", TIMESTAMP, "0"},
+                        (Object) content.getBytes(StandardCharsets.UTF_8));
+                frame = (byte[]) (Object) encode.invokeExact(message);
+            } else {
+                frame = (String.format("%s %s:%s: %s", TIMESTAMP, topicId, "news", content) + "\n")
+                        .getBytes(StandardCharsets.UTF_8);
+            }
+            queue.offer(ByteBuffer.wrap(frame));
+        }
+        return drain();
+    }
+
+    // Stand-in for the writers: consume every queued buffer and report the frames written
+    private long drain() throws Throwable {
+        long total = 0;
+        for (int i = 0; i < handlers.length; i++) {
+            int frames = 0;
+            ByteBuffer frame;
+            while ((frame = outbound[i].poll()) != null) {
+                total += frame.remaining();
+                frames++;
+            }
+            framesWritten.invokeExact(handlers[i], frames);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,74 @@
+package pubsub.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+
+// The broker's classes live in the default package, which code in a named package cannot refer to, while
+// JMH only accepts benchmarks in a named package. The benchmarks reach them through the method handles and
+// fields looked up here once per trial, private ones included, rather than through a widened broker API.
+// Handles take and return Object in place of the broker's types (primitives stay), for invokeExact.
+final class Fixtures {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private Fixtures() {
+    }
+
+    // A broker class by its binary name, e.g. "Broker$Topic"
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("No class " + name, e);
+        }
+    }
+
+    // Inner classes take their outer instance as the first parameter
+    static MethodHandle constructor(String className, Class<?>... parameterTypes) {
+        try {
+            return erased(LOOKUP.unreflectConstructor(opened(type(className).getDeclaredConstructor(parameterTypes))));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No such constructor of " + className, e);
+        }
+    }
+
+    // Instance methods take their receiver as the first parameter
+    static MethodHandle method(String className, String name, Class<?>... parameterTypes) {
+        try {
+            return erased(LOOKUP.unreflect(opened(type(className).getDeclaredMethod(name, parameterTypes))));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No method " + className + "." + name, e);
+        }
+    }
+
+    static Object get(Object target, String className, String name) {
+        try {
+            return field(className, name).get(target);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot read " + className + "." + name, e);
+        }
+    }
+
+    static void set(Object target, String className, String name, Object value) {
+        try {
+            field(className, name).set(target, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot write " + className + "." + name, e);
+        }
+    }
+
+    private static Field field(String className, String name) throws NoSuchFieldException {
+        return opened(type(className).getDeclaredField(name));
+    }
+
+    private static <T extends AccessibleObject> T opened(T member) {
+        member.setAccessible(true);
+        return member;
+    }
+
+    // Varargs methods take their array as is
+    private static MethodHandle erased(MethodHandle handle) {
+        return handle.asFixedArity().asType(handle.type().erase());
+    }
+}
@@ -0,0 +1,68 @@
+package pubsub.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// What Subscriber.handleReceivedMessage does with a MESSAGE before printing it: parse the frame or line in
+// place and read the topic id, content, timestamp and sequence. The bytes are what the broker sends, minus
+// the frame's length prefix or the line's newline as the subscriber's reader strips them.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dlog.level=ERROR"})
+public class SubscriberDecodingBenchmark {
+    @Param({"16", "256", "4096"})
+    public int payloadSize;
+
+    @Param({"binary", "text"})
+    public String protocol;
+
+    private boolean binary;
+    private byte[] message;
+    private int offset;
+    private int length;
+    private Object command;
+    private MethodHandle parse;
+    private MethodHandle hasTopic;
+    private MethodHandle topicValid;
+    private MethodHandle topicId;
+    private MethodHandle payloadText;
+    private MethodHandle field;
+
+    @Setup
+    public void setup() throws Throwable {
+        binary = "binary".equals(protocol);
+        Object delivery = Fixtures.constructor("Delivery", UUID.class, String.class, String.class, String.class, long.class)
+                .invoke(UUID.randomUUID(), "news", "x".repeat(payloadSize), "18/10 12:00:00", 42L);
+        ByteBuffer encoded = (ByteBuffer) Fixtures.method("Delivery", "encoded", boolean.class).invoke(delivery, binary);
+        message = new byte[encoded.remaining()];
+        encoded.get(message);
+        offset = binary ? 4 : 0;
+        length = binary ? message.length - 4 : message.length - 1;
+        command = Fixtures.constructor("Command").invoke();
+        parse = Fixtures.method("Command", binary ? "parseFrame" : "parseText", byte[].class, int.class, int.class);
+        hasTopic = Fixtures.method("Command", "hasTopic");
+        topicValid = Fixtures.method("Command", "topicValid");
+        topicId = Fixtures.method("Command", "topicId");
+        payloadText = Fixtures.method("Command", "payloadText");
+        field = Fixtures.method("Command", "field", int.class);
+    }
+
+    @Benchmark
+    public long decode() throws Throwable {
+        Object parsed = (Object) parse.invokeExact(command, (Object) message, offset, length);
+        if ((boolean) hasTopic.invokeExact(parsed) && !(boolean) topicValid.invokeExact(parsed)) return -1;
+        // The MESSAGE case of handleReceivedMessage and showMessage, without the printing
+        UUID topic = (UUID) (Object) topicId.invokeExact(parsed);
+        String content = (String) (Object) payloadText.invokeExact(parsed);
+        String timestamp = (String) (Object) field.invokeExact(parsed, 1);
+        String sequence = (String) (Object) field.invokeExact(parsed, 2);
+        return topic.getLeastSignificantBits() + content.length() + (timestamp != null ? timestamp.length() : 0)
+                + (sequence != null ? Long.parseLong(sequence) : 0);
+    }
+}
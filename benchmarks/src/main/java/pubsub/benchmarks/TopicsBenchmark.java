@@ -0,0 +1,69 @@
+package pubsub.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// The broker's topics map: looking a topic up by the id of a binary frame (two longs) and of a text command
+// (UUID.fromString first), and building the LISTTOPICS reply over every topic. The broker is only
+// constructed, not started; persistence is off.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dbroker.logDir=", "-Dlog.level=ERROR"})
+public class TopicsBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int topics;
+
+    private Object broker;
+    private Map<UUID, Object> topicMap;
+    private MethodHandle topicList;
+    private long[] ids;
+    private String[] texts;
+    private int next;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws Throwable {
+        broker = Fixtures.constructor("Broker", int.class).invoke(0);
+        topicMap = (Map<UUID, Object>) Fixtures.get(broker, "Broker", "topics");
+        MethodHandle newTopic = Fixtures.constructor("Broker$Topic", Fixtures.type("Broker"), UUID.class, String.class, String.class);
+        topicList = Fixtures.method("Broker", "topicList");
+        ids = new long[topics * 2];
+        texts = new String[topics];
+        for (int i = 0; i < topics; i++) {
+            UUID topicId = UUID.randomUUID();
+            topicMap.put(topicId, newTopic.invoke(broker, topicId, "topic-" + i, "publisher-" + (i % 10)));
+            ids[2 * i] = topicId.getMostSignificantBits();
+            ids[2 * i + 1] = topicId.getLeastSignificantBits();
+            texts[i] = topicId.toString();
+        }
+    }
+
+    // As a binary frame's id reaches the broker: Command.topicId() builds the UUID from its two halves
+    @Benchmark
+    public Object lookup() {
+        int i = advance();
+        return topicMap.get(new UUID(ids[2 * i], ids[2 * i + 1]));
+    }
+
+    @Benchmark
+    public Object lookupFromText() {
+        return topicMap.get(UUID.fromString(texts[advance()]));
+    }
+
+    @Benchmark
+    public String listTopics() throws Throwable {
+        return (String) (Object) topicList.invokeExact(broker);
+    }
+
+    private int advance() {
+        int i = next;
+        next = i + 1 == texts.length ? 0 : i + 1;
+        return i;
+    }
+}